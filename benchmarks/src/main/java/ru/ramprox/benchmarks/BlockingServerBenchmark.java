@@ -0,0 +1,140 @@
+package ru.ramprox.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.ramprox.server.ConnectionExecutors;
+import ru.ramprox.server.Server;
+import ru.ramprox.storage.Compression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Upload and download over loopback with the blocking {@link Server} / ClientHandler protocol.
+ * 64 KB files are served from the hot-file cache, 16 MB ones from disk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=1")
+@State(Scope.Benchmark)
+public class BlockingServerBenchmark {
+	private static final int PORT = 6789;
+	private static final String DOWNLOAD_NAME = "bench-blocking-download.bin";
+
+	@Param({"65536", "16777216"})
+	public int size;
+
+	private byte[] data;
+
+	@Setup(Level.Trial)
+	public void start() throws Exception {
+		Servers.start("blocking-server", PORT, () -> new Server(ConnectionExecutors.ELASTIC));
+		data = Servers.random(size);
+		try (LegacyClient client = new LegacyClient()) {
+			client.connect();
+			client.upload(DOWNLOAD_NAME, data);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class LegacyClient implements AutoCloseable {
+		private static final AtomicInteger threads = new AtomicInteger();
+
+		private final String uploadName = "bench-blocking-upload-" + threads.incrementAndGet() + ".bin";
+		private final byte[] buffer = new byte[64 * 1024];
+		private Socket socket;
+		private DataOutputStream out;
+		private DataInputStream in;
+
+		@Setup(Level.Trial)
+		public void connect() throws IOException {
+			socket = new Socket("localhost", PORT);
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+		}
+
+		void upload(String name, byte[] data) throws IOException {
+			out.writeUTF("upload");
+			out.writeUTF(name);
+			out.writeLong(0);
+			out.writeLong(data.length);
+			out.writeByte(Compression.NONE);
+			out.write(data);
+			// not checked, the benchmark measures the transfer
+			out.writeLong(-1);
+			out.flush();
+			check("OK", in.readUTF());
+			in.readUTF();
+		}
+
+		long download(String name) throws IOException {
+			out.writeUTF("download");
+			out.writeUTF(name);
+			out.writeLong(0);
+			out.writeLong(-1);
+			out.writeByte(Compression.NONE);
+			out.flush();
+			if (!in.readBoolean()) {
+				throw new IOException("no " + name + " on the server");
+			}
+			in.readLong();
+			long count = in.readLong();
+			in.readByte();
+			for (long left = count; left > 0; ) {
+				int length = (int) Math.min(buffer.length, left);
+				in.readFully(buffer, 0, length);
+				left -= length;
+			}
+			in.readLong();
+			out.writeUTF("OK");
+			out.flush();
+			in.readUTF();
+			return count;
+		}
+
+		private static void check(String expected, String reply) throws IOException {
+			if (!expected.equals(reply)) {
+				throw new IOException("unexpected reply " + reply);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		@Override
+		public void close() throws IOException {
+			out.writeUTF("exit");
+			out.flush();
+			in.readUTF();
+			socket.close();
+		}
+	}
+
+	@Benchmark
+	public void upload(LegacyClient client, TransferCounters counters) throws IOException {
+		client.upload(client.uploadName, data);
+		counters.bytes += data.length;
+	}
+
+	@Benchmark
+	public void download(LegacyClient client, TransferCounters counters) throws IOException {
+		counters.bytes += client.download(DOWNLOAD_NAME);
+	}
+}
@@ -0,0 +1,129 @@
+package ru.ramprox.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copying a block between heap, direct and memory-mapped buffers, and reading it from a file
+ * (in the page cache) into heap and direct buffers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BufferCopyBenchmark {
+	@Param({"4096", "262144", "4194304"})
+	public int size;
+
+	private ByteBuffer heapSource;
+	private ByteBuffer heapTarget;
+	private ByteBuffer directSource;
+	private ByteBuffer directTarget;
+	private Path file;
+	private FileChannel channel;
+	private MappedByteBuffer mapped;
+
+	@Setup(Level.Trial)
+	public void allocate() throws IOException {
+		byte[] data = Servers.random(size);
+		heapSource = ByteBuffer.wrap(data);
+		heapTarget = ByteBuffer.allocate(size);
+		directSource = ByteBuffer.allocateDirect(size).put(data);
+		directTarget = ByteBuffer.allocateDirect(size);
+		file = Files.createTempFile("bench-copy", ".bin");
+		Files.write(file, data);
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		mapped.load();
+	}
+
+	@TearDown(Level.Trial)
+	public void release() throws IOException {
+		channel.close();
+		Files.deleteIfExists(file);
+	}
+
+	private static ByteBuffer copy(ByteBuffer source, ByteBuffer target) {
+		source.clear();
+		target.clear();
+		return target.put(source);
+	}
+
+	@Benchmark
+	public ByteBuffer heapToHeap(TransferCounters counters) {
+		counters.bytes += size;
+		return copy(heapSource, heapTarget);
+	}
+
+	@Benchmark
+	public ByteBuffer heapToDirect(TransferCounters counters) {
+		counters.bytes += size;
+		return copy(heapSource, directTarget);
+	}
+
+	@Benchmark
+	public ByteBuffer directToHeap(TransferCounters counters) {
+		counters.bytes += size;
+		return copy(directSource, heapTarget);
+	}
+
+	@Benchmark
+	public ByteBuffer directToDirect(TransferCounters counters) {
+		counters.bytes += size;
+		return copy(directSource, directTarget);
+	}
+
+	@Benchmark
+	public ByteBuffer mappedToHeap(TransferCounters counters) {
+		counters.bytes += size;
+		return copy(mapped, heapTarget);
+	}
+
+	@Benchmark
+	public ByteBuffer mappedToDirect(TransferCounters counters) {
+		counters.bytes += size;
+		return copy(mapped, directTarget);
+	}
+
+	@Benchmark
+	public ByteBuffer fileToHeap(TransferCounters counters) throws IOException {
+		counters.bytes += size;
+		return read(heapTarget);
+	}
+
+	@Benchmark
+	public ByteBuffer fileToDirect(TransferCounters counters) throws IOException {
+		counters.bytes += size;
+		return read(directTarget);
+	}
+
+	private ByteBuffer read(ByteBuffer target) throws IOException {
+		target.clear();
+		while (target.hasRemaining()) {
+			channel.read(target, target.position());
+		}
+		return target;
+	}
+}
@@ -0,0 +1,83 @@
+package ru.ramprox.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.ramprox.storage.FileMetadata;
+import ru.ramprox.storage.Storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Listing a directory of 10 to 1M files: a page and a prefix query from the metadata index
+ * against the former per-request scan of the directory joined into one string.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=1")
+@State(Scope.Benchmark)
+public class ListingBenchmark {
+	private static final int PAGE_SIZE = 1000;
+
+	@Param({"10", "1000", "100000", "1000000"})
+	public int entries;
+
+	private Path dir;
+	private Storage storage;
+	private String prefix;
+
+	@Setup(Level.Trial)
+	public void createFiles() throws IOException {
+		dir = Files.createTempDirectory("bench-listing");
+		for (int i = 0; i < entries; i++) {
+			Files.createFile(dir.resolve(String.format("file-%07d.txt", i)));
+		}
+		storage = new Storage(dir);
+		// shared by ten entries
+		prefix = String.format("file-%07d", entries / 2).substring(0, 11);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFiles() throws IOException {
+		storage.index().close();
+		try (Stream<Path> files = Files.walk(dir)) {
+			for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(file);
+			}
+		}
+	}
+
+	@Benchmark
+	public List<FileMetadata> indexPage() {
+		return storage.index().list("", null, PAGE_SIZE);
+	}
+
+	@Benchmark
+	public List<FileMetadata> indexPrefix() {
+		return storage.index().list(prefix, null, PAGE_SIZE);
+	}
+
+	@Benchmark
+	public String scanAndJoin() {
+		return String.join(" ", new File(dir.toString()).list());
+	}
+}
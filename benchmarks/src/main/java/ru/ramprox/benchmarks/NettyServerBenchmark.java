@@ -0,0 +1,91 @@
+package ru.ramprox.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.ramprox.client.StorageClient;
+import ru.ramprox.netty.NettyBaseServer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Upload and download over loopback with {@link NettyBaseServer} and {@link StorageClient}.
+ * 64 KB files are served from the hot-file cache, 16 MB ones from disk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=1")
+@State(Scope.Benchmark)
+public class NettyServerBenchmark {
+	private static final int PORT = 4000;
+	private static final String DOWNLOAD_NAME = "bench-netty-download.bin";
+
+	@Param({"65536", "16777216"})
+	public int size;
+
+	private Path source;
+
+	@Setup(Level.Trial)
+	public void start() throws Exception {
+		Servers.start("netty-server", PORT, NettyBaseServer::new);
+		source = Files.createTempFile("bench-netty", ".bin");
+		Files.write(source, Servers.random(size));
+		try (StorageClient client = new StorageClient("localhost", PORT)) {
+			client.upload(source, DOWNLOAD_NAME).get();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteSource() throws IOException {
+		Files.deleteIfExists(source);
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+		private static final AtomicInteger threads = new AtomicInteger();
+
+		private final String uploadName = "bench-netty-upload-" + threads.incrementAndGet() + ".bin";
+		private StorageClient client;
+		private Path target;
+
+		@Setup(Level.Trial)
+		public void connect() throws Exception {
+			client = new StorageClient("localhost", PORT);
+			target = Files.createTempFile("bench-netty-target", ".bin");
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			client.close();
+			Files.deleteIfExists(target);
+		}
+	}
+
+	@Benchmark
+	public void upload(Client client, TransferCounters counters) throws ExecutionException, InterruptedException {
+		client.client.upload(source, client.uploadName).get();
+		counters.bytes += size;
+	}
+
+	@Benchmark
+	public void download(Client client, TransferCounters counters) throws ExecutionException, InterruptedException {
+		counters.bytes += client.client.download(DOWNLOAD_NAME, client.target).get();
+	}
+}
@@ -0,0 +1,85 @@
+package ru.ramprox.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.ramprox.nio.NioTelnetServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command round trips over loopback with {@link NioTelnetServer}. It has no file transfer commands,
+ * so the help command, whose reply is a few lines of text, stands for a small transfer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=1")
+@State(Scope.Benchmark)
+public class NioTelnetServerBenchmark {
+	private static final int PORT = 6789;
+	private static final byte[] HELP = "--help\r\n".getBytes(StandardCharsets.UTF_8);
+	private static final int HELP_REPLY = (NioTelnetServer.LS_COMMAND + NioTelnetServer.MKDIR_COMMAND
+			+ NioTelnetServer.CHANGE_NICKNAME).getBytes(StandardCharsets.UTF_8).length;
+	private static final int GREETING = "Hello user!\r\nEnter --help for support info\r\n"
+			.getBytes(StandardCharsets.UTF_8).length;
+
+	@Setup(Level.Trial)
+	public void start() throws Exception {
+		Servers.start("nio-telnet-server", PORT, NioTelnetServer::new);
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+		private final byte[] buffer = new byte[4096];
+		private Socket socket;
+		private OutputStream out;
+		private InputStream in;
+
+		@Setup(Level.Trial)
+		public void connect() throws IOException {
+			socket = new Socket("localhost", PORT);
+			socket.setTcpNoDelay(true);
+			out = socket.getOutputStream();
+			in = socket.getInputStream();
+			read(GREETING);
+		}
+
+		void read(int count) throws IOException {
+			for (int left = count; left > 0; ) {
+				int read = in.read(buffer, 0, Math.min(buffer.length, left));
+				if (read < 0) {
+					throw new IOException("connection closed");
+				}
+				left -= read;
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	@Benchmark
+	public void help(Client client, TransferCounters counters) throws IOException {
+		client.out.write(HELP);
+		client.read(HELP_REPLY);
+		counters.bytes += HELP.length + HELP_REPLY;
+	}
+}
@@ -0,0 +1,45 @@
+package ru.ramprox.benchmarks;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Starts servers of the project in the background, their constructors serve until the process ends.
+ */
+final class Servers {
+	private static final int CONNECT_ATTEMPTS = 100;
+
+	private Servers() {
+	}
+
+	interface Starter {
+		void run() throws Exception;
+	}
+
+	static void start(String name, int port, Starter starter) throws InterruptedException {
+		Thread thread = new Thread(() -> {
+			try {
+				starter.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+		for (int i = 0; i < CONNECT_ATTEMPTS; i++) {
+			try (Socket ignored = new Socket("localhost", port)) {
+				return;
+			} catch (IOException e) {
+				Thread.sleep(100);
+			}
+		}
+		throw new IllegalStateException(name + " is not listening on " + port);
+	}
+
+	static byte[] random(int size) {
+		byte[] data = new byte[size];
+		ThreadLocalRandom.current().nextBytes(data);
+		return data;
+	}
+}
@@ -0,0 +1,21 @@
+package ru.ramprox.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Transferred bytes of a benchmark thread, reported per second next to ops/s.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class TransferCounters {
+	public long bytes;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		bytes = 0;
+	}
+}
@@ -0,0 +1,89 @@
+package ru.ramprox.nio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.ramprox.netty.protocol.Frame;
+import ru.ramprox.netty.protocol.FrameDecoder;
+import ru.ramprox.netty.protocol.Opcode;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recognizing one command line: matching it in the read buffer ({@link TelnetCommand}),
+ * the former char by char StringBuilder with two replaces, and splitting a request off the input
+ * of the Netty server with its {@link FrameDecoder}. In the same package as the NIO server to reach its internals.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParseBenchmark {
+	@Param({"--help", "ls file-", "exit"})
+	public String command;
+
+	private ByteBuffer line;
+	private byte[] frame;
+	private EmbeddedChannel channel;
+
+	@Setup(Level.Trial)
+	public void prepare() {
+		byte[] bytes = (command + "\r\n").getBytes(StandardCharsets.UTF_8);
+		line = ByteBuffer.allocateDirect(bytes.length).put(bytes);
+		line.flip();
+		byte[] name = command.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer request = ByteBuffer.allocate(Frame.LENGTH_FIELD_SIZE + Frame.HEADER_SIZE + name.length);
+		request.putInt(Frame.HEADER_SIZE + name.length).put(Opcode.LIST.code()).putInt(1)
+				.putShort((short) name.length).put(name);
+		frame = request.array();
+		channel = new EmbeddedChannel(new FrameDecoder());
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		channel.finishAndReleaseAll();
+	}
+
+	@Benchmark
+	public TelnetCommand matchBytes() {
+		return TelnetCommand.match(line, 0, line.limit() - 2);
+	}
+
+	@Benchmark
+	public boolean stringBuilderReplace() {
+		line.rewind();
+		StringBuilder sb = new StringBuilder();
+		while (line.hasRemaining()) {
+			sb.append((char) line.get());
+		}
+		String parsed = sb.toString().replace("\n", "").replace("\r", "");
+		return "--help".equals(parsed) || "ls".equals(parsed) || "exit".equals(parsed);
+	}
+
+	@Benchmark
+	public Opcode frameDecoder() {
+		ByteBuf input = PooledByteBufAllocator.DEFAULT.directBuffer(frame.length).writeBytes(frame);
+		channel.writeInbound(input);
+		Frame parsed = channel.readInbound();
+		Opcode opcode = parsed.opcode();
+		parsed.release();
+		return opcode;
+	}
+}
@@ -0,0 +1,361 @@
+package ru.ramprox.client;
+
+import ru.ramprox.netty.Tls;
+import ru.ramprox.server.BlockInputStream;
+import ru.ramprox.server.BlockOutputStream;
+import ru.ramprox.storage.Compression;
+import ru.ramprox.storage.Crc32c;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Client of the blocking {@link ru.ramprox.server.Server}, one command at a time on one connection.
+ * Commands: upload filename | resume filename | download filename [offset [length]]
+ * | uploads pattern... | downloads pattern...
+ * A pattern of a batch is a file or directory name or a glob, e.g. *.txt or docs/**; all its files
+ * are sent in one stream.
+ * With compression on, files worth it travel as a deflate stream.
+ * Local files are in the client directory.
+ */
+public class BlockingClient implements Closeable {
+	private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+
+	private final Socket socket;
+	private final DataOutputStream out;
+	private final DataInputStream in;
+	private volatile boolean compress;
+
+	public BlockingClient(String host, int port) throws IOException {
+		socket = Tls.socket(host, port);
+		out = new DataOutputStream(socket.getOutputStream());
+		in = new DataInputStream(socket.getInputStream());
+	}
+
+	public void setCompression(boolean compress) {
+		this.compress = compress;
+	}
+
+	/**
+	 * Runs one command of the class description.
+	 */
+	public void execute(String[] cmd) {
+		if ("upload".equals(cmd[0])) {
+			sendFile(cmd[1], 0);
+		} else if ("resume".equals(cmd[0])) {
+			resumeFile(cmd[1]);
+		} else if ("download".equals(cmd[0])) {
+			long offset = cmd.length > 2 ? Long.parseLong(cmd[2]) : 0;
+			long length = cmd.length > 3 ? Long.parseLong(cmd[3]) : -1;
+			getFile(cmd[1], offset, length);
+		} else if ("uploads".equals(cmd[0])) {
+			sendFiles(Arrays.copyOfRange(cmd, 1, cmd.length));
+		} else if ("downloads".equals(cmd[0])) {
+			getFiles(Arrays.copyOfRange(cmd, 1, cmd.length));
+		} else {
+			sendMessage(String.join(" ", cmd));
+		}
+	}
+
+	/**
+	 * Downloads length bytes (-1 - up to the end) from offset and writes them at the same offset
+	 * of the local file, so an interrupted download can be continued.
+	 * The bytes are checked against the checksum the server sends after them.
+	 */
+	public void getFile(String filename, long offset, long length) {
+		try {
+			out.writeUTF("download");
+			out.writeUTF(filename);
+			out.writeLong(offset);
+			out.writeLong(length);
+			out.writeByte(compress ? Compression.DEFLATE : Compression.NONE);
+			boolean isFileExist = in.readBoolean();
+			if(!isFileExist) {
+				System.out.println("File" + filename + "not found");
+				in.readUTF();
+				return;
+			}
+			long fileLength = in.readLong();
+			long count = in.readLong();
+			byte encoding = in.readByte();
+			Inflater inflater = encoding == Compression.DEFLATE ? new Inflater(true) : null;
+			InputStream body = inflater != null ? new InflaterInputStream(new BlockInputStream(in), inflater) : in;
+			Checksum checksum = Crc32c.create();
+			InputStream data = new CheckedInputStream(body, checksum);
+			try (FileChannel channel = FileChannel.open(Paths.get("client", filename),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				if (offset == 0 && length < 0) {
+					channel.truncate(0);
+				}
+				long start = Math.min(offset, fileLength);
+				byte[] buffer = new byte[8 * 1024];
+				long pos = 0;
+				while(pos < count) {
+					int read = data.read(buffer, 0, (int) Math.min(buffer.length, count - pos));
+					if (read < 0) {
+						throw new EOFException();
+					}
+					ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+					while (chunk.hasRemaining()) {
+						channel.write(chunk, start + pos + chunk.position());
+					}
+					pos += read;
+				}
+				if (inflater != null) {
+					// skips the end block
+					body.close();
+				}
+			} finally {
+				if (inflater != null) {
+					inflater.end();
+				}
+			}
+			long expected = in.readLong();
+			if (expected != -1 && expected != checksum.getValue()) {
+				System.err.println("Downloaded file " + filename + " is corrupted");
+				out.writeUTF("CORRUPTED");
+				in.readUTF();
+				return;
+			}
+			System.out.println("Downloading file " + filename + " done.");
+			out.writeUTF("OK");
+			in.readUTF();   // необходим, т.к. в методе run класса ClientHandler в конце цикла вызывается out.writeUTF(command);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Downloads the files matching the patterns in one stream, each is checked against its checksum.
+	 */
+	public void getFiles(String[] patterns) {
+		try {
+			out.writeUTF("downloads");
+			out.writeInt(patterns.length);
+			for (String pattern : patterns) {
+				out.writeUTF(pattern);
+			}
+			out.flush();
+			// nothing follows the batch but the reply to the command, read from the same buffer
+			DataInputStream batch = new DataInputStream(new BufferedInputStream(in, BATCH_BUFFER_SIZE));
+			byte[] buffer = new byte[BATCH_BUFFER_SIZE];
+			int count = 0;
+			List<String> failed = new ArrayList<>();
+			while (batch.readBoolean()) {
+				String filename = batch.readUTF();
+				long length = batch.readLong();
+				Path file = Paths.get("client").resolve(filename);
+				Checksum checksum = Crc32c.create();
+				Files.createDirectories(file.getParent());
+				try (OutputStream target = Files.newOutputStream(file)) {
+					for (long received = 0; received < length; ) {
+						int read = batch.read(buffer, 0, (int) Math.min(buffer.length, length - received));
+						if (read < 0) {
+							throw new EOFException();
+						}
+						checksum.update(buffer, 0, read);
+						target.write(buffer, 0, read);
+						received += read;
+					}
+				}
+				long expected = batch.readLong();
+				if (expected != -1 && expected != checksum.getValue()) {
+					failed.add(filename + " CORRUPTED");
+				}
+				count++;
+			}
+			batch.readUTF();
+			System.out.println("Downloading " + count + " files done, failed: " + failed);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Uploads the local files matching the patterns in one stream, packed back to back.
+	 */
+	public void sendFiles(String[] patterns) {
+		try {
+			Path root = Paths.get("client");
+			Set<Path> files = new LinkedHashSet<>();
+			for (String pattern : patterns) {
+				PathMatcher glob = root.getFileSystem().getPathMatcher("glob:" + pattern);
+				Path named = root.resolve(pattern);
+				try (Stream<Path> walk = Files.walk(Files.isDirectory(named) ? named : root)) {
+					walk.filter(Files::isRegularFile)
+							.filter(file -> file.startsWith(named) || glob.matches(root.relativize(file)))
+							.forEach(files::add);
+				}
+			}
+			out.writeUTF("uploads");
+			DataOutputStream batch = new DataOutputStream(new BufferedOutputStream(out, BATCH_BUFFER_SIZE));
+			byte[] buffer = new byte[BATCH_BUFFER_SIZE];
+			for (Path file : files) {
+				try (InputStream source = Files.newInputStream(file)) {
+					long length = Files.size(file);
+					Checksum checksum = Crc32c.create();
+					batch.writeBoolean(true);
+					batch.writeUTF(root.relativize(file).toString().replace(File.separatorChar, '/'));
+					batch.writeLong(length);
+					for (long sent = 0; sent < length; ) {
+						int read = source.read(buffer, 0, (int) Math.min(buffer.length, length - sent));
+						if (read < 0) {
+							throw new EOFException("File " + file + " was truncated");
+						}
+						checksum.update(buffer, 0, read);
+						batch.write(buffer, 0, read);
+						sent += read;
+					}
+					batch.writeLong(checksum.getValue());
+				}
+			}
+			batch.writeBoolean(false);
+			batch.flush();
+			DataInputStream reply = new DataInputStream(new BufferedInputStream(in, BATCH_BUFFER_SIZE));
+			int count = reply.readInt();
+			List<String> failed = new ArrayList<>();
+			for (int i = 0; i < count; i++) {
+				String filename = reply.readUTF();
+				String status = reply.readUTF();
+				if (!"OK".equals(status)) {
+					failed.add(filename + " " + status);
+				}
+			}
+			reply.readUTF();
+			System.out.println("Uploading " + count + " files done, failed: " + failed);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Asks the server how much of the file it already has and sends the rest.
+	 */
+	public void resumeFile(String filename) {
+		try {
+			out.writeUTF("resumable");
+			out.writeUTF(filename);
+			long remoteLength = in.readLong();
+			in.readUTF();
+			long localLength = new File("client/" + filename).length();
+			sendFile(filename, remoteLength > 0 && remoteLength <= localLength ? remoteLength : 0);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void sendFile(String filename, long offset) {
+		try (FileChannel channel = FileChannel.open(Paths.get("client", filename), StandardOpenOption.READ)) {
+			long length = channel.size() - offset;
+			boolean compressed = compress && Compression.worth(filename, length);
+
+			out.writeUTF("upload");
+			out.writeUTF(filename);
+			out.writeLong(offset);
+			out.writeLong(length);
+			out.writeByte(compressed ? Compression.DEFLATE : Compression.NONE);
+
+			Deflater deflater = compressed ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+			OutputStream data = compressed
+					? new DeflaterOutputStream(new BlockOutputStream(out), deflater, 64 * 1024) : out;
+			Checksum checksum = Crc32c.create();
+			try {
+				ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+				long position = offset;
+				while (position < offset + length) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), offset + length - position));
+					int read = channel.read(buffer, position);
+					if (read < 0) {
+						throw new EOFException();
+					}
+					checksum.update(buffer.array(), 0, read);
+					data.write(buffer.array(), 0, read);
+					position += read;
+				}
+				if (compressed) {
+					// writes the end block
+					data.close();
+				}
+			} finally {
+				if (deflater != null) {
+					deflater.end();
+				}
+			}
+
+			out.writeLong(checksum.getValue());
+			out.flush();
+
+			String status = in.readUTF();
+			in.readUTF();
+			System.out.println("Sending status: " + status);
+		} catch (NoSuchFileException e) {
+			System.err.println("File not found - /client/" + filename);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * message sending
+	 * @param message String
+	 */
+	public void sendMessage(String message) {
+		try {
+			out.writeUTF(message);
+			String command = in.readUTF();
+//			if ("done".equalsIgnoreCase(command)) {
+//
+//			}
+			System.out.println(command);
+		} catch (EOFException eofException) {
+			System.err.println("Reading command error from " + socket.getInetAddress());
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sends exit and closes the connection.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			sendMessage("exit");
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Headless use from scripts: [-z] command [arguments], -z turns compression on.
+	 */
+	public static void main(String[] args) throws IOException {
+		boolean compress = args.length > 0 && "-z".equals(args[0]);
+		try (BlockingClient client = new BlockingClient("localhost", 6789)) {
+			client.setCompression(compress);
+			client.execute(compress ? Arrays.copyOfRange(args, 1, args.length) : args);
+		}
+	}
+}
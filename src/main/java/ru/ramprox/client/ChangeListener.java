@@ -0,0 +1,24 @@
+package ru.ramprox.client;
+
+/**
+ * Changes of the server listing, see {@link StorageClient#subscribe}.
+ * It is called on the event loop of the connection, so it must not block.
+ */
+public interface ChangeListener {
+	/**
+	 * Everything known of the listing is stale, the whole listing follows as {@link #changed} entries.
+	 */
+	void reset();
+
+	/**
+	 * The entry was created or modified.
+	 */
+	void changed(RemoteFile file);
+
+	void deleted(String name);
+
+	/**
+	 * All changes up to the sequence have been delivered, a new subscription resumes from here.
+	 */
+	void synced(long epoch, long sequence);
+}
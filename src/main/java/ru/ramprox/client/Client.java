@@ -4,38 +4,75 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.*;
-import java.net.Socket;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
- * Swing client - File Storage
- * Client command: upload filename | download filename
+ * Swing client - File Storage, a thin front of {@link StoragePool}.
+ * Commands only start transfers, they run on the connections of the pool, several at once,
+ * and the progress bar sums up the running ones. For the blocking server see {@link BlockingClient}.
+ * Client command: upload filename | resume filename | download filename [offset [length]] | list [prefix]
+ * | uploads pattern... | downloads pattern...
+ * A pattern of a batch is a file or directory name or a glob, e.g. *.txt or docs/**.
+ * With "Compress" checked, files worth it travel as a deflate stream.
  */
 
 public class Client extends JFrame {
-	private final Socket socket;
-	private final DataOutputStream out;
-	private final DataInputStream in;
-
-	public Client() throws IOException {
-		// init
-		socket = new Socket("localhost", 6789);
-		out = new DataOutputStream(socket.getOutputStream());
-		in = new DataInputStream(socket.getInputStream());
-
+	private static final int POOL_SIZE = 4;
+
+	private final StoragePool pool = new StoragePool("localhost", 4000, POOL_SIZE);
+	// listings come from here, pushed by the server, instead of asking for them again and again
+	private final RemoteDirectory directory = pool.watch();
+	private final Path root = Paths.get("client");
+	private final JCheckBox compress = new JCheckBox("Compress");
+	private final JProgressBar progressBar = new JProgressBar(0, 1000);
+	// event dispatch thread only; transferred and total bytes of every running transfer
+	private final Set<long[]> transfers = new HashSet<>();
+
+	public Client() {
 		// create form
 		setSize(300, 300);
-		JPanel panel = new JPanel(new GridLayout(2, 1));
+		JPanel panel = new JPanel(new GridLayout(4, 1));
 
 		JButton btnSend = new JButton("SEND");
 		JTextField textField = new JTextField();
 
 		btnSend.addActionListener(a -> {
 			String[] cmd = textField.getText().split(" ");
+			pool.setCompression(compress.isSelected());
 			if ("upload".equals(cmd[0])) {
-				sendFile(cmd[1]);
+				report("Sending " + cmd[1], track(progress -> pool.upload(root.resolve(cmd[1]), cmd[1], progress)));
+			} else if ("resume".equals(cmd[0])) {
+				report("Resuming " + cmd[1], track(progress -> pool.resume(root.resolve(cmd[1]), cmd[1], progress)));
 			} else if ("download".equals(cmd[0])) {
-				getFile(cmd[1]);
+				long offset = cmd.length > 2 ? Long.parseLong(cmd[2]) : 0;
+				long length = cmd.length > 3 ? Long.parseLong(cmd[3]) : -1;
+				report("Downloading file " + cmd[1],
+						track(progress -> pool.download(cmd[1], root.resolve(cmd[1]), offset, length, progress)));
+			} else if ("list".equals(cmd[0])) {
+				String prefix = cmd.length > 1 ? cmd[1] : "";
+				report("Listing", directory.ready().thenRun(() -> directory.list(prefix).forEach(System.out::println)));
+			} else if ("uploads".equals(cmd[0])) {
+				sendFiles(Arrays.copyOfRange(cmd, 1, cmd.length));
+			} else if ("downloads".equals(cmd[0])) {
+				getFiles(Arrays.copyOfRange(cmd, 1, cmd.length));
 			}
 
 		});
@@ -44,12 +81,18 @@ public class Client extends JFrame {
 			@Override
 			public void windowClosing(WindowEvent e) {
 				super.windowClosing(e);
-				sendMessage("exit");
+				directory.close();
+				pool.close();
 			}
 		});
 
+		progressBar.setStringPainted(true);
+		showProgress();
+
 		panel.add(textField);
+		panel.add(compress);
 		panel.add(btnSend);
+		panel.add(progressBar);
 
 		add(panel);
 
@@ -57,89 +100,126 @@ public class Client extends JFrame {
 		setVisible(true);
 	}
 
-	private void getFile(String filename) {
-		try {
-			out.writeUTF("download");
-			out.writeUTF(filename);
-			boolean isFileExist = in.readBoolean();
-			if(!isFileExist) {
-				System.out.println("File" + filename + "not found");
-				return;
-			}
-			File file = new File("client/" + filename);
-			if(!file.exists()) {
-				file.createNewFile();
+	/**
+	 * Uploads the local files matching the patterns, all at once.
+	 */
+	private void sendFiles(String[] patterns) {
+		CompletableFuture<List<String>> failed = CompletableFuture
+				.supplyAsync(() -> localFiles(patterns))
+				.thenCompose(files -> all(files.stream()
+						.map(file -> {
+							String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+							return failure(name, track(progress -> pool.upload(file, name, progress)));
+						})
+						.collect(Collectors.toList())));
+		report("Uploading", failed.thenAccept(names -> System.out.println("Failed: " + names)));
+	}
+
+	/**
+	 * Downloads the server files matching the patterns, all at once.
+	 */
+	private void getFiles(String[] patterns) {
+		CompletableFuture<List<String>> failed = directory.ready().thenCompose(v -> {
+			List<CompletableFuture<String>> downloads = new ArrayList<>();
+			for (RemoteFile file : directory.list("")) {
+				if (!file.isDirectory() && matches(file.getName(), patterns)) {
+					Path target = root.resolve(file.getName());
+					downloads.add(failure(file.getName(), track(progress -> pool.download(file.getName(), target, 0, -1, progress))));
+				}
 			}
-			FileOutputStream fos = new FileOutputStream(file);
-			long size = in.readLong();
-			byte[] buffer = new byte[8 * 1024];
-			long pos = 0;
-			while(pos < size) {
-				int read = in.read(buffer);
-				fos.write(buffer, 0, read);
-				pos += read;
+			return all(downloads);
+		});
+		report("Downloading", failed.thenAccept(names -> System.out.println("Failed: " + names)));
+	}
+
+	private Set<Path> localFiles(String[] patterns) {
+		Set<Path> files = new LinkedHashSet<>();
+		for (String pattern : patterns) {
+			PathMatcher glob = root.getFileSystem().getPathMatcher("glob:" + pattern);
+			Path named = root.resolve(pattern);
+			try (Stream<Path> walk = Files.walk(Files.isDirectory(named) ? named : root)) {
+				walk.filter(Files::isRegularFile)
+						.filter(file -> file.startsWith(named) || glob.matches(root.relativize(file)))
+						.forEach(files::add);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
 			}
-			fos.close();
-			System.out.println("Downloading file " + filename + " done.");
-			out.writeUTF("OK");
-			in.readUTF();   // необходим, т.к. в методе run класса ClientHandler в конце цикла вызывается out.writeUTF(command);
-		} catch (IOException ex) {
-			ex.printStackTrace();
 		}
+		return files;
 	}
 
-	private void sendFile(String filename) {
-		try {
-			File file = new File("client/" + filename);
-			if (!file.exists()) {
-				throw new FileNotFoundException();
+	private boolean matches(String name, String[] patterns) {
+		for (String pattern : patterns) {
+			PathMatcher glob = root.getFileSystem().getPathMatcher("glob:" + pattern);
+			if (name.equals(pattern) || name.startsWith(pattern + "/") || glob.matches(Paths.get(name))) {
+				return true;
 			}
+		}
+		return false;
+	}
 
-			long fileLength = file.length();
-			FileInputStream fis = new FileInputStream(file);
+	/**
+	 * @return the name and the reason if the transfer fails, null otherwise
+	 */
+	private static CompletableFuture<String> failure(String name, CompletableFuture<?> transfer) {
+		return transfer.handle((result, error) -> error == null ? null : name + " " + cause(error).getMessage());
+	}
 
-			out.writeUTF("upload");
-			out.writeUTF(filename);
-			out.writeLong(fileLength);
+	private static CompletableFuture<List<String>> all(List<CompletableFuture<String>> failures) {
+		return CompletableFuture.allOf(failures.toArray(new CompletableFuture<?>[0]))
+				.thenApply(v -> failures.stream()
+						.map(CompletableFuture::join)
+						.filter(Objects::nonNull)
+						.collect(Collectors.toList()));
+	}
 
-			int read = 0;
-			byte[] buffer = new byte[8 * 1024];
-			while ((read = fis.read(buffer)) != -1) {
-				out.write(buffer, 0, read);
+	private static void report(String action, CompletableFuture<?> future) {
+		future.whenComplete((result, error) -> {
+			if (error == null) {
+				System.out.println(action + " done.");
+			} else {
+				System.err.println(action + " failed: " + cause(error));
 			}
+		});
+	}
 
-			out.flush();
-
-			String status = in.readUTF();
-			System.out.println("Sending status: " + status);
-		} catch (FileNotFoundException e) {
-			System.err.println("File not found - /client/" + filename);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+	private static Throwable cause(Throwable error) {
+		return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
 	}
 
 	/**
-	 * message sending
-	 * @param message String
+	 * Starts the transfer with a progress shown in the progress bar while it runs; may be called from any thread.
 	 */
-	private void sendMessage(String message) {
-		try {
-			out.writeUTF(message);
-			String command = in.readUTF();
-//			if ("done".equalsIgnoreCase(command)) {
-//
-//			}
-			System.out.println(command);
-		} catch (EOFException eofException) {
-			System.err.println("Reading command error from " + socket.getInetAddress());
-		}
-		catch (IOException e) {
-			e.printStackTrace();
+	private <T> CompletableFuture<T> track(Function<Progress, CompletableFuture<T>> start) {
+		long[] state = new long[2];
+		SwingUtilities.invokeLater(() -> {
+			transfers.add(state);
+			showProgress();
+		});
+		CompletableFuture<T> transfer = start.apply((transferred, total) -> SwingUtilities.invokeLater(() -> {
+			state[0] = transferred;
+			state[1] = total;
+			showProgress();
+		}));
+		transfer.whenComplete((result, error) -> SwingUtilities.invokeLater(() -> {
+			transfers.remove(state);
+			showProgress();
+		}));
+		return transfer;
+	}
+
+	private void showProgress() {
+		long transferred = 0;
+		long total = 0;
+		for (long[] state : transfers) {
+			transferred += state[0];
+			total += state[1];
 		}
+		progressBar.setValue(total > 0 ? (int) (transferred * progressBar.getMaximum() / total) : 0);
+		progressBar.setString(transfers.isEmpty() ? "idle" : transfers.size() + " running, " + progressBar.getValue() / 10 + "%");
 	}
 
-	public static void main(String[] args) throws IOException {
-		new Client();
+	public static void main(String[] args) {
+		SwingUtilities.invokeLater(Client::new);
 	}
 }
@@ -0,0 +1,115 @@
+package ru.ramprox.client;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Transfers a large file over several connections at once, every connection carries one byte range.
+ * A single TCP stream rarely fills a long fat link, several of them do.
+ * <p>
+ * Both directions write the ranges into a preallocated staging file
+ * that replaces the target atomically once all ranges are done.
+ */
+public class ParallelTransfer implements Closeable {
+	/** files smaller than this per stream use fewer streams */
+	private static final long MIN_RANGE_SIZE = 8 * 1024 * 1024;
+
+	private final List<StorageClient> clients = new ArrayList<>();
+
+	public ParallelTransfer(String host, int port, int streams) throws InterruptedException {
+		try {
+			for (int i = 0; i < streams; i++) {
+				clients.add(new StorageClient(host, port));
+			}
+		} catch (InterruptedException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public CompletableFuture<Void> upload(Path file, String name) {
+		long size;
+		try {
+			size = Files.size(file);
+		} catch (IOException e) {
+			return failed(e);
+		}
+		StorageClient first = clients.get(0);
+		return first.prepare(name, size)
+				.thenCompose(v -> {
+					List<CompletableFuture<Void>> ranges = new ArrayList<>();
+					forEachRange(size, (client, offset, length) ->
+							ranges.add(client.uploadStaged(file, name, offset, length)));
+					return CompletableFuture.allOf(ranges.toArray(new CompletableFuture<?>[0]));
+				})
+				.thenCompose(v -> first.commit(name, size));
+	}
+
+	/**
+	 * @return size of the downloaded file
+	 */
+	public CompletableFuture<Long> download(String name, Path target) {
+		Path staged = target.resolveSibling("." + target.getFileName() + ".part");
+		// preallocating blocks, so not on the event loop that completes the stat
+		return clients.get(0).stat(name)
+				.thenComposeAsync(size -> {
+					if (size < 0) {
+						return failed(new FileNotFoundException(name));
+					}
+					try (RandomAccessFile out = new RandomAccessFile(staged.toFile(), "rw")) {
+						out.setLength(0);
+						out.setLength(size);
+					} catch (IOException e) {
+						return failed(e);
+					}
+					List<CompletableFuture<Long>> ranges = new ArrayList<>();
+					forEachRange(size, (client, offset, length) ->
+							ranges.add(client.download(name, staged, offset, length)));
+					return CompletableFuture.allOf(ranges.toArray(new CompletableFuture<?>[0]))
+							.thenApply(v -> {
+								try {
+									Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE,
+											StandardCopyOption.REPLACE_EXISTING);
+								} catch (IOException e) {
+									throw new CompletionException(e);
+								}
+								return size;
+							});
+				});
+	}
+
+	private interface RangeConsumer {
+		void accept(StorageClient client, long offset, long length);
+	}
+
+	private void forEachRange(long size, RangeConsumer consumer) {
+		int streams = (int) Math.max(1, Math.min(clients.size(), size / MIN_RANGE_SIZE));
+		long rangeSize = (size + streams - 1) / streams;
+		for (int i = 0; i < streams; i++) {
+			long offset = Math.min(size, i * rangeSize);
+			consumer.accept(clients.get(i), offset, Math.min(rangeSize, size - offset));
+		}
+	}
+
+	private static <T> CompletableFuture<T> failed(Throwable e) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(e);
+		return future;
+	}
+
+	@Override
+	public void close() {
+		for (StorageClient client : clients) {
+			client.close();
+		}
+	}
+}
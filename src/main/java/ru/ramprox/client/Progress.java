@@ -0,0 +1,17 @@
+package ru.ramprox.client;
+
+/**
+ * Progress of one transfer of {@link StorageClient}.
+ * It is called on the event loop of the connection after every chunk, so it must not block;
+ * a UI hands the numbers over to its own thread.
+ */
+public interface Progress {
+	Progress NONE = (transferred, total) -> {
+	};
+
+	/**
+	 * @param transferred bytes of the file sent or received so far, uncompressed
+	 * @param total bytes of the file the transfer carries
+	 */
+	void update(long transferred, long total);
+}
@@ -0,0 +1,112 @@
+package ru.ramprox.client;
+
+import io.netty.channel.EventLoopGroup;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copy of the server listing, kept current by a subscription to its changes instead of polling LIST
+ * (see {@link ru.ramprox.netty.handlers.FeedHandler}), so that looking at it costs the server nothing.
+ * After the connection is lost it reconnects and resumes after the last change it has; if the server
+ * doesn't keep those anymore, it gets the whole listing again and keeps the old copy until that has come.
+ */
+public class RemoteDirectory implements ChangeListener, Closeable {
+	private static final long RECONNECT_DELAY = 1;
+
+	private final EventLoopGroup group;
+	private final String host;
+	private final int port;
+	private final CompletableFuture<Void> ready = new CompletableFuture<>();
+	private volatile ConcurrentSkipListMap<String, RemoteFile> files = new ConcurrentSkipListMap<>();
+	// changed by the subscription only, read when it is renewed
+	private volatile ConcurrentSkipListMap<String, RemoteFile> incoming;
+	private volatile long epoch;
+	private volatile long sequence = -1;
+	private volatile StorageClient client;
+	private volatile boolean closed;
+
+	RemoteDirectory(EventLoopGroup group, String host, int port) {
+		this.group = group;
+		this.host = host;
+		this.port = port;
+		subscribe();
+	}
+
+	private void subscribe() {
+		if (closed) {
+			return;
+		}
+		StorageClient client = new StorageClient(group, host, port);
+		this.client = client;
+		client.subscribe(epoch, sequence, this).whenComplete((v, e) -> {
+			client.close();
+			if (!closed) {
+				group.schedule(this::subscribe, RECONNECT_DELAY, TimeUnit.SECONDS);
+			}
+		});
+	}
+
+	/**
+	 * @return completes once the first listing has come
+	 */
+	public CompletableFuture<Void> ready() {
+		return ready;
+	}
+
+	/**
+	 * @return entries whose names start with the prefix, sorted by name
+	 */
+	public List<RemoteFile> list(String prefix) {
+		List<RemoteFile> list = new ArrayList<>();
+		for (RemoteFile file : files.tailMap(prefix).values()) {
+			if (!file.getName().startsWith(prefix)) {
+				break;
+			}
+			list.add(file);
+		}
+		return list;
+	}
+
+	@Override
+	public void reset() {
+		incoming = new ConcurrentSkipListMap<>();
+		// until the whole listing has come, a new subscription starts over
+		epoch = 0;
+		sequence = -1;
+	}
+
+	@Override
+	public void changed(RemoteFile file) {
+		(incoming != null ? incoming : files).put(file.getName(), file);
+	}
+
+	@Override
+	public void deleted(String name) {
+		(incoming != null ? incoming : files).remove(name);
+	}
+
+	@Override
+	public void synced(long epoch, long sequence) {
+		if (incoming != null) {
+			files = incoming;
+			incoming = null;
+		}
+		this.epoch = epoch;
+		this.sequence = sequence;
+		ready.complete(null);
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		StorageClient client = this.client;
+		if (client != null) {
+			client.close();
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package ru.ramprox.client;
+
+/**
+ * Entry of a server listing, size is -1 for directories.
+ */
+public class RemoteFile {
+	private final String name;
+	private final long size;
+	private final long modified;
+
+	public RemoteFile(String name, long size, long modified) {
+		this.name = name;
+		this.size = size;
+		this.modified = modified;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return last modification time, milliseconds since the epoch
+	 */
+	public long getModified() {
+		return modified;
+	}
+
+	public boolean isDirectory() {
+		return size < 0;
+	}
+
+	@Override
+	public String toString() {
+		return isDirectory() ? name + "/" : name + " " + size;
+	}
+}
@@ -0,0 +1,1123 @@
+package ru.ramprox.client;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import ru.ramprox.netty.Tls;
+import ru.ramprox.netty.Transport;
+import ru.ramprox.netty.handlers.FeedHandler;
+import ru.ramprox.netty.handlers.StorageHandler;
+import ru.ramprox.netty.handlers.UploadHandler;
+import ru.ramprox.netty.protocol.Frame;
+import ru.ramprox.netty.protocol.FrameDecoder;
+import ru.ramprox.netty.protocol.FrameEncoder;
+import ru.ramprox.netty.protocol.Opcode;
+import ru.ramprox.storage.ChangeFeed;
+import ru.ramprox.storage.ChunkStore;
+import ru.ramprox.storage.Compression;
+import ru.ramprox.storage.Crc32c;
+import ru.ramprox.storage.Chunker;
+import ru.ramprox.storage.DeltaEncoder;
+import ru.ramprox.storage.Manifest;
+import ru.ramprox.storage.Signature;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Client of {@link ru.ramprox.netty.NettyBaseServer}.
+ * Requests are pipelined: every request gets its own id and replies are matched by it,
+ * so uploads, downloads and listings may run on one connection at the same time.
+ * <p>
+ * With {@link #setCompression(boolean)} plain uploads and downloads of files worth it are sent deflated,
+ * see {@link Compression}.
+ * <p>
+ * Uploads and downloads are verified end to end: a {@link Crc32c} of the DATA payloads follows them
+ * in a CHECKSUM frame, and a transfer whose bytes don't match fails instead of leaving a corrupted file.
+ * <p>
+ * Nothing blocks but the public constructor, which waits for the connection, and {@link #close()}:
+ * every method returns a future completed on the event loop, uploads and downloads report
+ * their {@link Progress}. {@link StoragePool} keeps several connections on one event loop group.
+ * <p>
+ * The connection is encrypted if TLS is on for clients, see {@link Tls}.
+ */
+public class StorageClient implements Closeable {
+	private static final int DATA_CHUNK_SIZE = 256 * 1024;
+	private static final int HASHES_PER_FRAME = Frame.MAX_PAYLOAD_LENGTH / ChunkStore.HASH_SIZE;
+	private static final int ENTRIES_PER_FRAME = (Frame.MAX_PAYLOAD_LENGTH - 1) / Manifest.ENTRY_SIZE;
+	private static final int CHUNK_WINDOW = 16;
+	private static final int PATCH_SIZE = 256 * 1024;
+
+	private final EventLoopGroup group;
+	private final boolean ownsGroup;
+	private final ChannelFuture connected;
+	private final Channel channel;
+	private final AtomicInteger ids = new AtomicInteger();
+	private final AtomicInteger pending = new AtomicInteger();
+	private volatile boolean compression;
+	// event loop only
+	private final IntObjectMap<Request<?>> requests = new IntObjectHashMap<>();
+
+	public StorageClient(String host, int port) throws InterruptedException {
+		this(Transport.group(1), true, host, port);
+		try {
+			connected.sync();
+		} catch (InterruptedException | RuntimeException e) {
+			group.shutdownGracefully();
+			throw e;
+		}
+	}
+
+	/**
+	 * Connects on a shared group without waiting, requests wait for the connection instead.
+	 */
+	StorageClient(EventLoopGroup group, String host, int port) {
+		this(group, false, host, port);
+	}
+
+	private StorageClient(EventLoopGroup group, boolean ownsGroup, String host, int port) {
+		this.group = group;
+		this.ownsGroup = ownsGroup;
+		SslContext ssl;
+		try {
+			ssl = Tls.client();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		connected = Transport.configure(new Bootstrap())
+				.group(group)
+				.handler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel ch) throws Exception {
+						if (ssl != null) {
+							ch.pipeline().addLast(Tls.clientHandler(ssl, ch.alloc(), host, port));
+						}
+						ch.pipeline().addLast(
+								new FrameDecoder(),
+								new FrameEncoder(),
+								new ChunkedWriteHandler(),
+								new ResponseHandler()
+						);
+					}
+				})
+				.connect(host, port);
+		channel = connected.channel();
+	}
+
+	/**
+	 * @return false once the connection failed or was closed
+	 */
+	public boolean isOpen() {
+		return !connected.isDone() || channel.isActive();
+	}
+
+	/**
+	 * @return number of requests sent and not complete yet
+	 */
+	public int pending() {
+		return pending.get();
+	}
+
+	/**
+	 * Turns compression of the following uploads and downloads on or off.
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public CompletableFuture<Void> upload(Path file, String name) {
+		return upload(file, name, 0, -1);
+	}
+
+	public CompletableFuture<Void> upload(Path file, String name, Progress progress) {
+		return upload(file, name, 0, -1, progress);
+	}
+
+	/**
+	 * Sends length bytes (-1 - up to the end) of the local file from offset to the same offset of the remote one.
+	 * Offset 0 replaces the remote file, a larger one continues an interrupted upload of it (see {@link #resume}).
+	 */
+	public CompletableFuture<Void> upload(Path file, String name, long offset, long length) {
+		return upload(file, name, offset, length, Progress.NONE);
+	}
+
+	public CompletableFuture<Void> upload(Path file, String name, long offset, long length, Progress progress) {
+		return submit(new Upload(file, name, offset, length, compression ? UploadHandler.DEFLATE : 0, progress));
+	}
+
+	/**
+	 * Range upload into the staging file of a parallel transfer, see {@link ParallelTransfer}.
+	 */
+	CompletableFuture<Void> uploadStaged(Path file, String name, long offset, long length) {
+		return submit(new Upload(file, name, offset, length, UploadHandler.STAGED, Progress.NONE));
+	}
+
+	CompletableFuture<Void> prepare(String name, long size) {
+		return submit(new Command(Opcode.PREPARE, name, size));
+	}
+
+	CompletableFuture<Void> commit(String name, long size) {
+		return submit(new Command(Opcode.COMMIT, name, size));
+	}
+
+	/**
+	 * Continues an interrupted upload from the size the server already has.
+	 */
+	public CompletableFuture<Void> resume(Path file, String name) {
+		return resume(file, name, Progress.NONE);
+	}
+
+	/**
+	 * The progress counts the bytes of the rest only.
+	 */
+	public CompletableFuture<Void> resume(Path file, String name, Progress progress) {
+		return submit(new Stat(name, StorageHandler.RESUMABLE)).thenCompose(remoteSize -> {
+			long offset;
+			try {
+				offset = remoteSize > 0 && remoteSize <= Files.size(file) ? remoteSize : 0;
+			} catch (IOException e) {
+				CompletableFuture<Void> failed = new CompletableFuture<>();
+				failed.completeExceptionally(e);
+				return failed;
+			}
+			return upload(file, name, offset, -1, progress);
+		});
+	}
+
+	/**
+	 * Uploads the file as content-defined chunks, sending only the chunks the server doesn't have yet.
+	 * @return number of bytes actually sent
+	 */
+	public CompletableFuture<Long> uploadDeduplicated(Path file, String name) {
+		return CompletableFuture.supplyAsync(() -> {
+			try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+				return Chunker.split(source);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}).thenCompose(chunks -> {
+			List<CompletableFuture<boolean[]>> queries = new ArrayList<>();
+			for (int from = 0; from < chunks.size(); from += HASHES_PER_FRAME) {
+				queries.add(submit(new Have(chunks.subList(from, Math.min(chunks.size(), from + HASHES_PER_FRAME)))));
+			}
+			return CompletableFuture.allOf(queries.toArray(new CompletableFuture<?>[0])).thenCompose(v -> {
+				List<Chunker.Chunk> missing = new ArrayList<>();
+				for (int i = 0; i < chunks.size(); i++) {
+					if (!queries.get(i / HASHES_PER_FRAME).join()[i % HASHES_PER_FRAME]) {
+						missing.add(chunks.get(i));
+					}
+				}
+				return sendChunks(file, missing)
+						.thenCompose(sent -> submit(new ManifestUpload(name, chunks)).thenApply(done -> sent));
+			});
+		});
+	}
+
+	/**
+	 * Uploads a modified file by sending only what differs from the server version (rsync-like):
+	 * the server sends block signatures of its version, the client answers with block copies and literals.
+	 * Without a server version the file is uploaded as a whole. The delta fails if the server version changes
+	 * after it was signed.
+	 * @return number of literal bytes sent
+	 */
+	public CompletableFuture<Long> uploadDelta(Path file, String name) {
+		SignatureRequest request = new SignatureRequest(name);
+		return submit(request).thenCompose(signature -> {
+			if (signature == null) {
+				return upload(file, name).thenCompose(v -> stat(name));
+			}
+			return CompletableFuture.supplyAsync(() -> {
+				try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+					DeltaUpload delta = new DeltaUpload(name, source.size(), signature.size(), request.modified,
+							checksum(source));
+					CompletableFuture<Void> done = submit(delta);
+					long literals = delta.send(source, signature);
+					return done.thenApply(v -> literals);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}).thenCompose(f -> f);
+		});
+	}
+
+	/**
+	 * Keeps up to CHUNK_WINDOW chunk uploads in flight.
+	 */
+	private CompletableFuture<Long> sendChunks(Path file, List<Chunker.Chunk> chunks) {
+		AtomicInteger next = new AtomicInteger();
+		List<CompletableFuture<Long>> lanes = new ArrayList<>();
+		for (int i = 0; i < CHUNK_WINDOW; i++) {
+			lanes.add(sendNextChunk(file, chunks, next, 0));
+		}
+		return CompletableFuture.allOf(lanes.toArray(new CompletableFuture<?>[0]))
+				.thenApply(v -> lanes.stream().mapToLong(CompletableFuture::join).sum());
+	}
+
+	private CompletableFuture<Long> sendNextChunk(Path file, List<Chunker.Chunk> chunks, AtomicInteger next, long sent) {
+		int index = next.getAndIncrement();
+		if (index >= chunks.size()) {
+			return CompletableFuture.completedFuture(sent);
+		}
+		Chunker.Chunk chunk = chunks.get(index);
+		return submit(new ChunkUpload(file, chunk))
+				.thenCompose(v -> sendNextChunk(file, chunks, next, sent + chunk.getLength()));
+	}
+
+	/**
+	 * @return size of the remote file, -1 if there is no such file
+	 */
+	public CompletableFuture<Long> stat(String name) {
+		return submit(new Stat(name, 0));
+	}
+
+	/**
+	 * @return size of the downloaded file
+	 */
+	public CompletableFuture<Long> download(String name, Path target) {
+		return download(name, target, 0, -1);
+	}
+
+	public CompletableFuture<Long> download(String name, Path target, Progress progress) {
+		return download(name, target, 0, -1, progress);
+	}
+
+	/**
+	 * Downloads length bytes (-1 - up to the end) from offset into the same offset of the target file.
+	 * A whole file is downloaded into a hidden staging file next to the target, which replaces the target
+	 * only once the checksum matches; a range is written into the target itself.
+	 * @return number of downloaded bytes
+	 */
+	public CompletableFuture<Long> download(String name, Path target, long offset, long length) {
+		return download(name, target, offset, length, Progress.NONE);
+	}
+
+	public CompletableFuture<Long> download(String name, Path target, long offset, long length, Progress progress) {
+		return submit(new Download(name, target, offset, length, compression, progress));
+	}
+
+	public CompletableFuture<List<RemoteFile>> list() {
+		return list("", null, 0);
+	}
+
+	/**
+	 * One page of the listing, sorted by name.
+	 * @param prefix only names starting with it
+	 * @param after only names after it (the last name of the previous page), null - from the first one
+	 * @param limit page size, 0 - no limit
+	 */
+	public CompletableFuture<List<RemoteFile>> list(String prefix, String after, int limit) {
+		return submit(new Listing(prefix, after, limit));
+	}
+
+	/**
+	 * Subscribes to changes of the server listing, pushed by the server instead of polled with LIST.
+	 * The listener gets them for as long as the connection is open; the returned future never completes,
+	 * it fails when the connection is lost. A new subscription resumes from the last position the listener
+	 * got, or from epoch 0 for the whole listing.
+	 */
+	public CompletableFuture<Void> subscribe(long epoch, long sequence, ChangeListener listener) {
+		return submit(new Subscription(epoch, sequence, listener));
+	}
+
+	private <T> CompletableFuture<T> submit(Request<T> request) {
+		request.id = ids.incrementAndGet();
+		pending.incrementAndGet();
+		request.future.whenComplete((result, error) -> pending.decrementAndGet());
+		// runs on the event loop once connected, right away after that
+		connected.addListener(f -> {
+			if (!channel.isActive()) {
+				Throwable cause = f.cause() != null ? f.cause() : new IOException("connection closed");
+				request.future.completeExceptionally(cause);
+				return;
+			}
+			requests.put(request.id, request);
+			try {
+				request.start();
+			} catch (IOException e) {
+				finish(request, e);
+			}
+		});
+		return request.future;
+	}
+
+	private void finish(Request<?> request, Throwable error) {
+		requests.remove(request.id);
+		request.close();
+		request.future.completeExceptionally(error);
+	}
+
+	/**
+	 * Sends EXIT and waits for the server to close the connection.
+	 */
+	@Override
+	public void close() {
+		try {
+			if (channel.isActive()) {
+				channel.writeAndFlush(Frame.of(Opcode.EXIT, ids.incrementAndGet()));
+				channel.closeFuture().awaitUninterruptibly();
+			} else {
+				channel.close();
+			}
+		} finally {
+			if (ownsGroup) {
+				group.shutdownGracefully();
+			}
+		}
+	}
+
+	private abstract class Request<T> {
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		int id;
+
+		abstract void start() throws IOException;
+
+		/**
+		 * @return true when the request is complete
+		 */
+		abstract boolean onFrame(Frame frame) throws IOException;
+
+		void close() {
+		}
+	}
+
+	private class Upload extends Request<Void> {
+		private final Path file;
+		private final String name;
+		private final long offset;
+		private final long length;
+		private int flags;
+		private final Progress progress;
+		private FileChannel source;
+		private long start;
+		private long count;
+		private Deflater deflater;
+		private byte[] raw;
+		private byte[] compressed;
+		/** of the DATA payloads */
+		private final Checksum checksum = Crc32c.create();
+
+		Upload(Path file, String name, long offset, long length, int flags, Progress progress) {
+			this.file = file;
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+			this.flags = flags | UploadHandler.VERIFY;
+			this.progress = progress;
+		}
+
+		@Override
+		void start() throws IOException {
+			source = FileChannel.open(file, StandardOpenOption.READ);
+			start = Math.min(offset, source.size());
+			count = length < 0 ? source.size() - start : Math.min(length, source.size() - start);
+			if ((flags & UploadHandler.DEFLATE) != 0 && !Compression.worth(name, count)) {
+				flags &= ~UploadHandler.DEFLATE;
+			}
+			ByteBuf header = channel.alloc().buffer(17).writeLong(count).writeLong(start).writeByte(flags);
+			channel.write(Frame.of(channel.alloc(), Opcode.UPLOAD, id, name, header));
+			raw = new byte[DATA_CHUNK_SIZE];
+			if ((flags & UploadHandler.DEFLATE) != 0) {
+				deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+				compressed = new byte[DATA_CHUNK_SIZE];
+				sendCompressed(start, start + count);
+			} else {
+				sendChunk(start, start + count);
+			}
+		}
+
+		/**
+		 * Reads and deflates the file chunk by chunk, writing the next one when the previous has been sent.
+		 */
+		private void sendCompressed(long position, long end) throws IOException {
+			if (future.isDone()) {
+				return;
+			}
+			progress.update(position - start, count);
+			if (deflater.finished()) {
+				sendChecksum();
+				return;
+			}
+			int count = (int) Math.min(raw.length, end - position);
+			read(position, count);
+			boolean last = position + count >= end;
+			deflater.setInput(raw, 0, count);
+			if (last) {
+				deflater.finish();
+			}
+			ChannelFuture written = null;
+			while (last ? !deflater.finished() : !deflater.needsInput()) {
+				int length = deflater.deflate(compressed);
+				if (length > 0) {
+					checksum.update(compressed, 0, length);
+					written = channel.write(Frame.of(Opcode.DATA, id, Unpooled.copiedBuffer(compressed, 0, length)));
+				}
+			}
+			if (written == null) {
+				sendCompressed(position + count, end);
+				return;
+			}
+			channel.flush();
+			written.addListener(f -> {
+				if (!f.isSuccess()) {
+					finish(this, f.cause());
+					return;
+				}
+				try {
+					sendCompressed(position + count, end);
+				} catch (IOException e) {
+					finish(this, e);
+				}
+			});
+		}
+
+		private void sendChunk(long position, long end) throws IOException {
+			if (future.isDone()) {
+				return;
+			}
+			progress.update(position - start, count);
+			if (position >= end) {
+				sendChecksum();
+				return;
+			}
+			int count = (int) Math.min(DATA_CHUNK_SIZE, end - position);
+			// the checksum is of the bytes that are sent, read once; the buffer is reused after they have been written
+			read(position, count);
+			checksum.update(raw, 0, count);
+			channel.writeAndFlush(Frame.of(Opcode.DATA, id, Unpooled.wrappedBuffer(raw, 0, count))).addListener(f -> {
+				if (!f.isSuccess()) {
+					finish(this, f.cause());
+					return;
+				}
+				try {
+					sendChunk(position + count, end);
+				} catch (IOException e) {
+					finish(this, e);
+				}
+			});
+		}
+
+		private void read(long position, int count) throws IOException {
+			ByteBuffer input = ByteBuffer.wrap(raw, 0, count);
+			while (input.hasRemaining()) {
+				if (source.read(input, position + input.position()) < 0) {
+					throw new EOFException("file " + file + " was truncated");
+				}
+			}
+		}
+
+		private void sendChecksum() {
+			channel.writeAndFlush(Frame.of(Opcode.CHECKSUM, id, channel.alloc().buffer(8).writeLong(checksum.getValue())));
+		}
+
+		@Override
+		boolean onFrame(Frame frame) {
+			if (frame.opcode() != Opcode.OK) {
+				return false;
+			}
+			close();
+			future.complete(null);
+			return true;
+		}
+
+		@Override
+		void close() {
+			closeQuietly(source);
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+	}
+
+	private class Download extends Request<Long> {
+		private final String name;
+		private final Path target;
+		private final long offset;
+		private final long length;
+		private final boolean compressed;
+		private final Progress progress;
+		/** a whole file is written here first, null - into the target */
+		private final Path staged;
+		private boolean moved;
+		private FileChannel out;
+		private long count;
+		/** bytes of the file, count is of the compressed stream if any */
+		private long total;
+		private long start;
+		private long position;
+		private long end;
+		/** null - DATA payloads are the bytes of the file */
+		private Inflater inflater;
+		private byte[] inflated;
+		private long received;
+		private boolean ended;
+		/** of the DATA payloads */
+		private final Checksum checksum = Crc32c.create();
+		/** all DATA frames came, the CHECKSUM frame is next */
+		private boolean complete;
+
+		Download(String name, Path target, long offset, long length, boolean compressed, Progress progress) {
+			this.name = name;
+			this.target = target;
+			this.offset = offset;
+			this.length = length;
+			this.compressed = compressed;
+			this.progress = progress;
+			this.staged = offset == 0 && length < 0 ? target.resolveSibling("." + target.getFileName() + ".part") : null;
+		}
+
+		@Override
+		void start() {
+			byte encoding = compressed ? Compression.DEFLATE : Compression.NONE;
+			ByteBuf range = channel.alloc().buffer(18).writeLong(offset).writeLong(length).writeByte(encoding)
+					.writeByte(StorageHandler.VERIFY);
+			channel.writeAndFlush(Frame.of(channel.alloc(), Opcode.DOWNLOAD, id, name, range));
+		}
+
+		@Override
+		boolean onFrame(Frame frame) throws IOException {
+			if (frame.opcode() == Opcode.CHECKSUM && complete) {
+				long expected = frame.payload().readLong();
+				if (expected != checksum.getValue()) {
+					throw new IOException("checksum of " + name + " is " + Long.toHexString(checksum.getValue())
+							+ ", expected " + Long.toHexString(expected));
+				}
+				if (staged != null) {
+					Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					moved = true;
+				}
+				future.complete(position - start);
+				return true;
+			}
+			if (frame.opcode() == Opcode.DATA && out != null && !complete) {
+				Crc32c.update(checksum, frame.payload().nioBuffer());
+			}
+			if (frame.opcode() == Opcode.OK) {
+				ByteBuf payload = frame.payload();
+				count = payload.readLong();
+				long size = payload.readLong();
+				byte encoding = payload.isReadable() ? payload.readByte() : Compression.NONE;
+				start = Math.min(offset, size);
+				total = length < 0 ? size - start : Math.min(length, size - start);
+				position = start;
+				end = position + count;
+				if (encoding == Compression.DEFLATE) {
+					inflater = new Inflater(true);
+					inflated = new byte[DATA_CHUNK_SIZE];
+				}
+				out = FileChannel.open(staged != null ? staged : target, StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE);
+				if (staged != null) {
+					out.truncate(0);
+				}
+			} else if (frame.opcode() == Opcode.DATA && out != null && inflater != null) {
+				inflate(frame.payload());
+			} else if (frame.opcode() == Opcode.DATA && out != null) {
+				ByteBuf payload = frame.payload();
+				while (payload.isReadable()) {
+					position += payload.readBytes(out, position, payload.readableBytes());
+				}
+			}
+			if (frame.opcode() == Opcode.DATA && out != null) {
+				progress.update(position - start, total);
+			}
+			if (out != null && (inflater == null ? position >= end : ended)) {
+				if (inflater != null && !inflater.finished()) {
+					throw new IOException("compressed data of " + name + " ends early");
+				}
+				closeFile();
+				complete = true;
+			}
+			return false;
+		}
+
+		/**
+		 * A compressed download ends after count bytes, or with an empty frame if the count is unknown.
+		 */
+		private void inflate(ByteBuf payload) throws IOException {
+			if (!payload.isReadable()) {
+				ended = true;
+				return;
+			}
+			received += payload.readableBytes();
+			ended = count >= 0 && received >= count;
+			inflater.setInput(ByteBufUtil.getBytes(payload));
+			try {
+				int length;
+				while ((length = inflater.inflate(inflated)) > 0) {
+					ByteBuffer buffer = ByteBuffer.wrap(inflated, 0, length);
+					while (buffer.hasRemaining()) {
+						position += out.write(buffer, position);
+					}
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("corrupted compressed data of " + name + ": " + e.getMessage());
+			}
+		}
+
+		private void closeFile() {
+			closeQuietly(out);
+			if (inflater != null) {
+				inflater.end();
+			}
+		}
+
+		/**
+		 * A failed download of a whole file leaves the target as it was.
+		 */
+		@Override
+		void close() {
+			closeFile();
+			if (staged != null && !moved) {
+				try {
+					Files.deleteIfExists(staged);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Request with a long argument that is answered with an empty OK.
+	 */
+	private class Command extends Request<Void> {
+		private final Opcode opcode;
+		private final String name;
+		private final long argument;
+
+		Command(Opcode opcode, String name, long argument) {
+			this.opcode = opcode;
+			this.name = name;
+			this.argument = argument;
+		}
+
+		@Override
+		void start() {
+			channel.writeAndFlush(Frame.of(channel.alloc(), opcode, id, name, channel.alloc().buffer(8).writeLong(argument)));
+		}
+
+		@Override
+		boolean onFrame(Frame frame) {
+			future.complete(null);
+			return true;
+		}
+	}
+
+	private class Have extends Request<boolean[]> {
+		private final List<Chunker.Chunk> chunks;
+
+		Have(List<Chunker.Chunk> chunks) {
+			this.chunks = chunks;
+		}
+
+		@Override
+		void start() {
+			ByteBuf hashes = channel.alloc().buffer(chunks.size() * ChunkStore.HASH_SIZE);
+			for (Chunker.Chunk chunk : chunks) {
+				hashes.writeBytes(chunk.getHash());
+			}
+			channel.writeAndFlush(Frame.of(Opcode.HAVE, id, hashes));
+		}
+
+		@Override
+		boolean onFrame(Frame frame) {
+			boolean[] present = new boolean[chunks.size()];
+			ByteBuf payload = frame.payload();
+			for (int i = 0; i < present.length && payload.isReadable(); i++) {
+				present[i] = payload.readBoolean();
+			}
+			future.complete(present);
+			return true;
+		}
+	}
+
+	private class ChunkUpload extends Request<Void> {
+		private final Path file;
+		private final Chunker.Chunk chunk;
+
+		ChunkUpload(Path file, Chunker.Chunk chunk) {
+			this.file = file;
+			this.chunk = chunk;
+		}
+
+		@Override
+		void start() throws IOException {
+			ByteBuf data = channel.alloc().buffer(chunk.getLength());
+			try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+				while (data.writableBytes() > 0) {
+					if (data.writeBytes(source, chunk.getOffset() + data.readableBytes(), data.writableBytes()) < 0) {
+						throw new EOFException(file + " has changed");
+					}
+				}
+			} catch (IOException e) {
+				data.release();
+				throw e;
+			}
+			channel.writeAndFlush(Frame.of(Opcode.CHUNK, id, data));
+		}
+
+		@Override
+		boolean onFrame(Frame frame) {
+			future.complete(null);
+			return true;
+		}
+	}
+
+	private class ManifestUpload extends Request<Void> {
+		private final String name;
+		private final List<Chunker.Chunk> chunks;
+
+		ManifestUpload(String name, List<Chunker.Chunk> chunks) {
+			this.name = name;
+			this.chunks = chunks;
+		}
+
+		@Override
+		void start() {
+			int from = 0;
+			do {
+				int to = Math.min(chunks.size(), from + ENTRIES_PER_FRAME);
+				ByteBuf entries = channel.alloc().buffer(1 + (to - from) * Manifest.ENTRY_SIZE);
+				entries.writeBoolean(to == chunks.size());
+				for (Chunker.Chunk chunk : chunks.subList(from, to)) {
+					entries.writeBytes(chunk.getHash()).writeInt(chunk.getLength());
+				}
+				channel.write(Frame.of(channel.alloc(), Opcode.MANIFEST, id, name, entries));
+				from = to;
+			} while (from < chunks.size());
+			channel.flush();
+		}
+
+		@Override
+		boolean onFrame(Frame frame) {
+			future.complete(null);
+			return true;
+		}
+	}
+
+	/**
+	 * Completes with null if the server has no such file.
+	 */
+	private class SignatureRequest extends Request<Signature> {
+		private final String name;
+		private long size;
+		/** of the signed version */
+		private long modified;
+		private int blockSize;
+		private int[] weak;
+		private byte[] strong;
+		private int received;
+
+		SignatureRequest(String name) {
+			this.name = name;
+		}
+
+		@Override
+		void start() {
+			channel.writeAndFlush(Frame.of(channel.alloc(), Opcode.SIGNATURE, id, name, Unpooled.EMPTY_BUFFER));
+		}
+
+		@Override
+		boolean onFrame(Frame frame) {
+			ByteBuf payload = frame.payload();
+			if (frame.opcode() == Opcode.OK) {
+				size = payload.readLong();
+				modified = payload.readLong();
+				blockSize = payload.readInt();
+				int count = payload.readInt();
+				weak = new int[count];
+				strong = new byte[count * Signature.STRONG_SIZE];
+			} else if (frame.opcode() == Opcode.DATA && weak != null) {
+				while (payload.isReadable() && received < weak.length) {
+					weak[received] = payload.readInt();
+					payload.readBytes(strong, received * Signature.STRONG_SIZE, Signature.STRONG_SIZE);
+					received++;
+				}
+			}
+			if (weak != null && received == weak.length) {
+				future.complete(size < 0 ? null : new Signature(size, blockSize, weak, strong));
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private class DeltaUpload extends Request<Void> {
+		private final String name;
+		private final long size;
+		private final long baseSize;
+		private final long baseModified;
+		private final long checksum;
+
+		DeltaUpload(String name, long size, long baseSize, long baseModified, long checksum) {
+			this.name = name;
+			this.size = size;
+			this.baseSize = baseSize;
+			this.baseModified = baseModified;
+			this.checksum = checksum;
+		}
+
+		@Override
+		void start() {
+			ByteBuf header = channel.alloc().buffer(32).writeLong(size).writeLong(baseSize).writeLong(baseModified)
+					.writeLong(checksum);
+			channel.writeAndFlush(Frame.of(channel.alloc(), Opcode.DELTA, id, name, header));
+		}
+
+		/**
+		 * Encodes the file into PATCH frames, called off the event loop; waits while the channel is not writable.
+		 * @return number of literal bytes
+		 */
+		long send(FileChannel source, Signature signature) throws IOException {
+			long[] literals = new long[1];
+			ByteBuf[] batch = {channel.alloc().buffer(PATCH_SIZE + DeltaEncoder.MAX_LITERAL + 16)};
+			DeltaEncoder.Sink sink = new DeltaEncoder.Sink() {
+				@Override
+				public void copy(long offset, int length) {
+					batch[0].writeByte(DeltaEncoder.COPY).writeLong(offset).writeInt(length);
+					flushIfFull();
+				}
+
+				@Override
+				public void literal(ByteBuffer data) {
+					literals[0] += data.remaining();
+					batch[0].writeByte(DeltaEncoder.LITERAL).writeInt(data.remaining()).writeBytes(data);
+					flushIfFull();
+				}
+
+				private void flushIfFull() {
+					if (batch[0].readableBytes() >= PATCH_SIZE) {
+						write(batch[0]);
+						batch[0] = channel.alloc().buffer(PATCH_SIZE + DeltaEncoder.MAX_LITERAL + 16);
+					}
+				}
+			};
+			try {
+				new DeltaEncoder(signature).encode(source, sink);
+			} catch (IOException | RuntimeException e) {
+				batch[0].release();
+				throw e;
+			}
+			if (batch[0].isReadable()) {
+				write(batch[0]);
+			} else {
+				batch[0].release();
+			}
+			return literals[0];
+		}
+
+		private void write(ByteBuf instructions) {
+			if (future.isDone()) {
+				instructions.release();
+				return;
+			}
+			ChannelFuture written = channel.writeAndFlush(Frame.of(Opcode.PATCH, id, instructions));
+			if (!channel.isWritable()) {
+				written.awaitUninterruptibly();
+			}
+		}
+
+		@Override
+		boolean onFrame(Frame frame) {
+			future.complete(null);
+			return true;
+		}
+	}
+
+	private class Stat extends Request<Long> {
+		private final String name;
+		private final int flags;
+
+		Stat(String name, int flags) {
+			this.name = name;
+			this.flags = flags;
+		}
+
+		@Override
+		void start() {
+			ByteBuf payload = flags != 0 ? channel.alloc().buffer(1).writeByte(flags) : channel.alloc().buffer(0);
+			channel.writeAndFlush(Frame.of(channel.alloc(), Opcode.STAT, id, name, payload));
+		}
+
+		@Override
+		boolean onFrame(Frame frame) {
+			future.complete(frame.payload().readLong());
+			return true;
+		}
+	}
+
+	private class Listing extends Request<List<RemoteFile>> {
+		private final String prefix;
+		private final String after;
+		private final int limit;
+		private final List<RemoteFile> files = new ArrayList<>();
+
+		Listing(String prefix, String after, int limit) {
+			this.prefix = prefix;
+			this.after = after;
+			this.limit = limit;
+		}
+
+		@Override
+		void start() {
+			ByteBuf payload = channel.alloc().buffer().writeInt(limit);
+			if (after != null) {
+				payload.writeCharSequence(after, StandardCharsets.UTF_8);
+			}
+			channel.writeAndFlush(Frame.of(channel.alloc(), Opcode.LIST, id, prefix, payload));
+		}
+
+		@Override
+		boolean onFrame(Frame frame) {
+			if (frame.opcode() == Opcode.DATA) {
+				ByteBuf entries = frame.payload();
+				while (entries.isReadable()) {
+					int nameLength = entries.readUnsignedShort();
+					String name = entries.readCharSequence(nameLength, StandardCharsets.UTF_8).toString();
+					files.add(new RemoteFile(name, entries.readLong(), entries.readLong()));
+				}
+				return false;
+			}
+			future.complete(files);
+			return true;
+		}
+	}
+
+	private class Subscription extends Request<Void> {
+		private final long sequence;
+		private final ChangeListener listener;
+		private long epoch;
+
+		Subscription(long epoch, long sequence, ChangeListener listener) {
+			this.epoch = epoch;
+			this.sequence = sequence;
+			this.listener = listener;
+		}
+
+		@Override
+		void start() {
+			ByteBuf position = channel.alloc().buffer(16).writeLong(epoch).writeLong(sequence);
+			channel.writeAndFlush(Frame.of(Opcode.SUBSCRIBE, id, position));
+		}
+
+		@Override
+		boolean onFrame(Frame frame) {
+			ByteBuf payload = frame.payload();
+			if (frame.opcode() == Opcode.OK) {
+				epoch = payload.readLong();
+				return false;
+			}
+			long synced = payload.readLong();
+			if ((payload.readByte() & FeedHandler.RESET) != 0) {
+				listener.reset();
+			}
+			while (payload.isReadable()) {
+				byte type = payload.readByte();
+				int nameLength = payload.readUnsignedShort();
+				String name = payload.readCharSequence(nameLength, StandardCharsets.UTF_8).toString();
+				long size = payload.readLong();
+				long modified = payload.readLong();
+				if (type == ChangeFeed.DELETED) {
+					listener.deleted(name);
+				} else {
+					listener.changed(new RemoteFile(name, size, modified));
+				}
+			}
+			if (synced >= 0) {
+				listener.synced(epoch, synced);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @return {@link Crc32c} of the whole file
+	 */
+	private static long checksum(FileChannel file) throws IOException {
+		Checksum checksum = Crc32c.create();
+		ByteBuffer buffer = ByteBuffer.allocate(DATA_CHUNK_SIZE);
+		long position = 0;
+		int read;
+		while ((read = file.read(buffer, position)) > 0) {
+			buffer.flip();
+			checksum.update(buffer.array(), 0, read);
+			buffer.clear();
+			position += read;
+		}
+		return checksum.getValue();
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			if (closeable != null) {
+				closeable.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private class ResponseHandler extends SimpleChannelInboundHandler<Frame> {
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, Frame frame) throws Exception {
+			Request<?> request = requests.get(frame.requestId());
+			if (request == null) {
+				return;
+			}
+			if (frame.opcode() == Opcode.ERROR) {
+				finish(request, new IOException(frame.payload().toString(StandardCharsets.UTF_8)));
+				return;
+			}
+			try {
+				if (request.onFrame(frame)) {
+					requests.remove(frame.requestId());
+				}
+			} catch (IOException e) {
+				finish(request, e);
+			}
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+			IOException closed = new IOException("connection closed");
+			for (Request<?> request : new ArrayList<>(requests.values())) {
+				finish(request, closed);
+			}
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+			cause.printStackTrace();
+			ctx.close();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package ru.ramprox.client;
+
+import io.netty.channel.EventLoopGroup;
+import ru.ramprox.netty.Transport;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Up to size connections to one {@link ru.ramprox.netty.NettyBaseServer} on a shared event loop group,
+ * for clients with many transfers at once: the Swing {@link Client}, batch jobs, load tests.
+ * <p>
+ * A request goes to the connection with the fewest requests in flight. A new connection is opened only when
+ * all open ones are busy, a failed or closed one is replaced the next time its slot is picked.
+ * Safe to use from any thread; nothing but {@link #close()} blocks, requests of a connection still
+ * being established wait for it on its event loop.
+ */
+public class StoragePool implements Closeable {
+	private final String host;
+	private final int port;
+	private final EventLoopGroup group;
+	private final StorageClient[] clients;
+	private volatile boolean compression;
+
+	public StoragePool(String host, int port, int size) {
+		this.host = host;
+		this.port = port;
+		this.group = Transport.group(size);
+		this.clients = new StorageClient[size];
+	}
+
+	/**
+	 * Turns compression of the following uploads and downloads on or off, see {@link StorageClient#setCompression(boolean)}.
+	 */
+	public synchronized void setCompression(boolean compression) {
+		this.compression = compression;
+		for (StorageClient client : clients) {
+			if (client != null) {
+				client.setCompression(compression);
+			}
+		}
+	}
+
+	/**
+	 * @return connection for the next request, for the requests without a shortcut here
+	 */
+	public synchronized StorageClient client() {
+		StorageClient least = null;
+		int free = -1;
+		for (int i = 0; i < clients.length; i++) {
+			StorageClient client = clients[i];
+			if (client == null || !client.isOpen()) {
+				free = i;
+			} else if (least == null || client.pending() < least.pending()) {
+				least = client;
+			}
+		}
+		if (free >= 0 && (least == null || least.pending() > 0)) {
+			if (clients[free] != null) {
+				clients[free].close();
+			}
+			least = new StorageClient(group, host, port);
+			least.setCompression(compression);
+			clients[free] = least;
+		}
+		return least;
+	}
+
+	public CompletableFuture<Void> upload(Path file, String name, Progress progress) {
+		return client().upload(file, name, progress);
+	}
+
+	public CompletableFuture<Void> resume(Path file, String name, Progress progress) {
+		return client().resume(file, name, progress);
+	}
+
+	/**
+	 * @return number of downloaded bytes
+	 */
+	public CompletableFuture<Long> download(String name, Path target, long offset, long length, Progress progress) {
+		return client().download(name, target, offset, length, progress);
+	}
+
+	public CompletableFuture<Long> stat(String name) {
+		return client().stat(name);
+	}
+
+	public CompletableFuture<List<RemoteFile>> list(String prefix) {
+		return client().list(prefix, null, 0);
+	}
+
+	/**
+	 * @return copy of the server listing kept current on a connection of its own, close it before the pool
+	 */
+	public RemoteDirectory watch() {
+		return new RemoteDirectory(group, host, port);
+	}
+
+	/**
+	 * Closes every connection, requests still in flight fail.
+	 */
+	@Override
+	public synchronized void close() {
+		try {
+			for (StorageClient client : clients) {
+				if (client != null) {
+					client.close();
+				}
+			}
+		} finally {
+			group.shutdownGracefully();
+		}
+	}
+}
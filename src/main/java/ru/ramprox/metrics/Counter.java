@@ -0,0 +1,46 @@
+package ru.ramprox.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic count, e.g. of bytes or connections, with its rate over the last seconds.
+ * Adding is a {@link LongAdder} increment; the rate is sampled once a second by {@link Metrics}.
+ */
+public class Counter {
+	/** seconds the rate is averaged over */
+	private static final int WINDOW = 10;
+
+	private final LongAdder value = new LongAdder();
+	private final long[] samples = new long[WINDOW + 1];
+	/** the first sample is the count at creation, 0 */
+	private int ticks = 1;
+
+	public void increment() {
+		value.increment();
+	}
+
+	public void add(long amount) {
+		value.add(amount);
+	}
+
+	public long get() {
+		return value.sum();
+	}
+
+	synchronized void tick() {
+		samples[ticks++ % samples.length] = value.sum();
+	}
+
+	/**
+	 * @return average increase per second over the window, or since creation if it is younger
+	 */
+	public synchronized double rate() {
+		if (ticks < 2) {
+			return 0;
+		}
+		int span = Math.min(ticks - 1, WINDOW);
+		long latest = samples[(ticks - 1) % samples.length];
+		long oldest = samples[(ticks - 1 - span) % samples.length];
+		return (double) (latest - oldest) / span;
+	}
+}
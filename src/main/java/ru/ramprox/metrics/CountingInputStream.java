@@ -0,0 +1,42 @@
+package ru.ramprox.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Adds the bytes read to a counter.
+ */
+public class CountingInputStream extends FilterInputStream {
+	private final Counter counter;
+
+	public CountingInputStream(InputStream in, Counter counter) {
+		super(in);
+		this.counter = counter;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0) {
+			counter.increment();
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = in.read(b, off, len);
+		if (read > 0) {
+			counter.add(read);
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(n);
+		counter.add(skipped);
+		return skipped;
+	}
+}
@@ -0,0 +1,29 @@
+package ru.ramprox.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Adds the bytes written to a counter. Arrays are passed on whole, not byte by byte as in {@link FilterOutputStream}.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+	private final Counter counter;
+
+	public CountingOutputStream(OutputStream out, Counter counter) {
+		super(out);
+		this.counter = counter;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		counter.increment();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		counter.add(len);
+	}
+}
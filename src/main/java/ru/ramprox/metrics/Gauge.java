@@ -0,0 +1,33 @@
+package ru.ramprox.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Current level of something: either kept here (e.g. active connections)
+ * or read from its owner when the metrics are rendered (e.g. queue length).
+ */
+public class Gauge {
+	private final LongAdder level = new LongAdder();
+	private final LongSupplier supplier;
+
+	Gauge(LongSupplier supplier) {
+		this.supplier = supplier;
+	}
+
+	Gauge() {
+		this.supplier = level::sum;
+	}
+
+	public void increment() {
+		level.increment();
+	}
+
+	public void decrement() {
+		level.decrement();
+	}
+
+	public long get() {
+		return supplier.getAsLong();
+	}
+}
@@ -0,0 +1,118 @@
+package ru.ramprox.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram in the manner of HdrHistogram: every power of two is split into 32 linear sub-buckets,
+ * so a value is counted with at most 3% error over the whole range of long, in a fixed array of counters.
+ * Recording is lock-free and allocates nothing; quantiles are computed when they are read.
+ */
+public class Histogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param value non-negative, e.g. nanoseconds
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		sum.add(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+
+	/**
+	 * Records nanoseconds passed since start, a value of {@link System#nanoTime()}.
+	 */
+	public void recordSince(long start) {
+		record(System.nanoTime() - start);
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the largest value counted in the bucket
+	 */
+	private static long highest(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long low = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return low + (1L << shift) - 1;
+	}
+
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+			count += copy[i];
+		}
+		return new Snapshot(copy, count, sum.sum(), max.get());
+	}
+
+	/**
+	 * Counts at one moment; recording goes on meanwhile, so they may differ from each other slightly.
+	 */
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		private Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long count() {
+			return count;
+		}
+
+		public long sum() {
+			return sum;
+		}
+
+		public long max() {
+			return max;
+		}
+
+		/**
+		 * @param quantile from 0 to 1
+		 * @return the value that quantile of the values don't exceed, 0 if nothing is recorded
+		 */
+		public long quantile(double quantile) {
+			long rank = Math.max(1, (long) Math.ceil(quantile * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(highest(i), max);
+				}
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package ru.ramprox.metrics;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import ru.ramprox.storage.Storage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics of a server by name and an optional label, rendered in the Prometheus text format
+ * (see {@link MetricsEndpoint}).
+ * <ul>
+ *     <li>{@link Counter} name_total and name_per_second over the last 10 seconds</li>
+ *     <li>{@link Gauge} name</li>
+ *     <li>{@link Histogram} of nanoseconds: name_seconds with quantiles, name_seconds_max, _count and _sum</li>
+ * </ul>
+ * Getting a metric looks it up, so code on a hot path gets it once and keeps it.
+ * All servers use the names below, so that their numbers can be compared.
+ */
+public class Metrics {
+	public static final String CONNECTIONS = "connections";
+	public static final String CONNECTIONS_ACTIVE = "connections_active";
+	public static final String BYTES_IN = "bytes_in";
+	public static final String BYTES_OUT = "bytes_out";
+	/** time from a command to its reply, labeled with the command */
+	public static final String COMMAND_LATENCY = "command_latency";
+	/** tasks waiting for the threads of a server, connections waiting for a pooled thread included */
+	public static final String QUEUE_DEPTH = "queue_depth";
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private final Map<String, Entry> entries = new ConcurrentSkipListMap<>();
+	private final ScheduledExecutorService ticker =
+			Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("metrics", true));
+
+	private static class Entry {
+		final String name;
+		final String labels;
+		final Object metric;
+
+		Entry(String name, String labels, Object metric) {
+			this.name = name;
+			this.labels = labels;
+			this.metric = metric;
+		}
+	}
+
+	public Metrics() {
+		ticker.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
+	}
+
+	public Counter counter(String name) {
+		return (Counter) get(name, null, null, new Counter());
+	}
+
+	public Counter counter(String name, String label, String value) {
+		return (Counter) get(name, label, value, new Counter());
+	}
+
+	/**
+	 * @return a gauge set by its owner
+	 */
+	public Gauge gauge(String name) {
+		return (Gauge) get(name, null, null, new Gauge());
+	}
+
+	/**
+	 * Registers a gauge read from its owner, the supplier has to be thread safe.
+	 */
+	public void gauge(String name, LongSupplier supplier) {
+		get(name, null, null, new Gauge(supplier));
+	}
+
+	public Histogram histogram(String name, String label, String value) {
+		return (Histogram) get(name, label, value, new Histogram());
+	}
+
+	private Object get(String name, String label, String value, Object metric) {
+		String labels = label == null ? "" : label + "=\"" + value + "\"";
+		return entries.computeIfAbsent(name + "{" + labels + "}", key -> new Entry(name, labels, metric)).metric;
+	}
+
+	/**
+	 * Registers gauges of the file cache, the metadata index and the disk executor of the storage.
+	 */
+	public void register(Storage storage) {
+		gauge("cache_used_bytes", () -> storage.cache().used());
+		gauge("cache_hits_total", () -> storage.cache().hits());
+		gauge("cache_misses_total", () -> storage.cache().misses());
+		gauge("index_entries", () -> storage.index().size());
+		gauge("disk_queue_depth", () -> storage.disk().queued());
+		gauge("disk_rejected_total", () -> storage.disk().rejected());
+		gauge("journal_commits_total", () -> storage.journal().commits());
+		gauge("journal_syncs_total", () -> storage.journal().syncs());
+		gauge("feed_subscribers", () -> storage.feed().subscribers());
+		gauge("feed_changes_total", () -> storage.feed().sequence());
+	}
+
+	private void tick() {
+		for (Entry entry : entries.values()) {
+			if (entry.metric instanceof Counter) {
+				((Counter) entry.metric).tick();
+			}
+		}
+	}
+
+	public String render() {
+		StringBuilder sb = new StringBuilder();
+		for (Entry entry : entries.values()) {
+			if (entry.metric instanceof Counter) {
+				Counter counter = (Counter) entry.metric;
+				line(sb, entry.name + "_total", entry.labels, null, counter.get());
+				line(sb, entry.name + "_per_second", entry.labels, null, counter.rate());
+			} else if (entry.metric instanceof Gauge) {
+				line(sb, entry.name, entry.labels, null, ((Gauge) entry.metric).get());
+			} else {
+				Histogram.Snapshot snapshot = ((Histogram) entry.metric).snapshot();
+				String name = entry.name + "_seconds";
+				for (double quantile : QUANTILES) {
+					line(sb, name, entry.labels, "quantile=\"" + quantile + "\"", seconds(snapshot.quantile(quantile)));
+				}
+				line(sb, name + "_max", entry.labels, null, seconds(snapshot.max()));
+				line(sb, name + "_count", entry.labels, null, snapshot.count());
+				line(sb, name + "_sum", entry.labels, null, seconds(snapshot.sum()));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+	private static void line(StringBuilder sb, String name, String labels, String extra, Object value) {
+		sb.append(name);
+		if (!labels.isEmpty() || extra != null) {
+			sb.append('{').append(labels);
+			if (extra != null) {
+				sb.append(labels.isEmpty() ? "" : ",").append(extra);
+			}
+			sb.append('}');
+		}
+		sb.append(' ').append(value).append('\n');
+	}
+}
@@ -0,0 +1,47 @@
+package ru.ramprox.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves {@link Metrics#render()} at http://localhost:PORT/metrics, PORT is -Dmetrics.port (9100 by default,
+ * a negative one turns the endpoint off). It listens on the loopback interface only.
+ */
+public final class MetricsEndpoint {
+	private static final int PORT = Integer.getInteger("metrics.port", 9100);
+
+	private MetricsEndpoint() {
+	}
+
+	/**
+	 * Starts the endpoint on a daemon thread. A server without it still works, so a failure is only logged.
+	 */
+	public static void start(Metrics metrics) {
+		if (PORT < 0) {
+			return;
+		}
+		try {
+			HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT), 0);
+			server.createContext("/metrics", exchange -> {
+				byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+			// the dispatcher thread inherits being a daemon from the thread that starts it
+			Thread thread = new Thread(server::start, "metrics-endpoint");
+			thread.setDaemon(true);
+			thread.start();
+			System.out.println("Metrics at http://localhost:" + server.getAddress().getPort() + "/metrics");
+		} catch (IOException e) {
+			System.out.println("Metrics endpoint is not started: " + e);
+		}
+	}
+}
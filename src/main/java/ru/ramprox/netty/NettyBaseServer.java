@@ -1,53 +1,111 @@
 package ru.ramprox.netty;
 
-import ru.ramprox.netty.handlers.ByteBufInputHandler;
-import ru.ramprox.netty.handlers.ChatMessageHandler;
-import ru.ramprox.netty.handlers.OutputHandler;
+import ru.ramprox.metrics.Metrics;
+import ru.ramprox.metrics.MetricsEndpoint;
+import ru.ramprox.netty.handlers.ChunkHandler;
+import ru.ramprox.netty.handlers.DeltaHandler;
+import ru.ramprox.netty.handlers.FeedHandler;
+import ru.ramprox.netty.handlers.MetricsHandler;
+import ru.ramprox.netty.handlers.StorageHandler;
+import ru.ramprox.netty.handlers.UploadHandler;
+import ru.ramprox.netty.protocol.FrameDecoder;
+import ru.ramprox.netty.protocol.FrameEncoder;
+import ru.ramprox.shaping.Shaping;
+import ru.ramprox.shaping.TransferSlots;
+import ru.ramprox.storage.Storage;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 public class NettyBaseServer {
-	public NettyBaseServer() {
-		EventLoopGroup auth = new NioEventLoopGroup(1);
-		EventLoopGroup worker = new NioEventLoopGroup();
+	public NettyBaseServer() throws IOException {
+		Storage storage = new Storage(Paths.get("server"));
+		SslContext ssl = Tls.server();
+		EventLoopGroup auth = Transport.acceptorGroup();
+		EventLoopGroup worker = Transport.workerGroup();
+		Metrics metrics = new Metrics();
+		metrics.register(storage);
+		metrics.gauge(Metrics.QUEUE_DEPTH, () -> {
+			long pending = 0;
+			for (EventExecutor executor : worker) {
+				pending += ((SingleThreadEventExecutor) executor).pendingTasks();
+			}
+			return pending;
+		});
+		metrics.gauge("pooled_direct_bytes", () -> PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory());
+		metrics.gauge("pooled_heap_bytes", () -> PooledByteBufAllocator.DEFAULT.metric().usedHeapMemory());
+		MetricsEndpoint.start(metrics);
+		Shaping shaping = new Shaping(metrics);
+		TransferSlots slots = shaping.slots();
+		// shared by all channels
+		GlobalChannelTrafficShapingHandler traffic = shaping.handler(worker);
 
 		try {
-			ServerBootstrap bootstrap = new ServerBootstrap();
+			ServerBootstrap bootstrap = Transport.configure(new ServerBootstrap());
 			bootstrap.group(auth, worker)
-					.channel(NioServerSocketChannel.class)
+					.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
 					.childHandler(new ChannelInitializer<Channel>() {
 						@Override
 						protected void initChannel(Channel ch) throws Exception {
+							if (!shaping.admit(ch)) {
+								System.out.println("Too many clients, closing: " + ch);
+								ch.close();
+								return;
+							}
+							if (traffic != null) {
+								ch.pipeline().addLast(traffic);
+							}
+							if (ssl != null) {
+								ch.pipeline().addLast(ssl.newHandler(ch.alloc()));
+							}
 							ch.pipeline().addLast(
-									new StringEncoder(),
-									new StringDecoder(),
-//									new ByteBufInputHandler(), // in-1
-//									new OutputHandler(), // out-2
-									new ChatMessageHandler()
+									new FrameDecoder(),
+									new FrameEncoder(),
+									new ChunkedWriteHandler(),
+									new MetricsHandler(metrics),
+									new UploadHandler(storage, slots),
+									new ChunkHandler(storage),
+									new DeltaHandler(storage),
+									new FeedHandler(storage),
+									new StorageHandler(storage, slots)
 							);
 						}
 					});
-			ChannelFuture future = bootstrap.bind(4000).sync();
-			System.out.println("Server started");
-			future.channel().closeFuture().sync();
+			List<Channel> acceptors = new ArrayList<>();
+			for (int i = 0; i < Transport.acceptors(); i++) {
+				acceptors.add(bootstrap.bind(4000).sync().channel());
+			}
+			System.out.println("Server started, " + Transport.describe());
+			for (Channel acceptor : acceptors) {
+				acceptor.closeFuture().sync();
+			}
 			System.out.println("Server closed");
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		} finally {
+			if (traffic != null) {
+				traffic.release();
+			}
 			auth.shutdownGracefully();
 			worker.shutdownGracefully();
 		}
 	}
 
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
 		new NettyBaseServer();
 	}
 }
@@ -0,0 +1,154 @@
+package ru.ramprox.netty;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.JdkSslContext;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * TLS of the Netty and the blocking server and their clients, off unless configured.
+ * <ul>
+ *     <li>servers: -Dtls.cert=chain.pem -Dtls.key=key.pem (PKCS#8)</li>
+ *     <li>clients: -Dtls=true to trust the system CAs, -Dtls.trust=ca.pem to trust the given ones,
+ *     -Dtls.insecure=true to trust anything (self-signed certificates on loopback); the host name is checked
+ *     against the certificate unless insecure</li>
+ * </ul>
+ * A certificate for tests: openssl req -x509 -newkey rsa:2048 -nodes -keyout key.pem -out cert.pem
+ * -days 365 -subj /CN=localhost -addext subjectAltName=DNS:localhost
+ * <p>
+ * Netty uses the OpenSSL engine when netty-tcnative is on the class path (mvn -Popenssl), it encrypts several
+ * times faster than the JDK one, and falls back to the JDK engine otherwise. The blocking server always uses
+ * the JDK one. Servers cache sessions and issue session tickets, clients share one context, so a client
+ * reconnecting to the same host and port resumes its session without a full handshake.
+ * <p>
+ * Encryption rules out sendfile: files then go through the TLS engine in chunks, see
+ * {@link ru.ramprox.netty.handlers.FileSender}.
+ */
+public final class Tls {
+	private static final String CERT = System.getProperty("tls.cert");
+	private static final String KEY = System.getProperty("tls.key");
+	private static final String TRUST = System.getProperty("tls.trust");
+	private static final boolean INSECURE = Boolean.getBoolean("tls.insecure");
+	private static final boolean CLIENT = Boolean.getBoolean("tls") || TRUST != null || INSECURE;
+	private static final long SESSION_CACHE_SIZE = Long.getLong("tls.sessionCacheSize", 20_000);
+	/** seconds */
+	private static final long SESSION_TIMEOUT = Long.getLong("tls.sessionTimeout", 24 * 60 * 60);
+
+	private static SslContext server;
+	private static SslContext client;
+	private static SSLContext jdkServer;
+	private static SSLContext jdkClient;
+
+	private Tls() {
+	}
+
+	public static SslProvider provider() {
+		return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+	}
+
+	/**
+	 * @return context of the Netty server, null if TLS is off
+	 */
+	public static synchronized SslContext server() throws IOException {
+		if (server == null && CERT != null) {
+			server = serverBuilder().sslProvider(provider()).build();
+			System.out.println("TLS on, " + provider() + " engine");
+		}
+		return server;
+	}
+
+	/**
+	 * @return context of Netty clients, null if TLS is off
+	 */
+	public static synchronized SslContext client() throws IOException {
+		if (client == null && CLIENT) {
+			client = clientBuilder().sslProvider(provider()).build();
+		}
+		return client;
+	}
+
+	/**
+	 * @return handler of a client connection to the host and port, its session is resumed by the next connection
+	 */
+	public static SslHandler clientHandler(SslContext context, ByteBufAllocator alloc, String host, int port) {
+		SslHandler handler = context.newHandler(alloc, host, port);
+		SSLEngine engine = handler.engine();
+		engine.setSSLParameters(checkHost(engine.getSSLParameters()));
+		return handler;
+	}
+
+	/**
+	 * @return listening socket of the blocking server, a TLS one if TLS is on
+	 */
+	public static ServerSocket serverSocket(int port) throws IOException {
+		SSLContext context;
+		synchronized (Tls.class) {
+			if (jdkServer == null && CERT != null) {
+				jdkServer = ((JdkSslContext) serverBuilder().sslProvider(SslProvider.JDK).build()).context();
+				System.out.println("TLS on, JDK engine");
+			}
+			context = jdkServer;
+		}
+		return context != null ? context.getServerSocketFactory().createServerSocket(port) : new ServerSocket(port);
+	}
+
+	/**
+	 * @return socket connected to the blocking server, a TLS one if TLS is on
+	 */
+	public static Socket socket(String host, int port) throws IOException {
+		SSLContext context;
+		synchronized (Tls.class) {
+			if (jdkClient == null && CLIENT) {
+				jdkClient = ((JdkSslContext) clientBuilder().sslProvider(SslProvider.JDK).build()).context();
+			}
+			context = jdkClient;
+		}
+		if (context == null) {
+			return new Socket(host, port);
+		}
+		SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(host, port);
+		socket.setSSLParameters(checkHost(socket.getSSLParameters()));
+		return socket;
+	}
+
+	private static SslContextBuilder serverBuilder() {
+		if (KEY == null) {
+			throw new IllegalArgumentException("tls.cert is set without tls.key");
+		}
+		return SslContextBuilder.forServer(new File(CERT), new File(KEY))
+				.sessionCacheSize(SESSION_CACHE_SIZE)
+				.sessionTimeout(SESSION_TIMEOUT);
+	}
+
+	private static SslContextBuilder clientBuilder() {
+		SslContextBuilder builder = SslContextBuilder.forClient()
+				.sessionCacheSize(SESSION_CACHE_SIZE)
+				.sessionTimeout(SESSION_TIMEOUT);
+		if (INSECURE) {
+			builder.trustManager(InsecureTrustManagerFactory.INSTANCE);
+		} else if (TRUST != null) {
+			builder.trustManager(new File(TRUST));
+		}
+		return builder;
+	}
+
+	private static SSLParameters checkHost(SSLParameters parameters) {
+		if (!INSECURE) {
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");
+		}
+		return parameters;
+	}
+}
@@ -0,0 +1,121 @@
+package ru.ramprox.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * Netty transport and socket options of the server and the clients.
+ * <p>
+ * Native epoll where it is available (Linux), it saves the selector wake-ups and copies of NIO and
+ * supports SO_REUSEPORT and TCP_CORK; NIO otherwise or with -Dnetty.transport=nio. With epoll the server binds
+ * -Dnetty.acceptors listening sockets to the port with SO_REUSEPORT, each on its own event loop,
+ * and the kernel spreads new connections over them instead of one loop accepting all.
+ * <p>
+ * Options: -Dnetty.workers (0 - twice the cores), -Dnetty.backlog, -Dnetty.tcpNoDelay (on, the protocol is
+ * request/response and small frames must not wait for Nagle), -Dnetty.sendBuffer and -Dnetty.receiveBuffer
+ * (0 - the system default, autotuned), -Dnetty.writeBuffer.low and -Dnetty.writeBuffer.high water marks.
+ */
+public final class Transport {
+	public static final boolean EPOLL = !"nio".equals(System.getProperty("netty.transport")) && Epoll.isAvailable();
+
+	private static final int ACCEPTORS = EPOLL
+			? Integer.getInteger("netty.acceptors", Math.min(4, Runtime.getRuntime().availableProcessors())) : 1;
+	private static final int WORKERS = Integer.getInteger("netty.workers", 0);
+	private static final int BACKLOG = Integer.getInteger("netty.backlog", 1024);
+	private static final boolean TCP_NO_DELAY = Boolean.parseBoolean(System.getProperty("netty.tcpNoDelay", "true"));
+	private static final int SEND_BUFFER = Integer.getInteger("netty.sendBuffer", 0);
+	private static final int RECEIVE_BUFFER = Integer.getInteger("netty.receiveBuffer", 0);
+	/** the high mark holds a whole DATA chunk, with the defaults of 32 and 64 KB one chunk makes a channel unwritable */
+	private static final WriteBufferWaterMark WATER_MARK = new WriteBufferWaterMark(
+			Integer.getInteger("netty.writeBuffer.low", 256 * 1024),
+			Integer.getInteger("netty.writeBuffer.high", 512 * 1024));
+
+	private Transport() {
+	}
+
+	public static int acceptors() {
+		return ACCEPTORS;
+	}
+
+	/**
+	 * @param threads 0 - twice the cores
+	 */
+	public static EventLoopGroup group(int threads) {
+		return EPOLL ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+	}
+
+	public static EventLoopGroup acceptorGroup() {
+		return group(ACCEPTORS);
+	}
+
+	public static EventLoopGroup workerGroup() {
+		return group(WORKERS);
+	}
+
+	/**
+	 * Sets the channel class and the options of the listening and the accepted sockets.
+	 * Bind it {@link #acceptors()} times to the same port.
+	 */
+	public static ServerBootstrap configure(ServerBootstrap bootstrap) {
+		Class<? extends ServerChannel> channel = EPOLL ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+		bootstrap.channel(channel)
+				.option(ChannelOption.SO_BACKLOG, BACKLOG)
+				.childOption(ChannelOption.TCP_NODELAY, TCP_NO_DELAY)
+				.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, WATER_MARK);
+		if (EPOLL) {
+			bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+		}
+		if (SEND_BUFFER > 0) {
+			bootstrap.childOption(ChannelOption.SO_SNDBUF, SEND_BUFFER);
+		}
+		if (RECEIVE_BUFFER > 0) {
+			// accepted sockets inherit it from the listening one, it has to be there before the handshake
+			bootstrap.option(ChannelOption.SO_RCVBUF, RECEIVE_BUFFER);
+		}
+		return bootstrap;
+	}
+
+	/**
+	 * Sets the channel class and the socket options of a client.
+	 */
+	public static Bootstrap configure(Bootstrap bootstrap) {
+		Class<? extends Channel> channel = EPOLL ? EpollSocketChannel.class : NioSocketChannel.class;
+		bootstrap.channel(channel)
+				.option(ChannelOption.TCP_NODELAY, TCP_NO_DELAY)
+				.option(ChannelOption.WRITE_BUFFER_WATER_MARK, WATER_MARK);
+		if (SEND_BUFFER > 0) {
+			bootstrap.option(ChannelOption.SO_SNDBUF, SEND_BUFFER);
+		}
+		if (RECEIVE_BUFFER > 0) {
+			bootstrap.option(ChannelOption.SO_RCVBUF, RECEIVE_BUFFER);
+		}
+		return bootstrap;
+	}
+
+	/**
+	 * Holds back partial segments while a frame header and its file region are written, they go out
+	 * as full segments instead of a tiny header segment followed by the data. Epoll only, no-op otherwise.
+	 */
+	public static void cork(Channel channel, boolean cork) {
+		if (channel instanceof EpollSocketChannel) {
+			((EpollSocketChannel) channel).config().setTcpCork(cork);
+		}
+	}
+
+	public static String describe() {
+		return EPOLL ? "epoll, " + ACCEPTORS + " acceptors" : "nio";
+	}
+}
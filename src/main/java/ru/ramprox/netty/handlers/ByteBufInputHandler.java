@@ -1,33 +0,0 @@
-package ru.ramprox.netty.handlers;
-
-import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInboundHandlerAdapter;
-
-public class ByteBufInputHandler extends ChannelInboundHandlerAdapter {
-	@Override
-	public void channelActive(ChannelHandlerContext ctx) throws Exception {
-		System.out.println("Client connected: " + ctx.channel());
-	}
-
-	@Override
-	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-		System.out.println("Client disconnected: " + ctx.channel());
-	}
-
-	@Override
-	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-		ByteBuf buf = (ByteBuf) msg;
-		System.out.println("buf: " + buf);
-		StringBuilder sb = new StringBuilder();
-		while (buf.isReadable()) {
-			sb.append((char) buf.readByte());
-		}
-		ctx.fireChannelRead(sb.toString());
-	}
-
-	@Override
-	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-		super.exceptionCaught(ctx, cause);
-	}
-}
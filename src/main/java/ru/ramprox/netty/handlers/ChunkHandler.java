@@ -0,0 +1,196 @@
+package ru.ramprox.netty.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import ru.ramprox.netty.protocol.Frame;
+import ru.ramprox.netty.protocol.Opcode;
+import ru.ramprox.storage.ChunkStore;
+import ru.ramprox.storage.Chunker;
+import ru.ramprox.storage.Manifest;
+import ru.ramprox.storage.Storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Deduplicated upload, everything else goes further down the pipeline.
+ * <ul>
+ *     <li>HAVE, payload: chunk hashes; reply OK with one byte per hash, 1 if the chunk is stored</li>
+ *     <li>CHUNK, payload: chunk bytes, at most {@link Chunker#MAX_SIZE}; reply OK when stored</li>
+ *     <li>MANIFEST name, payload: byte last, manifest entries; parts with the same request id are joined,
+ *     after the last one the file is replaced by the manifest; reply OK. A manifest of more than
+ *     storage.manifest.maxEntries entries is refused</li>
+ * </ul>
+ * A client splits a file with {@link Chunker}, asks which chunks are missing and sends only those.
+ * Hashing and file operations run on the storage disk threads; while too many bytes wait for the disk
+ * or the disk queue is long the channel stops reading.
+ */
+public class ChunkHandler extends ChannelInboundHandlerAdapter {
+	/** at least a 16 GB file at the minimum chunk size, 9 MB of entries */
+	private static final int MAX_ENTRIES = Integer.getInteger("storage.manifest.maxEntries", 256 * 1024);
+	private static final long HIGH_WATER_MARK = 8 * 1024 * 1024;
+	private static final long LOW_WATER_MARK = 2 * 1024 * 1024;
+
+	private final Storage storage;
+	private final ChunkStore chunks;
+	private final IntObjectMap<ByteBuf> manifests = new IntObjectHashMap<>();
+	private long pending;
+
+	public ChunkHandler(Storage storage) {
+		this.storage = storage;
+		this.chunks = storage.chunks();
+	}
+
+	private interface DiskTask {
+		Frame run() throws IOException;
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (!(msg instanceof Frame)) {
+			ctx.fireChannelRead(msg);
+			return;
+		}
+		Frame frame = (Frame) msg;
+		int requestId = frame.requestId();
+		ByteBuf payload = frame.payload();
+		switch (frame.opcode()) {
+			case HAVE:
+				runOnDisk(ctx, frame, null, () -> {
+					byte[] hashes = new byte[payload.readableBytes() / ChunkStore.HASH_SIZE * ChunkStore.HASH_SIZE];
+					payload.readBytes(hashes);
+					ByteBuf present = ctx.alloc().buffer(hashes.length / ChunkStore.HASH_SIZE);
+					for (int i = 0; i < hashes.length; i += ChunkStore.HASH_SIZE) {
+						present.writeBoolean(chunks.contains(hashes, i));
+					}
+					return Frame.of(Opcode.OK, requestId, present);
+				});
+				break;
+			case CHUNK:
+				if (payload.readableBytes() > Chunker.MAX_SIZE) {
+					frame.release();
+					ctx.writeAndFlush(Frame.error(ctx.alloc(), requestId, "chunk is too large"));
+					return;
+				}
+				runOnDisk(ctx, frame, null, () -> {
+					chunks.put(payload.nioBuffer());
+					return Frame.of(Opcode.OK, requestId);
+				});
+				break;
+			case MANIFEST:
+				manifest(ctx, frame);
+				break;
+			default:
+				ctx.fireChannelRead(frame);
+		}
+	}
+
+	private void manifest(ChannelHandlerContext ctx, Frame frame) {
+		int requestId = frame.requestId();
+		ByteBuf payload = frame.payload();
+		if (!payload.isReadable()) {
+			frame.release();
+			ByteBuf entries = manifests.remove(requestId);
+			if (entries != null) {
+				entries.release();
+			}
+			ctx.writeAndFlush(Frame.error(ctx.alloc(), requestId, "empty manifest part"));
+			return;
+		}
+		boolean last = payload.readBoolean();
+		ByteBuf entries = manifests.get(requestId);
+		if (entries == Unpooled.EMPTY_BUFFER) {
+			// refused, the rest of its parts are dropped
+			frame.release();
+			if (last) {
+				manifests.remove(requestId);
+			}
+			return;
+		}
+		if ((long) (entries == null ? 0 : entries.readableBytes()) + payload.readableBytes()
+				> (long) MAX_ENTRIES * Manifest.ENTRY_SIZE) {
+			frame.release();
+			if (entries != null) {
+				entries.release();
+			}
+			if (last) {
+				manifests.remove(requestId);
+			} else {
+				manifests.put(requestId, Unpooled.EMPTY_BUFFER);
+			}
+			ctx.writeAndFlush(Frame.error(ctx.alloc(), requestId, "manifest has more than " + MAX_ENTRIES + " entries"));
+			return;
+		}
+		if (entries == null) {
+			entries = ctx.alloc().buffer(payload.readableBytes());
+			manifests.put(requestId, entries);
+		}
+		entries.writeBytes(payload);
+		if (!last) {
+			frame.release();
+			return;
+		}
+		manifests.remove(requestId);
+		Path file = storage.resolve(frame.nameString());
+		if (file == null) {
+			frame.release();
+			entries.release();
+			ctx.writeAndFlush(Frame.error(ctx.alloc(), requestId, "wrong name"));
+			return;
+		}
+		frame.release();
+		ByteBuf all = entries;
+		// the joined entries are released like a frame of their own
+		runOnDisk(ctx, Frame.of(Opcode.MANIFEST, requestId, all), file, () -> {
+			storage.commitManifest(file, new Manifest(all.nioBuffer()));
+			return Frame.of(Opcode.OK, requestId);
+		});
+	}
+
+	/**
+	 * Runs the task on a disk thread, after other operations on the file if there is one, and writes its reply.
+	 * The frame is released afterwards.
+	 */
+	private void runOnDisk(ChannelHandlerContext ctx, Frame frame, Path file, DiskTask task) {
+		int length = frame.payloadLength();
+		pending += length;
+		if (pending > HIGH_WATER_MARK || storage.disk().isOverloaded()) {
+			ctx.channel().config().setAutoRead(false);
+		}
+		storage.disk().submit(file, ctx.executor(), () -> {
+			try {
+				return task.run();
+			} finally {
+				frame.release();
+			}
+		}).addListener(future -> {
+			pending -= length;
+			if (!ctx.channel().config().isAutoRead()
+					&& (pending == 0 || pending < LOW_WATER_MARK && !storage.disk().isOverloaded())) {
+				ctx.channel().config().setAutoRead(true);
+			}
+			if (future.isSuccess()) {
+				ctx.writeAndFlush(future.getNow());
+				return;
+			}
+			if (future.cause() instanceof RejectedExecutionException) {
+				frame.release();
+			}
+			ctx.writeAndFlush(Frame.error(ctx.alloc(), frame.requestId(), String.valueOf(future.cause())));
+		});
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		for (ByteBuf entries : manifests.values()) {
+			entries.release();
+		}
+		manifests.clear();
+		ctx.fireChannelInactive();
+	}
+}
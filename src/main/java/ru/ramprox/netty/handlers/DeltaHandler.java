@@ -0,0 +1,316 @@
+package ru.ramprox.netty.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import ru.ramprox.netty.protocol.Frame;
+import ru.ramprox.netty.protocol.Opcode;
+import ru.ramprox.storage.Crc32c;
+import ru.ramprox.storage.DeltaWriter;
+import ru.ramprox.storage.FileMetadata;
+import ru.ramprox.storage.Segment;
+import ru.ramprox.storage.Signature;
+import ru.ramprox.storage.Storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Delta (rsync-like) upload of a modified file, everything else goes further down the pipeline.
+ * <ul>
+ *     <li>SIGNATURE name; reply OK with long size (-1 if there is no such file), long modified, int block size,
+ *     int count, then DATA frames with count entries of int weak checksum and 16 bytes MD5</li>
+ *     <li>DELTA name, payload: long new size, long size and long modified of the signed version,
+ *     long {@link Crc32c} of the new version; then PATCH frames with instructions of
+ *     {@link ru.ramprox.storage.DeltaEncoder} until the new version is complete; reply OK</li>
+ * </ul>
+ * The new version is built in a staging file from copies of the old one and literals,
+ * then replaces the old one atomically. A delta against a version other than the stored one fails
+ * before any instruction is applied, and a new version whose checksum differs never replaces the file. Only one delta of a file runs at a time, another one fails right away.
+ * Instructions are applied on the storage disk threads in order,
+ * after other pending operations on the file; while too many bytes wait for the disk or the disk queue is long
+ * the channel stops reading.
+ */
+public class DeltaHandler extends ChannelInboundHandlerAdapter {
+	private static final long HIGH_WATER_MARK = 8 * 1024 * 1024;
+	private static final long LOW_WATER_MARK = 2 * 1024 * 1024;
+
+	private final Storage storage;
+	private final IntObjectMap<Delta> deltas = new IntObjectHashMap<>();
+	private long pending;
+
+	public DeltaHandler(Storage storage) {
+		this.storage = storage;
+	}
+
+	private static class Delta {
+		final int requestId;
+		final Path file;
+		final Path staged;
+		final long size;
+		final long baseSize;
+		final long baseModified;
+		final long checksum;
+		boolean failed;
+		// disk thread only
+		DeltaWriter writer;
+		volatile IOException error;
+		/** set on the disk thread once the new version is complete */
+		volatile CompletableFuture<Void> committed;
+
+		Delta(int requestId, Path file, Path staged, ByteBuf header) {
+			this.requestId = requestId;
+			this.file = file;
+			this.staged = staged;
+			this.size = header.readLong();
+			this.baseSize = header.readLong();
+			this.baseModified = header.readLong();
+			this.checksum = header.readLong();
+		}
+	}
+
+	/**
+	 * Signature of a version of the file.
+	 */
+	private static class Base {
+		final FileMetadata metadata;
+		final Signature signature;
+
+		Base(FileMetadata metadata, Signature signature) {
+			this.metadata = metadata;
+			this.signature = signature;
+		}
+	}
+
+	private interface DiskTask {
+		void run() throws IOException;
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (!(msg instanceof Frame)) {
+			ctx.fireChannelRead(msg);
+			return;
+		}
+		Frame frame = (Frame) msg;
+		switch (frame.opcode()) {
+			case SIGNATURE:
+				signature(ctx, frame);
+				break;
+			case DELTA:
+				try {
+					delta(ctx, frame);
+				} finally {
+					frame.release();
+				}
+				break;
+			case PATCH:
+				patch(ctx, frame);
+				break;
+			default:
+				ctx.fireChannelRead(frame);
+		}
+	}
+
+	private void signature(ChannelHandlerContext ctx, Frame frame) {
+		int requestId = frame.requestId();
+		Path file = storage.resolve(frame.nameString());
+		frame.release();
+		storage.disk().submit(file, ctx.executor(), () -> {
+			FileMetadata metadata = file == null ? null : storage.index().get(file);
+			List<Segment> segments = metadata == null ? null : storage.segments(file, 0, -1);
+			if (segments == null) {
+				return null;
+			}
+			Signature signature = Signature.compute(segments);
+			if (signature.size() != metadata.getSize() || !storage.current(file, metadata)) {
+				throw new IOException(file.getFileName() + " has changed while it was signed");
+			}
+			return new Base(metadata, signature);
+		}).addListener(future -> {
+			if (future.isSuccess()) {
+				writeSignature(ctx, requestId, (Base) future.getNow());
+			} else {
+				ctx.writeAndFlush(Frame.error(ctx.alloc(), requestId, String.valueOf(future.cause())));
+			}
+		});
+	}
+
+	private void writeSignature(ChannelHandlerContext ctx, int requestId, Base base) {
+		ByteBuf header = ctx.alloc().buffer(24);
+		if (base == null) {
+			ctx.writeAndFlush(Frame.of(Opcode.OK, requestId, header.writeLong(-1).writeLong(0).writeInt(0).writeInt(0)));
+			return;
+		}
+		Signature signature = base.signature;
+		header.writeLong(signature.size()).writeLong(base.metadata.getModified())
+				.writeInt(signature.blockSize()).writeInt(signature.count());
+		ctx.write(Frame.of(Opcode.OK, requestId, header));
+		int perFrame = Frame.MAX_PAYLOAD_LENGTH / Signature.ENTRY_SIZE;
+		for (int from = 0; from < signature.count(); from += perFrame) {
+			int to = Math.min(signature.count(), from + perFrame);
+			ByteBuf entries = ctx.alloc().buffer((to - from) * Signature.ENTRY_SIZE);
+			for (int block = from; block < to; block++) {
+				entries.writeInt(signature.weak(block))
+						.writeBytes(signature.strong(), block * Signature.STRONG_SIZE, Signature.STRONG_SIZE);
+			}
+			ctx.write(Frame.of(Opcode.DATA, requestId, entries));
+		}
+		ctx.flush();
+	}
+
+	private void delta(ChannelHandlerContext ctx, Frame frame) {
+		Path file = storage.resolve(frame.nameString());
+		Delta current = deltas.get(frame.requestId());
+		if (file == null || frame.payloadLength() < 32 || current != null && !current.failed) {
+			ctx.writeAndFlush(Frame.error(ctx.alloc(), frame.requestId(), "wrong delta request"));
+			return;
+		}
+		Delta delta = new Delta(frame.requestId(), file, storage.staging(file, "delta"), frame.payload());
+		deltas.put(delta.requestId, delta);
+		submit(ctx, delta, 0, null, () -> {
+			storage.claim(delta.staged, delta);
+			FileMetadata base = storage.index().get(delta.file);
+			List<Segment> source = base == null ? null : storage.segments(delta.file, 0, -1);
+			if (source == null || base.getSize() != delta.baseSize || base.getModified() != delta.baseModified) {
+				throw new IOException("the file has changed since its signature");
+			}
+			delta.writer = new DeltaWriter(source, delta.staged);
+			// the writer holds the old version open, it must still be the signed one
+			if (!storage.current(delta.file, base)) {
+				throw new IOException("the file has changed since its signature");
+			}
+		});
+	}
+
+	private void patch(ChannelHandlerContext ctx, Frame frame) {
+		Delta delta = deltas.get(frame.requestId());
+		if (delta == null || delta.failed) {
+			frame.release();
+			if (delta == null) {
+				ctx.writeAndFlush(Frame.error(ctx.alloc(), frame.requestId(), "no delta in progress"));
+			}
+			return;
+		}
+		ByteBuf instructions = frame.payload();
+		int length = instructions.readableBytes();
+		pending += length;
+		if (pending > HIGH_WATER_MARK || storage.disk().isOverloaded()) {
+			ctx.channel().config().setAutoRead(false);
+		}
+		submit(ctx, delta, length, frame, () -> delta.writer.apply(instructions.nioBuffer()));
+	}
+
+	/**
+	 * Queues the task after the previous ones of the file and commits the new version once it is complete.
+	 * The frame (if any) is released after the task.
+	 */
+	private void submit(ChannelHandlerContext ctx, Delta delta, int length, Frame frame, DiskTask task) {
+		storage.disk().submitBulk(delta.file, ctx.executor(), () -> {
+			try {
+				if (delta.error != null) {
+					return false;
+				}
+				task.run();
+				if (delta.writer.position() > delta.size) {
+					throw new IOException("delta exceeds declared size");
+				}
+				if (delta.writer.position() == delta.size) {
+					if (delta.writer.checksum() != delta.checksum) {
+						throw new IOException("checksum is " + Long.toHexString(delta.writer.checksum())
+								+ ", expected " + Long.toHexString(delta.checksum));
+					}
+					delta.writer.close();
+					delta.committed = storage.journal().commit(delta.staged, delta.file);
+					// the commit has taken the staging file over
+					storage.release(delta.staged, delta);
+					return true;
+				}
+				return false;
+			} catch (IOException e) {
+				delta.error = e;
+				closeQuietly(delta);
+				return false;
+			} catch (RuntimeException e) {
+				// a bug must not leave the writer open and the client without a reply
+				delta.error = new IOException(String.valueOf(e), e);
+				closeQuietly(delta);
+				return false;
+			} finally {
+				if (frame != null) {
+					frame.release();
+				}
+			}
+		}).addListener(future -> {
+			if (!future.isSuccess()) {
+				if (future.cause() instanceof RejectedExecutionException && frame != null) {
+					frame.release();
+				}
+				delta.error = new IOException(String.valueOf(future.cause()));
+			}
+			applied(ctx, delta, length, Boolean.TRUE.equals(future.getNow()), delta.error);
+		});
+	}
+
+	private void applied(ChannelHandlerContext ctx, Delta delta, int length, boolean done, IOException error) {
+		pending -= length;
+		if (!ctx.channel().config().isAutoRead()
+				&& (pending == 0 || pending < LOW_WATER_MARK && !storage.disk().isOverloaded())) {
+			ctx.channel().config().setAutoRead(true);
+		}
+		if (error != null) {
+			fail(ctx, delta, error.getMessage());
+		} else if (done) {
+			// OK once the new version is durable, without holding a disk thread until then
+			delta.committed.whenComplete((v, e) -> ctx.executor().execute(() -> {
+				if (e != null) {
+					fail(ctx, delta, "commit failed: " + e);
+				} else {
+					deltas.remove(delta.requestId);
+					ctx.writeAndFlush(Frame.of(Opcode.OK, delta.requestId));
+				}
+			}));
+		}
+	}
+
+	private void fail(ChannelHandlerContext ctx, Delta delta, String message) {
+		if (!delta.failed) {
+			// stays registered so that the rest of its PATCH frames are dropped quietly
+			delta.failed = true;
+			ctx.writeAndFlush(Frame.error(ctx.alloc(), delta.requestId, "delta failed: " + message));
+		}
+	}
+
+	private void closeQuietly(Delta delta) {
+		try {
+			if (delta.writer != null) {
+				delta.writer.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		storage.release(delta.staged, delta);
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		for (Delta delta : deltas.values()) {
+			delta.error = new IOException("connection closed");
+			storage.disk().submit(delta.file, ctx.executor(), () -> {
+				closeQuietly(delta);
+				return null;
+			}).addListener(future -> {
+				if (!future.isSuccess()) {
+					closeQuietly(delta);
+				}
+			});
+		}
+		deltas.clear();
+		ctx.fireChannelInactive();
+	}
+}
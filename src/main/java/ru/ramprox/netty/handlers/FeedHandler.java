@@ -0,0 +1,165 @@
+package ru.ramprox.netty.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import ru.ramprox.netty.protocol.Frame;
+import ru.ramprox.netty.protocol.Opcode;
+import ru.ramprox.storage.ChangeFeed;
+import ru.ramprox.storage.FileMetadata;
+import ru.ramprox.storage.Storage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Handles SUBSCRIBE frames, everything else goes further down the pipeline.
+ * <p>
+ * SUBSCRIBE payload: [long epoch, long sequence], the position of an earlier subscription to resume from.
+ * The reply is OK with long epoch. Then, for as long as the connection is open, CHANGES frames carry the request id
+ * of the subscription. Their payload is long sequence, byte flags, then the entries. An entry is byte type,
+ * short nameLength, name, long size and long modification time; the types are those of {@link ChangeFeed}.
+ * A client that has applied a frame resumes from the epoch and that sequence. The sequence is -1 in all but the last
+ * frame of a batch. With the {@link #RESET} flag the client drops its copy of the listing, and the whole listing follows.
+ * <p>
+ * Changes are coalesced per connection: while the channel can't take more, only the latest change of every name
+ * waits, so a slow client costs one entry per file at most, and a burst of changes to one file is sent once.
+ */
+public class FeedHandler extends ChannelInboundHandlerAdapter {
+	/** CHANGES flag: drop the listing, the whole one follows */
+	public static final int RESET = 1;
+	/** type, name length, size, modification time */
+	private static final int ENTRY_OVERHEAD = 1 + 2 + 8 + 8;
+
+	private final ChangeFeed feed;
+	private Subscription subscription;
+
+	public FeedHandler(Storage storage) {
+		this.feed = storage.feed();
+	}
+
+	private static class Subscription implements Consumer<ChangeFeed.Change> {
+		final ChannelHandlerContext ctx;
+		final int requestId;
+		// guarded by this, changes come on the threads that change the index
+		LinkedHashMap<String, ChangeFeed.Change> pending = new LinkedHashMap<>();
+		boolean reset;
+		long sequence;
+		boolean scheduled;
+
+		Subscription(ChannelHandlerContext ctx, int requestId, long sequence) {
+			this.ctx = ctx;
+			this.requestId = requestId;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public void accept(ChangeFeed.Change change) {
+			synchronized (this) {
+				if (change.getType() == ChangeFeed.RESET) {
+					pending.clear();
+					reset = true;
+				} else {
+					String name = change.getMetadata().getName();
+					// to the end, entries go in the order of their last change
+					pending.remove(name);
+					pending.put(name, change);
+				}
+				sequence = change.getSequence();
+				if (scheduled) {
+					return;
+				}
+				scheduled = true;
+			}
+			ctx.executor().execute(this::flush);
+		}
+
+		/**
+		 * Sends what is pending, unless the channel can't take it now; it is sent when it becomes writable.
+		 */
+		void flush() {
+			LinkedHashMap<String, ChangeFeed.Change> changes;
+			boolean reset;
+			long sequence;
+			synchronized (this) {
+				scheduled = false;
+				if (!ctx.channel().isWritable() || pending.isEmpty() && !this.reset) {
+					return;
+				}
+				changes = pending;
+				pending = new LinkedHashMap<>();
+				reset = this.reset;
+				this.reset = false;
+				sequence = this.sequence;
+			}
+			List<ByteBuf> frames = new ArrayList<>();
+			ByteBuf payload = header(reset);
+			for (ChangeFeed.Change change : changes.values()) {
+				if (payload.readableBytes() > Frame.MAX_PAYLOAD_LENGTH - ENTRY_OVERHEAD - Frame.MAX_NAME_LENGTH) {
+					frames.add(payload);
+					payload = header(false);
+				}
+				FileMetadata metadata = change.getMetadata();
+				payload.writeByte(change.getType());
+				int lengthIndex = payload.writerIndex();
+				payload.writeShort(0);
+				int nameLength = ByteBufUtil.writeUtf8(payload, metadata.getName());
+				payload.setShort(lengthIndex, nameLength);
+				payload.writeLong(metadata.getSize()).writeLong(metadata.getModified());
+			}
+			frames.add(payload);
+			payload.setLong(0, sequence);
+			for (ByteBuf frame : frames) {
+				ctx.write(Frame.of(Opcode.CHANGES, requestId, frame));
+			}
+			ctx.flush();
+		}
+
+		private ByteBuf header(boolean reset) {
+			return ctx.alloc().buffer().writeLong(-1).writeByte(reset ? RESET : 0);
+		}
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (!(msg instanceof Frame) || ((Frame) msg).opcode() != Opcode.SUBSCRIBE) {
+			ctx.fireChannelRead(msg);
+			return;
+		}
+		Frame frame = (Frame) msg;
+		try {
+			if (subscription != null) {
+				ctx.writeAndFlush(Frame.error(ctx.alloc(), frame.requestId(), "already subscribed"));
+				return;
+			}
+			ByteBuf payload = frame.payload();
+			long epoch = payload.readableBytes() >= 16 ? payload.readLong() : 0;
+			long after = payload.readableBytes() >= 8 ? payload.readLong() : -1;
+			subscription = new Subscription(ctx, frame.requestId(), after);
+			// before the first changes, they are sent from a task of the event loop
+			ctx.writeAndFlush(Frame.of(Opcode.OK, frame.requestId(), ctx.alloc().buffer(8).writeLong(feed.epoch())));
+			feed.subscribe(epoch, after, subscription);
+		} finally {
+			frame.release();
+		}
+	}
+
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		if (subscription != null && ctx.channel().isWritable()) {
+			subscription.flush();
+		}
+		ctx.fireChannelWritabilityChanged();
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		if (subscription != null) {
+			feed.unsubscribe(subscription);
+		}
+		ctx.fireChannelInactive();
+	}
+}
@@ -0,0 +1,75 @@
+package ru.ramprox.netty.handlers;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundInvoker;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.compression.ZlibEncoder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedNioFile;
+import ru.ramprox.netty.Transport;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes file contents to a channel.
+ * Plain connections get a {@link DefaultFileRegion} (sendfile, no user-space copy), corked with the frame header
+ * written before it on epoll, see {@link Transport#cork(Channel, boolean)};
+ * TLS or compressed connections fall back to {@link ChunkedNioFile},
+ * which needs a {@link io.netty.handler.stream.ChunkedWriteHandler} in the pipeline.
+ * The file channel stays open so that a file can be sent in several parts; the caller closes it.
+ */
+public final class FileSender {
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	private FileSender() {
+	}
+
+	public static boolean isZeroCopy(ChannelPipeline pipeline) {
+		return pipeline.get(SslHandler.class) == null
+				&& pipeline.get(ZlibEncoder.class) == null;
+	}
+
+	public static ChannelFuture send(ChannelHandlerContext ctx, FileChannel file, long position, long count) throws IOException {
+		return send(ctx, ctx.pipeline(), file, position, count);
+	}
+
+	public static ChannelFuture send(Channel channel, FileChannel file, long position, long count) throws IOException {
+		return send(channel, channel.pipeline(), file, position, count);
+	}
+
+	private static ChannelFuture send(ChannelOutboundInvoker out, ChannelPipeline pipeline,
+									  FileChannel file, long position, long count) throws IOException {
+		if (isZeroCopy(pipeline)) {
+			Channel channel = pipeline.channel();
+			Transport.cork(channel, true);
+			ChannelFuture sent = out.writeAndFlush(new SharedFileRegion(file, position, count));
+			sent.addListener(f -> Transport.cork(channel, false));
+			return sent;
+		}
+		return out.writeAndFlush(new SharedChunkedFile(file, position, count));
+	}
+
+	private static class SharedFileRegion extends DefaultFileRegion {
+		SharedFileRegion(FileChannel file, long position, long count) {
+			super(file, position, count);
+		}
+
+		@Override
+		protected void deallocate() {
+		}
+	}
+
+	private static class SharedChunkedFile extends ChunkedNioFile {
+		SharedChunkedFile(FileChannel file, long position, long count) throws IOException {
+			super(file, position, count, CHUNK_SIZE);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package ru.ramprox.netty.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import ru.ramprox.metrics.Counter;
+import ru.ramprox.metrics.Gauge;
+import ru.ramprox.metrics.Histogram;
+import ru.ramprox.metrics.Metrics;
+import ru.ramprox.netty.protocol.Frame;
+import ru.ramprox.netty.protocol.Opcode;
+
+/**
+ * Records connections, bytes and request latency of a channel. It sits between the codec and the handlers,
+ * so it sees frames both ways as well as the headers and file regions written beside them.
+ * <p>
+ * Latency of a request is the time from its frame to the OK or ERROR reply with its request id,
+ * for a download that is the time to its first byte. DATA and DELTA frames continue a request and are not timed.
+ * Bytes out are counted when they are written to the channel, not when they leave the socket.
+ */
+public class MetricsHandler extends ChannelDuplexHandler {
+	private static final Opcode[] OPCODES = Opcode.values();
+
+	private final Metrics metrics;
+	private final Counter connections;
+	private final Gauge active;
+	private final Counter bytesIn;
+	private final Counter bytesOut;
+	private final Histogram[] latency = new Histogram[OPCODES.length];
+	/** request id -> start of the request */
+	private final IntObjectMap<Request> requests = new IntObjectHashMap<>();
+
+	private static class Request {
+		final Opcode opcode;
+		final long start;
+
+		Request(Opcode opcode, long start) {
+			this.opcode = opcode;
+			this.start = start;
+		}
+	}
+
+	public MetricsHandler(Metrics metrics) {
+		this.metrics = metrics;
+		this.connections = metrics.counter(Metrics.CONNECTIONS);
+		this.active = metrics.gauge(Metrics.CONNECTIONS_ACTIVE);
+		this.bytesIn = metrics.counter(Metrics.BYTES_IN);
+		this.bytesOut = metrics.counter(Metrics.BYTES_OUT);
+	}
+
+	@Override
+	public void channelActive(ChannelHandlerContext ctx) throws Exception {
+		connections.increment();
+		active.increment();
+		ctx.fireChannelActive();
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		active.decrement();
+		requests.clear();
+		ctx.fireChannelInactive();
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (msg instanceof Frame) {
+			Frame frame = (Frame) msg;
+			bytesIn.add(Frame.LENGTH_FIELD_SIZE + Frame.HEADER_SIZE + frame.content().readableBytes());
+			Opcode opcode = frame.opcode();
+			if (opcode != Opcode.DATA && opcode != Opcode.DELTA && !requests.containsKey(frame.requestId())) {
+				requests.put(frame.requestId(), new Request(opcode, System.nanoTime()));
+			}
+		}
+		ctx.fireChannelRead(msg);
+	}
+
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+		if (msg instanceof Frame) {
+			Frame frame = (Frame) msg;
+			bytesOut.add(Frame.LENGTH_FIELD_SIZE + Frame.HEADER_SIZE + frame.content().readableBytes());
+			if (frame.opcode() == Opcode.OK || frame.opcode() == Opcode.ERROR) {
+				Request request = requests.remove(frame.requestId());
+				if (request != null) {
+					latency(request.opcode).recordSince(request.start);
+				}
+			}
+		} else if (msg instanceof ByteBuf) {
+			bytesOut.add(((ByteBuf) msg).readableBytes());
+		} else if (msg instanceof ByteBufHolder) {
+			bytesOut.add(((ByteBufHolder) msg).content().readableBytes());
+		} else if (msg instanceof FileRegion) {
+			bytesOut.add(((FileRegion) msg).count());
+		} else if (msg instanceof ChunkedInput) {
+			bytesOut.add(Math.max(0, ((ChunkedInput<?>) msg).length()));
+		}
+		ctx.write(msg, promise);
+	}
+
+	private Histogram latency(Opcode opcode) {
+		Histogram histogram = latency[opcode.ordinal()];
+		if (histogram == null) {
+			histogram = metrics.histogram(Metrics.COMMAND_LATENCY, "command", opcode.name().toLowerCase());
+			latency[opcode.ordinal()] = histogram;
+		}
+		return histogram;
+	}
+}
@@ -0,0 +1,736 @@
+package ru.ramprox.netty.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import ru.ramprox.netty.protocol.Frame;
+import ru.ramprox.netty.protocol.Opcode;
+import ru.ramprox.shaping.TransferSlots;
+import ru.ramprox.storage.Compression;
+import ru.ramprox.storage.Compressor;
+import ru.ramprox.storage.Crc32c;
+import ru.ramprox.storage.FileMetadata;
+import ru.ramprox.storage.Segment;
+import ru.ramprox.storage.Storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.Checksum;
+
+/**
+ * Server side of the frame protocol.
+ * <ul>
+ *     <li>UPLOAD name, payload: long size[, long offset[, byte flags]]; then DATA frames until size bytes
+ *     are received; reply OK (see {@link UploadHandler})</li>
+ *     <li>PREPARE / COMMIT name, payload: long size; parallel upload staging (see {@link UploadHandler})</li>
+ *     <li>DOWNLOAD name, payload: [long offset[, long length[, byte encoding[, byte flags]]]]; reply OK with long count,
+ *     long file size and byte encoding, then count bytes from offset in DATA frames. A client that accepts
+ *     {@link Compression#DEFLATE} gets a whole file worth compressing as a deflate stream: count is its length,
+ *     or -1 when it is compressed on the fly and an empty DATA frame ends it. With {@link #VERIFY} a CHECKSUM frame
+ *     follows, long {@link Crc32c} of the DATA payloads</li>
+ *     <li>STAT name, payload: [byte flags]; reply OK with long file size, -1 if there is no such file.
+ *     With {@link #RESUMABLE} the size an upload can be resumed from, that of an interrupted upload,
+ *     0 if there is none</li>
+ *     <li>LIST prefix, payload: [int limit[, name to start after]]; reply DATA frames with entries
+ *     (short nameLength, name, long size, long modification time) sorted by name, then empty OK.
+ *     Limit 0 means no limit; the next page starts after the last name of the previous one.
+ *     Hidden (dot) files are left out.</li>
+ *     <li>HAVE / CHUNK / MANIFEST; deduplicated upload (see {@link ChunkHandler})</li>
+ *     <li>SIGNATURE / DELTA / PATCH; delta upload of a modified file (see {@link DeltaHandler})</li>
+ *     <li>SUBSCRIBE; changes of the listing pushed as CHANGES frames, instead of polling LIST (see {@link FeedHandler})</li>
+ *     <li>EXIT; reply OK and close</li>
+ * </ul>
+ * Failures are answered with ERROR and a UTF-8 message.
+ * Every reply carries the request id of its request, so a client may send requests without waiting
+ * and replies of concurrent downloads interleave chunk by chunk.
+ * <p>
+ * Files are read in chunks on the storage disk threads, so one slow disk never stalls unrelated connections.
+ * -Dstorage.sendfile=true sends them zero-copy (sendfile) from the event loop instead, corked with their frame
+ * headers, unless they are compressed on the fly or the connection is encrypted; only for disks fast enough
+ * to block an event loop on, e.g. when the files stay in the page cache.
+ * Everything else that may touch the disk runs on the storage {@link ru.ramprox.storage.DiskExecutor}, never on the
+ * event loop: lookups of files outside the index and cache loads.
+ * Compression runs on the disk threads as well, and the first compressed download of a file stores
+ * its compressed form for the next ones.
+ */
+public class StorageHandler extends SimpleChannelInboundHandler<Frame> {
+	/** STAT flag: the size an interrupted upload of the file has got to */
+	public static final int RESUMABLE = 1;
+	/** DOWNLOAD flag: a CHECKSUM frame ends the download */
+	public static final int VERIFY = 1;
+	/** small enough that replies of other requests do not wait long behind a chunk */
+	private static final int DATA_CHUNK_SIZE = 256 * 1024;
+	/** send files from the event loop, see {@link SendfileDownload} */
+	private static final boolean SENDFILE = Boolean.getBoolean("storage.sendfile");
+
+	private final Storage storage;
+	private final TransferSlots slots;
+
+	public StorageHandler(Storage storage, TransferSlots slots) {
+		this.storage = storage;
+		this.slots = slots;
+	}
+
+	@Override
+	public void channelActive(ChannelHandlerContext ctx) throws Exception {
+		System.out.println("Client connected: " + ctx.channel());
+	}
+
+	@Override
+	protected void channelRead0(ChannelHandlerContext ctx, Frame frame) throws Exception {
+		switch (frame.opcode()) {
+			case DOWNLOAD:
+				downloading(ctx, frame);
+				break;
+			case STAT:
+				stat(ctx, frame);
+				break;
+			case LIST:
+				listing(ctx, frame);
+				break;
+			case EXIT:
+				ctx.writeAndFlush(Frame.of(Opcode.OK, frame.requestId()))
+						.addListener(ChannelFutureListener.CLOSE);
+				break;
+			default:
+				ctx.writeAndFlush(Frame.error(ctx.alloc(), frame.requestId(), "unexpected " + frame.opcode()));
+		}
+	}
+
+	private void downloading(ChannelHandlerContext ctx, Frame frame) {
+		int requestId = frame.requestId();
+		ByteBuf payload = frame.payload();
+		long offset = payload.readableBytes() >= 8 ? payload.readLong() : 0;
+		long length = payload.readableBytes() >= 8 ? payload.readLong() : -1;
+		byte encoding = payload.isReadable() ? payload.readByte() : Compression.NONE;
+		boolean deflate = encoding == Compression.DEFLATE && offset == 0 && length < 0;
+		boolean verify = payload.isReadable() && (payload.readByte() & VERIFY) != 0;
+		if (offset < 0) {
+			ctx.writeAndFlush(Frame.error(ctx.alloc(), requestId, "wrong offset"));
+			return;
+		}
+		Path file = storage.resolve(frame.nameString());
+		if (file == null) {
+			ctx.writeAndFlush(Frame.error(ctx.alloc(), requestId, "file not found"));
+			return;
+		}
+		slots.acquire(TransferSlots.client(ctx.channel().remoteAddress()), ctx.executor(), slot -> {
+			if (ctx.channel().isActive()) {
+				download(ctx, requestId, file, offset, length, deflate, verify, slot);
+			} else {
+				slot.release();
+			}
+		});
+	}
+
+	/**
+	 * Sends the file, the slot is released once it has been sent or the download failed.
+	 */
+	private void download(ChannelHandlerContext ctx, int requestId, Path file, long offset, long length,
+						  boolean deflate, boolean verify, TransferSlots.Slot slot) {
+		boolean indexed = storage.index().covers(file);
+		if (indexed) {
+			FileMetadata metadata = storage.index().get(file.getFileName().toString());
+			if (metadata == null || metadata.isDirectory()) {
+				slot.release();
+				ctx.writeAndFlush(Frame.error(ctx.alloc(), requestId, "file not found"));
+				return;
+			}
+			ByteBuf content = compress(deflate, metadata) ? null : storage.cache().get(file, metadata);
+			if (content != null) {
+				// in memory already, written at once
+				slot.release();
+				sendCached(ctx, requestId, file, metadata, content, offset, length, verify);
+				return;
+			}
+		}
+		// ordered after pending writes of the file
+		storage.disk().submit(file, ctx.executor(), () -> {
+			FileMetadata metadata = storage.index().get(file);
+			if (metadata == null || metadata.isDirectory()) {
+				return null;
+			}
+			if (compress(deflate, metadata)) {
+				return compressed(file, metadata);
+			}
+			ByteBuf content = indexed ? null : storage.cache().get(file, metadata);
+			if (content == null && storage.cache().admit(file, metadata)) {
+				content = storage.load(file, metadata);
+			}
+			if (content != null) {
+				return new Cached(metadata, content);
+			}
+			// the stored checksum is used only for the version it was computed from
+			boolean whole = whole(metadata, offset, length) && storage.current(file, metadata);
+			List<Segment> segments = storage.segments(file, offset, length);
+			if (segments == null) {
+				return null;
+			}
+			// a plain file is opened here, off the event loop; later commits replace it, not the opened version
+			FileChannel opened = segments.size() == 1 && segments.get(0).getPath().equals(file)
+					? FileChannel.open(file, StandardOpenOption.READ) : null;
+			try {
+				whole = whole && storage.current(file, metadata);
+			} catch (IOException e) {
+				if (opened != null) {
+					opened.close();
+				}
+				throw e;
+			}
+			return new Source(file, metadata, whole, segments, Compression.NONE, null, opened);
+		}).addListener(future -> {
+			Object source = future.getNow();
+			if (!future.isSuccess()) {
+				slot.release();
+				ctx.writeAndFlush(Frame.error(ctx.alloc(), requestId, String.valueOf(future.cause())));
+			} else if (source == null) {
+				slot.release();
+				ctx.writeAndFlush(Frame.error(ctx.alloc(), requestId, "file not found"));
+			} else if (source instanceof Cached) {
+				slot.release();
+				Cached cached = (Cached) source;
+				sendCached(ctx, requestId, file, cached.metadata, cached.content, offset, length, verify);
+			} else {
+				send(ctx, requestId, (Source) source, verify, slot);
+			}
+		});
+	}
+
+	private static boolean compress(boolean deflate, FileMetadata metadata) {
+		return deflate && Compression.worth(metadata.getName(), metadata.getSize());
+	}
+
+	private static boolean whole(FileMetadata metadata, long offset, long length) {
+		return offset == 0 && (length < 0 || length >= metadata.getSize());
+	}
+
+	/**
+	 * Saves the checksum of a whole file computed from the bytes as they were sent, for the next downloads.
+	 */
+	private void saveChecksum(ChannelHandlerContext ctx, Path file, FileMetadata metadata, long checksum) {
+		storage.disk().submit(file, ctx.executor(), () -> {
+			storage.saveChecksum(file, metadata, checksum);
+			return null;
+		}).addListener(future -> {
+			if (!future.isSuccess()) {
+				future.cause().printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * @return the stored compressed form of the file, or the file with a compressor to make one
+	 */
+	private Source compressed(Path file, FileMetadata metadata) throws IOException {
+		Segment stored = storage.compressed(file, metadata);
+		if (stored != null) {
+			return new Source(file, metadata, false, Collections.singletonList(stored), Compression.DEFLATE, null, null);
+		}
+		List<Segment> segments = storage.segments(file, 0, -1);
+		if (segments == null) {
+			return null;
+		}
+		return new Source(file, metadata, false, segments, Compression.DEFLATE, new Compressor(storage, file, metadata),
+				null);
+	}
+
+	/**
+	 * Where a download comes from on disk.
+	 */
+	private static class Source {
+		final Path file;
+		final FileMetadata metadata;
+		/** the whole file as it is, its checksum is that of the file */
+		final boolean whole;
+		final List<Segment> segments;
+		final byte encoding;
+		/** compresses the segments on the fly, null - they are sent as they are */
+		final Compressor compressor;
+		/** of the first segment, null - each segment is opened when it is sent */
+		final FileChannel opened;
+
+		Source(Path file, FileMetadata metadata, boolean whole, List<Segment> segments, byte encoding,
+			   Compressor compressor, FileChannel opened) {
+			this.file = file;
+			this.metadata = metadata;
+			this.whole = whole;
+			this.segments = segments;
+			this.encoding = encoding;
+			this.compressor = compressor;
+			this.opened = opened;
+		}
+
+		/**
+		 * @return stored checksum of what is sent, -1 if it has to be computed
+		 */
+		long checksum() {
+			return whole ? metadata.getChecksum() : -1;
+		}
+	}
+
+	/**
+	 * A file loaded into the cache.
+	 */
+	private static class Cached {
+		final FileMetadata metadata;
+		final ByteBuf content;
+
+		Cached(FileMetadata metadata, ByteBuf content) {
+			this.metadata = metadata;
+			this.content = content;
+		}
+	}
+
+	private void send(ChannelHandlerContext ctx, int requestId, Source source, boolean verify, TransferSlots.Slot slot) {
+		long count = 0;
+		for (Segment segment : source.segments) {
+			count += segment.getLength();
+		}
+		if (source.compressor != null) {
+			count = -1;
+		}
+		ByteBuf reply = ctx.alloc().buffer(17).writeLong(count).writeLong(source.metadata.getSize())
+				.writeByte(source.encoding);
+		ctx.write(Frame.of(Opcode.OK, requestId, reply));
+		// the bytes of a sendfile never pass through the server, so an unknown checksum rules it out
+		if (SENDFILE && source.compressor == null && (!verify || source.checksum() != -1)
+				&& FileSender.isZeroCopy(ctx.pipeline())) {
+			new SendfileDownload(ctx, requestId, source, verify, slot).next();
+		} else {
+			new Download(ctx, requestId, source, verify, slot).read();
+		}
+	}
+
+	/**
+	 * Sends a range of a cached file as slices of its buffer, they are small enough to be written at once.
+	 */
+	private void sendCached(ChannelHandlerContext ctx, int requestId, Path file, FileMetadata metadata,
+							ByteBuf content, long offset, long length, boolean verify) {
+		try {
+			int size = content.readableBytes();
+			int start = (int) Math.min(offset, size);
+			int count = (int) (length < 0 ? size - start : Math.min(length, size - start));
+			ByteBuf reply = ctx.alloc().buffer(17).writeLong(count).writeLong(size).writeByte(Compression.NONE);
+			ctx.write(Frame.of(Opcode.OK, requestId, reply));
+			for (int sent = 0; sent < count; sent += DATA_CHUNK_SIZE) {
+				int chunk = Math.min(DATA_CHUNK_SIZE, count - sent);
+				ctx.write(Frame.of(Opcode.DATA, requestId, content.retainedSlice(content.readerIndex() + start + sent, chunk)));
+			}
+			if (verify) {
+				boolean whole = start == 0 && count == size;
+				long checksum = whole ? metadata.getChecksum() : -1;
+				if (checksum == -1) {
+					Checksum sent = Crc32c.create();
+					Crc32c.update(sent, content.nioBuffer(content.readerIndex() + start, count));
+					checksum = sent.getValue();
+					if (whole) {
+						saveChecksum(ctx, file, metadata, checksum);
+					}
+				}
+				writeChecksum(ctx, requestId, checksum);
+			}
+			ctx.flush();
+		} finally {
+			content.release();
+		}
+	}
+
+	private void stat(ChannelHandlerContext ctx, Frame frame) {
+		int requestId = frame.requestId();
+		Path file = storage.resolve(frame.nameString());
+		boolean resumable = frame.payload().isReadable() && (frame.payload().readByte() & RESUMABLE) != 0;
+		if (file != null && resumable) {
+			// ordered after pending writes of the upload
+			storage.disk().submit(storage.upload(file), ctx.executor(), () -> storage.uploaded(file))
+					.addListener(future -> ctx.writeAndFlush(future.isSuccess()
+							? Frame.of(Opcode.OK, requestId, ctx.alloc().buffer(8).writeLong((Long) future.getNow()))
+							: Frame.error(ctx.alloc(), requestId, String.valueOf(future.cause()))));
+			return;
+		}
+		if (file == null || storage.index().covers(file)) {
+			stat(ctx, requestId, file == null ? null : storage.index().get(file.getFileName().toString()));
+			return;
+		}
+		storage.disk().submit(file, ctx.executor(), () -> storage.index().get(file)).addListener(future -> {
+			if (future.isSuccess()) {
+				stat(ctx, requestId, (FileMetadata) future.getNow());
+			} else {
+				ctx.writeAndFlush(Frame.error(ctx.alloc(), requestId, String.valueOf(future.cause())));
+			}
+		});
+	}
+
+	private static void writeChecksum(ChannelHandlerContext ctx, int requestId, long checksum) {
+		ctx.write(Frame.of(Opcode.CHECKSUM, requestId, ctx.alloc().buffer(8).writeLong(checksum)));
+	}
+
+	private static void stat(ChannelHandlerContext ctx, int requestId, FileMetadata metadata) {
+		long size = metadata != null && !metadata.isDirectory() ? metadata.getSize() : -1;
+		ctx.writeAndFlush(Frame.of(Opcode.OK, requestId, ctx.alloc().buffer(8).writeLong(size)));
+	}
+
+	private void listing(ChannelHandlerContext ctx, Frame frame) {
+		int requestId = frame.requestId();
+		ByteBuf payload = frame.payload();
+		int limit = payload.readableBytes() >= 4 ? payload.readInt() : 0;
+		String after = payload.isReadable() ? payload.toString(StandardCharsets.UTF_8) : null;
+		ByteBuf entries = ctx.alloc().buffer();
+		for (FileMetadata entry : storage.index().list(frame.nameString(), after, limit)) {
+			if (entries.readableBytes() > Frame.MAX_PAYLOAD_LENGTH - 2 - Frame.MAX_NAME_LENGTH - 16) {
+				ctx.write(Frame.of(Opcode.DATA, requestId, entries));
+				entries = ctx.alloc().buffer();
+			}
+			int lengthIndex = entries.writerIndex();
+			entries.writeShort(0);
+			int nameLength = ByteBufUtil.writeUtf8(entries, entry.getName());
+			entries.setShort(lengthIndex, nameLength);
+			entries.writeLong(entry.getSize());
+			entries.writeLong(entry.getModified());
+		}
+		ctx.write(Frame.of(Opcode.DATA, requestId, entries));
+		ctx.writeAndFlush(Frame.of(Opcode.OK, requestId));
+	}
+
+	/**
+	 * Sends segments as DATA frames read on the disk threads, so a slow disk stalls only this download.
+	 * One chunk is read ahead while the previous one is written; the next read starts when it has been flushed,
+	 * so a large file never piles up in the outbound buffer.
+	 * <p>
+	 * With a compressor every chunk is deflated right after it is read, and an empty frame follows the last one.
+	 * The checksum of a verified download is the stored one of a whole file, else it is computed from the chunks
+	 * as they are read, and saved for the next downloads of a whole file.
+	 */
+	private class Download {
+		private final ChannelHandlerContext ctx;
+		private final int requestId;
+		private final Source source;
+		private final boolean verify;
+		private final Iterator<Segment> segments;
+		private final TransferSlots.Slot slot;
+		// disk threads only, one read at a time
+		private final Compressor compressor;
+		/** of the chunks, null - not verified */
+		private final Checksum checksum;
+		private byte[] raw;
+		private boolean deflated;
+		private boolean terminated;
+		private FileChannel channel;
+		private long position;
+		private long end;
+		// event loop only
+		private ByteBuf ready;
+		private boolean reading;
+		private boolean writing;
+		private boolean finished;
+
+		Download(ChannelHandlerContext ctx, int requestId, Source source, boolean verify, TransferSlots.Slot slot) {
+			this.ctx = ctx;
+			this.requestId = requestId;
+			this.source = source;
+			this.verify = verify;
+			this.segments = source.segments.iterator();
+			this.compressor = source.compressor;
+			this.checksum = verify && source.checksum() == -1 ? Crc32c.create() : null;
+			this.slot = slot;
+			if (source.opened != null) {
+				Segment segment = segments.next();
+				channel = source.opened;
+				position = segment.getPosition();
+				end = position + segment.getLength();
+			}
+		}
+
+		void read() {
+			reading = true;
+			storage.disk().submitBulk(null, ctx.executor(), () -> {
+				ByteBuf chunk = readChunk();
+				if (chunk != null && checksum != null) {
+					Crc32c.update(checksum, chunk.nioBuffer());
+				}
+				return chunk;
+			}).addListener(future -> {
+				reading = false;
+				ByteBuf chunk = (ByteBuf) future.getNow();
+				if (!future.isSuccess()) {
+					// the client expects more bytes than it can get now
+					future.cause().printStackTrace();
+					abort();
+					ctx.close();
+				} else if (!ctx.channel().isActive()) {
+					if (chunk != null) {
+						chunk.release();
+					}
+					abort();
+				} else if (chunk == null) {
+					finished = true;
+					if (!writing) {
+						finish();
+					}
+				} else if (writing) {
+					ready = chunk;
+				} else {
+					write(chunk);
+				}
+			});
+		}
+
+		private void write(ByteBuf chunk) {
+			writing = true;
+			ctx.writeAndFlush(Frame.of(Opcode.DATA, requestId, chunk)).addListener(future -> {
+				writing = false;
+				if (!future.isSuccess()) {
+					abort();
+				} else if (ready != null) {
+					ByteBuf next = ready;
+					ready = null;
+					write(next);
+				} else if (finished) {
+					finish();
+				}
+			});
+			if (!reading && !finished && ready == null) {
+				read();
+			}
+		}
+
+		/**
+		 * Called once the last chunk has been written.
+		 */
+		private void finish() {
+			if (checksum != null) {
+				writeChecksum(ctx, requestId, checksum.getValue());
+				ctx.flush();
+				if (source.whole) {
+					saveChecksum(ctx, source.file, source.metadata, checksum.getValue());
+				}
+			} else if (verify) {
+				writeChecksum(ctx, requestId, source.checksum());
+				ctx.flush();
+			}
+			slot.release();
+		}
+
+		/**
+		 * @return the next chunk, null after the last one
+		 */
+		private ByteBuf readChunk() throws IOException {
+			if (compressor != null) {
+				return compressChunk();
+			}
+			if (!nextSegment()) {
+				return null;
+			}
+			int count = (int) Math.min(DATA_CHUNK_SIZE, end - position);
+			ByteBuf chunk = ctx.alloc().directBuffer(count);
+			try {
+				while (chunk.isWritable()) {
+					int read = chunk.writeBytes(channel, position, chunk.writableBytes());
+					if (read < 0) {
+						throw new EOFException("file was truncated");
+					}
+					position += read;
+				}
+				return chunk;
+			} catch (IOException e) {
+				chunk.release();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return whether there is more to read at the position
+		 */
+		private boolean nextSegment() throws IOException {
+			while (position >= end) {
+				closeFile();
+				if (!segments.hasNext()) {
+					return false;
+				}
+				Segment segment = segments.next();
+				channel = FileChannel.open(segment.getPath(), StandardOpenOption.READ);
+				position = segment.getPosition();
+				end = position + segment.getLength();
+			}
+			return true;
+		}
+
+		/**
+		 * Reads until the deflater has some output, it keeps small inputs to itself.
+		 * @return the next non-empty chunk, then an empty one for the end of the stream, then null
+		 */
+		private ByteBuf compressChunk() throws IOException {
+			if (terminated) {
+				return null;
+			}
+			if (!deflated) {
+				if (raw == null) {
+					raw = new byte[DATA_CHUNK_SIZE];
+				}
+				while (nextSegment()) {
+					ByteBuffer input = ByteBuffer.wrap(raw, 0, (int) Math.min(raw.length, end - position));
+					while (input.hasRemaining()) {
+						int read = channel.read(input, position);
+						if (read < 0) {
+							throw new EOFException("file was truncated");
+						}
+						position += read;
+					}
+					ByteBuffer output = compressor.compress(raw, 0, input.position());
+					if (output.hasRemaining()) {
+						return ctx.alloc().directBuffer(output.remaining()).writeBytes(output);
+					}
+				}
+				deflated = true;
+				ByteBuffer rest = compressor.finish();
+				if (rest.hasRemaining()) {
+					return ctx.alloc().directBuffer(rest.remaining()).writeBytes(rest);
+				}
+			}
+			terminated = true;
+			return ctx.alloc().buffer(0);
+		}
+
+		private void abort() {
+			slot.release();
+			if (ready != null) {
+				ready.release();
+				ready = null;
+			}
+			if (!reading) {
+				// after the last read, on a disk thread as well
+				storage.disk().submit(null, ctx.executor(), () -> {
+					closeFile();
+					if (compressor != null) {
+						compressor.close();
+					}
+					return null;
+				});
+			}
+		}
+
+		private void closeFile() throws IOException {
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+		}
+	}
+
+	/**
+	 * Sends segments as file regions written by the event loop itself (sendfile): no copies,
+	 * but a read from a cold disk blocks every channel of the loop.
+	 * The bytes never pass through the server, so it is used for a verified download only when the checksum
+	 * is stored.
+	 */
+	private class SendfileDownload {
+		private final ChannelHandlerContext ctx;
+		private final int requestId;
+		private final Source source;
+		private final Iterator<Segment> segments;
+		private final boolean verify;
+		private final TransferSlots.Slot slot;
+		private FileChannel channel;
+		private long position;
+		private long end;
+
+		SendfileDownload(ChannelHandlerContext ctx, int requestId, Source source, boolean verify,
+						 TransferSlots.Slot slot) {
+			this.ctx = ctx;
+			this.requestId = requestId;
+			this.source = source;
+			this.segments = source.segments.iterator();
+			this.verify = verify;
+			this.slot = slot;
+			if (source.opened != null) {
+				Segment segment = segments.next();
+				channel = source.opened;
+				position = segment.getPosition();
+				end = position + segment.getLength();
+			}
+		}
+
+		/**
+		 * An error after the OK header leaves the client waiting for more bytes, so it closes the connection.
+		 */
+		void next() {
+			try {
+				sendNext();
+			} catch (IOException e) {
+				e.printStackTrace();
+				closeQuietly();
+				slot.release();
+				ctx.close();
+			}
+		}
+
+		private void sendNext() throws IOException {
+			if (!ctx.channel().isActive()) {
+				close();
+				slot.release();
+				return;
+			}
+			while (position >= end) {
+				close();
+				if (!segments.hasNext()) {
+					if (verify) {
+						writeChecksum(ctx, requestId, source.checksum());
+					}
+					ctx.flush();
+					slot.release();
+					return;
+				}
+				Segment segment = segments.next();
+				channel = FileChannel.open(segment.getPath(), StandardOpenOption.READ);
+				position = segment.getPosition();
+				end = position + segment.getLength();
+			}
+			int count = (int) Math.min(DATA_CHUNK_SIZE, end - position);
+			ctx.write(Frame.header(ctx.alloc(), Opcode.DATA, requestId, count));
+			FileSender.send(ctx, channel, position, count).addListener(future -> {
+				if (future.isSuccess()) {
+					position += count;
+					next();
+				} else {
+					closeQuietly();
+					slot.release();
+				}
+			});
+		}
+
+		private void close() throws IOException {
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+		}
+
+		private void closeQuietly() {
+			try {
+				close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		System.out.println("Client disconnected: " + ctx.channel());
+	}
+
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+		cause.printStackTrace();
+		ctx.close();
+	}
+}
@@ -0,0 +1,545 @@
+package ru.ramprox.netty.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.netty.util.concurrent.Future;
+import ru.ramprox.netty.protocol.Frame;
+import ru.ramprox.netty.protocol.Opcode;
+import ru.ramprox.shaping.TransferSlots;
+import ru.ramprox.storage.Crc32c;
+import ru.ramprox.storage.DiskExecutor;
+import ru.ramprox.storage.Storage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Handles UPLOAD, DATA, CHECKSUM, PREPARE and COMMIT frames, everything else goes further down the pipeline.
+ * <p>
+ * UPLOAD payload is long size, optionally long offset and byte flags. Offset 0 replaces the file,
+ * a larger offset continues an interrupted upload with size bytes from there on (see STAT)
+ * and must not be beyond what that upload has written.
+ * The bytes go to a hidden staging file (see {@link Storage#openUpload}), the file is replaced only by a complete
+ * upload, through the {@link ru.ramprox.storage.CommitJournal}; OK is sent once the new version is durable.
+ * An interrupted upload stays in the staging file, and continuing it continues the staging file.
+ * Only one upload of a file runs at a time, another one fails right away.
+ * With the {@link #DEFLATE} flag the DATA payloads are a raw deflate stream of the size bytes,
+ * inflated on the disk thread that writes them.
+ * With the {@link #VERIFY} flag a CHECKSUM frame follows the DATA frames, long {@link Crc32c} of their payloads;
+ * the upload is put in place only if it matches, so a transfer corrupted on the way never replaces a file.
+ * <p>
+ * A file may also be uploaded in parallel ranges, over several connections:
+ * PREPARE name, long size creates a hidden staging file of that size,
+ * UPLOADs with the {@link #STAGED} flag write their ranges into it
+ * and COMMIT name, long size syncs it and atomically moves it in place of the file.
+ * The connection that prepares the file holds its staging file (see {@link Storage#claim}) until it commits it
+ * or closes, so another PREPARE of the file fails instead of truncating it under the running ranges.
+ * <p>
+ * Any number of uploads may be in progress on one connection, their DATA frames are told apart
+ * by request id and may arrive interleaved.
+ * DATA payloads are written into the file straight from the inbound buffer on a disk thread,
+ * writes to one file stay in order (see {@link DiskExecutor}). While too many bytes wait for the disk
+ * (per connection or over all connections) or the disk queue is long, the channel stops reading.
+ * Every upload holds a transfer slot of its client, see {@link TransferSlots}. Like a download, an upload waits
+ * for one: its frames are held, and the channel stops reading once they are too many. Only an upload that comes
+ * while another one of the connection runs can't wait, that would stall the running one, whose frames come
+ * after it; without a free slot it fails right away.
+ */
+public class UploadHandler extends ChannelInboundHandlerAdapter {
+	private static final long HIGH_WATER_MARK = 8 * 1024 * 1024;
+	private static final long LOW_WATER_MARK = 2 * 1024 * 1024;
+	private static final long GLOBAL_HIGH_WATER_MARK = 256 * 1024 * 1024;
+
+	private static final AtomicLong globalPending = new AtomicLong();
+
+	/** UPLOAD flag: write into the staging file created by PREPARE */
+	public static final int STAGED = 1;
+	/** UPLOAD flag: DATA payloads are compressed, see {@link ru.ramprox.storage.Compression#DEFLATE} */
+	public static final int DEFLATE = 2;
+	/** UPLOAD flag: a CHECKSUM frame of the DATA payloads ends the upload */
+	public static final int VERIFY = 4;
+	private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+	private final Storage storage;
+	private final DiskExecutor disk;
+	private final TransferSlots slots;
+	private final IntObjectMap<Upload> uploads = new IntObjectHashMap<>();
+	/** staging files prepared by this connection and not committed yet, claimed by this handler */
+	private final Set<Path> prepared = new HashSet<>();
+	private long pending;
+
+	public UploadHandler(Storage storage, TransferSlots slots) {
+		this.storage = storage;
+		this.disk = storage.disk();
+		this.slots = slots;
+	}
+
+	private static class Upload {
+		final int requestId;
+		final Path file;
+		final Path path;
+		final long offset;
+		final long size;
+		final boolean compressed;
+		/** writes into the file created by PREPARE, COMMIT puts it in place */
+		final boolean prepared;
+		long received;
+		boolean failed;
+		// disk thread only
+		FileChannel channel;
+		/** null - DATA payloads are written as they are */
+		Inflater inflater;
+		byte[] inflated;
+		long written;
+		/** of the DATA payloads, null - not verified */
+		Checksum checksum;
+		/** sent by the client, -1 until it came */
+		long expected = -1;
+		volatile IOException error;
+		/** null while it waits for a slot */
+		TransferSlots.Slot slot;
+		/** submissions of its frames held until it has a slot, null once it has one */
+		List<Runnable> held;
+		/** set on the disk thread once the upload is complete */
+		volatile CompletableFuture<Void> committed;
+
+		Upload(int requestId, Path file, Path path, long offset, long size, boolean compressed, boolean prepared,
+			   boolean verified) {
+			this.requestId = requestId;
+			this.file = file;
+			this.path = path;
+			this.offset = offset;
+			this.size = size;
+			this.compressed = compressed;
+			this.prepared = prepared;
+			this.checksum = verified ? Crc32c.create() : null;
+		}
+
+		boolean isComplete() {
+			return written == size && (inflater == null || inflater.finished()) && (checksum == null || expected >= 0);
+		}
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (!(msg instanceof Frame)) {
+			ctx.fireChannelRead(msg);
+			return;
+		}
+		Frame frame = (Frame) msg;
+		if (frame.opcode() == Opcode.UPLOAD) {
+			try {
+				uploading(ctx, frame);
+			} finally {
+				frame.release();
+			}
+		} else if (frame.opcode() == Opcode.DATA) {
+			uploadData(ctx, frame);
+		} else if (frame.opcode() == Opcode.CHECKSUM) {
+			try {
+				uploadChecksum(ctx, frame);
+			} finally {
+				frame.release();
+			}
+		} else if (frame.opcode() == Opcode.PREPARE || frame.opcode() == Opcode.COMMIT) {
+			try {
+				staging(ctx, frame);
+			} finally {
+				frame.release();
+			}
+		} else {
+			ctx.fireChannelRead(frame);
+		}
+	}
+
+	private void uploading(ChannelHandlerContext ctx, Frame frame) {
+		Path file = storage.resolve(frame.nameString());
+		Upload current = uploads.get(frame.requestId());
+		if (current != null && !current.failed || file == null || frame.payloadLength() < 8) {
+			ctx.writeAndFlush(Frame.error(ctx.alloc(), frame.requestId(), "wrong upload request"));
+			return;
+		}
+		ByteBuf payload = frame.payload();
+		long size = payload.readLong();
+		long offset = payload.readableBytes() >= 8 ? payload.readLong() : 0;
+		int flags = payload.isReadable() ? payload.readByte() : 0;
+		boolean staged = (flags & STAGED) != 0;
+		if (size < 0 || offset < 0) {
+			ctx.writeAndFlush(Frame.error(ctx.alloc(), frame.requestId(), "wrong upload request"));
+			return;
+		}
+		Path path = staged ? storage.staging(file, "part") : storage.upload(file);
+		Upload upload = new Upload(frame.requestId(), file, path, offset, size, (flags & DEFLATE) != 0, staged,
+				(flags & VERIFY) != 0);
+		Object client = TransferSlots.client(ctx.channel().remoteAddress());
+		if (isUploading()) {
+			upload.slot = slots.tryAcquire(client);
+			if (upload.slot == null) {
+				// registered, so that its DATA frames are dropped quietly
+				uploads.put(upload.requestId, upload);
+				fail(ctx, upload, "too many transfers of the client");
+				return;
+			}
+		} else {
+			upload.held = new ArrayList<>();
+			slots.acquire(client, ctx.executor(), slot -> granted(upload, slot));
+		}
+		uploads.put(upload.requestId, upload);
+		submit(ctx, upload, 0, null, () -> {
+			if (upload.compressed) {
+				upload.inflater = new Inflater(true);
+				upload.inflated = new byte[INFLATE_BUFFER_SIZE];
+			}
+			if (staged) {
+				upload.channel = FileChannel.open(upload.path, StandardOpenOption.WRITE);
+				if (upload.offset + upload.size > upload.channel.size()) {
+					throw new IOException("range is beyond the prepared size");
+				}
+				return;
+			}
+			upload.channel = storage.openUpload(upload.file, upload.offset, upload);
+		});
+	}
+
+	private boolean isUploading() {
+		for (Upload upload : uploads.values()) {
+			if (!upload.failed) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void granted(Upload upload, TransferSlots.Slot slot) {
+		upload.slot = slot;
+		if (upload.failed) {
+			slot.release();
+		}
+		List<Runnable> held = upload.held;
+		upload.held = null;
+		// a failed upload only releases them
+		for (Runnable submission : held) {
+			submission.run();
+		}
+	}
+
+	private void uploadData(ChannelHandlerContext ctx, Frame frame) {
+		Upload upload = uploads.get(frame.requestId());
+		if (upload == null) {
+			frame.release();
+			ctx.writeAndFlush(Frame.error(ctx.alloc(), frame.requestId(), "no upload in progress"));
+			return;
+		}
+		if (upload.failed) {
+			frame.release();
+			return;
+		}
+		ByteBuf payload = frame.payload();
+		int length = payload.readableBytes();
+		long position = upload.offset + upload.received;
+		// a compressed size is checked when it is inflated
+		if (!upload.compressed && upload.received + length > upload.size) {
+			frame.release();
+			fail(ctx, upload, "upload exceeds declared size");
+			return;
+		}
+		upload.received += length;
+		pending += length;
+		globalPending.addAndGet(length);
+		if (pending > HIGH_WATER_MARK || globalPending.get() > GLOBAL_HIGH_WATER_MARK || disk.isOverloaded()) {
+			ctx.channel().config().setAutoRead(false);
+		}
+		submit(ctx, upload, length, frame, () -> {
+			if (upload.checksum != null) {
+				Crc32c.update(upload.checksum, payload.nioBuffer());
+			}
+			if (upload.inflater != null) {
+				inflate(upload, payload);
+				return;
+			}
+			int index = payload.readerIndex();
+			int end = index + length;
+			long filePosition = position;
+			while (index < end) {
+				int written = payload.getBytes(index, upload.channel, filePosition, end - index);
+				index += written;
+				filePosition += written;
+			}
+			upload.written += length;
+		});
+	}
+
+	private void uploadChecksum(ChannelHandlerContext ctx, Frame frame) {
+		Upload upload = uploads.get(frame.requestId());
+		if (upload == null || upload.checksum == null || frame.payloadLength() < 8) {
+			ctx.writeAndFlush(Frame.error(ctx.alloc(), frame.requestId(), "unexpected checksum"));
+			return;
+		}
+		if (upload.failed) {
+			return;
+		}
+		long expected = frame.payload().readLong();
+		// after the writes of the DATA frames before it
+		submit(ctx, upload, 0, null, () -> upload.expected = expected);
+	}
+
+	private static void inflate(Upload upload, ByteBuf payload) throws IOException {
+		Inflater inflater = upload.inflater;
+		inflater.setInput(ByteBufUtil.getBytes(payload));
+		try {
+			int count;
+			while ((count = inflater.inflate(upload.inflated)) > 0) {
+				if (upload.written + count > upload.size) {
+					throw new IOException("upload exceeds declared size");
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(upload.inflated, 0, count);
+				while (buffer.hasRemaining()) {
+					upload.channel.write(buffer, upload.offset + upload.written + buffer.position());
+				}
+				upload.written += count;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("corrupted compressed data: " + e.getMessage());
+		}
+		if (inflater.needsDictionary() || inflater.finished() && upload.written < upload.size) {
+			throw new IOException("compressed data ends after " + upload.written + " bytes");
+		}
+	}
+
+	private void staging(ChannelHandlerContext ctx, Frame frame) {
+		Path file = storage.resolve(frame.nameString());
+		if (file == null || frame.payloadLength() < 8) {
+			ctx.writeAndFlush(Frame.error(ctx.alloc(), frame.requestId(), "wrong " + frame.opcode() + " request"));
+			return;
+		}
+		int requestId = frame.requestId();
+		long size = frame.payload().readLong();
+		Path staged = storage.staging(file, "part");
+		boolean prepare = frame.opcode() == Opcode.PREPARE;
+		DiskExecutor.Task<CompletableFuture<Void>> task;
+		if (prepare) {
+			try {
+				if (prepared.contains(staged)) {
+					throw new IOException("the file is already prepared");
+				}
+				storage.claim(staged, this);
+			} catch (IOException e) {
+				ctx.writeAndFlush(Frame.error(ctx.alloc(), requestId, e.getMessage()));
+				return;
+			}
+			prepared.add(staged);
+			task = () -> {
+				try (RandomAccessFile out = new RandomAccessFile(staged.toFile(), "rw")) {
+					out.setLength(0);
+					out.setLength(size);
+				}
+				return CompletableFuture.completedFuture(null);
+			};
+		} else {
+			if (!prepared.remove(staged)) {
+				ctx.writeAndFlush(Frame.error(ctx.alloc(), requestId, "the file is not prepared by this connection"));
+				return;
+			}
+			task = () -> {
+				try {
+					long stagedSize = Files.size(staged);
+					if (stagedSize != size) {
+						throw new IOException("staged size " + stagedSize + " differs from " + size);
+					}
+					// the journal forces the rename with the other commits, not on this thread
+					return storage.journal().commit(staged, file);
+				} finally {
+					// committed or given up, the file has to be prepared again either way
+					storage.release(staged, this);
+				}
+			};
+		}
+		Future<CompletableFuture<Void>> done = disk.submit(staged, ctx.executor(), task);
+		done.addListener(future -> {
+			if (!future.isSuccess()) {
+				if (prepare || future.cause() instanceof RejectedExecutionException) {
+					prepared.remove(staged);
+					storage.release(staged, this);
+				}
+				ctx.writeAndFlush(Frame.error(ctx.alloc(), requestId, String.valueOf(future.cause())));
+				return;
+			}
+			done.getNow().whenComplete((v, e) -> ctx.executor().execute(() -> ctx.writeAndFlush(e == null
+					? Frame.of(Opcode.OK, requestId)
+					: Frame.error(ctx.alloc(), requestId, "commit failed: " + e))));
+		});
+	}
+
+	private interface DiskTask {
+		void run() throws IOException;
+	}
+
+	/**
+	 * Queues the task after the previous ones of the same file, the frame (if any) is released after it.
+	 * A task never fails the sequence: after an error the rest only release their buffers.
+	 */
+	private void submit(ChannelHandlerContext ctx, Upload upload, int length, Frame frame, DiskTask task) {
+		if (upload.held != null) {
+			upload.held.add(() -> submit(ctx, upload, length, frame, task));
+			return;
+		}
+		DiskExecutor.Task<Boolean> write = () -> {
+			try {
+				if (upload.error != null) {
+					return false;
+				}
+				task.run();
+				if (upload.isComplete()) {
+					if (upload.checksum != null && upload.checksum.getValue() != upload.expected) {
+						upload.channel.close();
+						if (!upload.prepared) {
+							// never resumed from
+							Files.deleteIfExists(upload.path);
+						}
+						throw new IOException("checksum is " + Long.toHexString(upload.checksum.getValue())
+								+ ", expected " + Long.toHexString(upload.expected));
+					}
+					upload.channel.close();
+					if (upload.inflater != null) {
+						upload.inflater.end();
+					}
+					if (!upload.prepared) {
+						upload.committed = storage.journal().commit(upload.path, upload.file);
+						// the commit has taken the staging file over
+						storage.release(upload.path, upload);
+					}
+					return true;
+				}
+				return false;
+			} catch (IOException e) {
+				upload.error = e;
+				closeQuietly(upload);
+				return false;
+			} finally {
+				if (frame != null) {
+					frame.release();
+				}
+			}
+		};
+		// DATA writes are bulk, opening the file is not
+		Future<Boolean> done = frame != null
+				? disk.submitBulk(upload.path, ctx.executor(), write)
+				: disk.submit(upload.path, ctx.executor(), write);
+		done.addListener(future -> {
+			if (!future.isSuccess()) {
+				if (future.cause() instanceof RejectedExecutionException && frame != null) {
+					// never ran, and the rest of the file would have a hole
+					frame.release();
+				}
+				upload.error = new IOException(String.valueOf(future.cause()));
+			}
+			written(ctx, upload, length, Boolean.TRUE.equals(future.getNow()), upload.error);
+		});
+	}
+
+	private void written(ChannelHandlerContext ctx, Upload upload, int length, boolean done, IOException error) {
+		pending -= length;
+		long global = globalPending.addAndGet(-length);
+		if (!ctx.channel().config().isAutoRead() && (pending == 0
+				|| pending < LOW_WATER_MARK && global < GLOBAL_HIGH_WATER_MARK && !disk.isOverloaded())) {
+			ctx.channel().config().setAutoRead(true);
+		}
+		if (error != null) {
+			fail(ctx, upload, error.getMessage());
+		} else if (done && upload.committed != null) {
+			upload.committed.whenComplete((v, e) -> ctx.executor().execute(() -> {
+				if (e != null) {
+					fail(ctx, upload, "commit failed: " + e);
+				} else {
+					completed(ctx, upload);
+				}
+			}));
+		} else if (done) {
+			completed(ctx, upload);
+		}
+	}
+
+	private void completed(ChannelHandlerContext ctx, Upload upload) {
+		uploads.remove(upload.requestId);
+		upload.slot.release();
+		ctx.writeAndFlush(Frame.of(Opcode.OK, upload.requestId));
+	}
+
+	private void fail(ChannelHandlerContext ctx, Upload upload, String message) {
+		if (upload.failed) {
+			return;
+		}
+		// stays registered so that the rest of its DATA frames are dropped quietly
+		upload.failed = true;
+		if (upload.error == null) {
+			upload.error = new IOException(message);
+		}
+		if (upload.slot != null) {
+			upload.slot.release();
+		}
+		closeAfterWrites(ctx, upload);
+		ctx.writeAndFlush(Frame.error(ctx.alloc(), upload.requestId, "upload failed: " + message));
+	}
+
+	private void closeAfterWrites(ChannelHandlerContext ctx, Upload upload) {
+		disk.submit(upload.path, ctx.executor(), () -> {
+			closeQuietly(upload);
+			return null;
+		}).addListener(future -> {
+			if (!future.isSuccess()) {
+				closeQuietly(upload);
+			}
+		});
+	}
+
+	private void closeQuietly(Upload upload) {
+		if (upload.inflater != null) {
+			upload.inflater.end();
+		}
+		try {
+			if (upload.channel != null) {
+				upload.channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		storage.release(upload.path, upload);
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		for (Upload upload : uploads.values()) {
+			upload.error = new IOException("connection closed");
+			upload.failed = true;
+			if (upload.slot != null) {
+				upload.slot.release();
+			}
+			closeAfterWrites(ctx, upload);
+		}
+		uploads.clear();
+		for (Path staged : prepared) {
+			storage.release(staged, this);
+		}
+		prepared.clear();
+		ctx.fireChannelInactive();
+	}
+}
@@ -0,0 +1,132 @@
+package ru.ramprox.netty.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocol frame.
+ * <pre>
+ * int    length      bytes after this field
+ * byte   opcode
+ * int    requestId
+ * short  nameLength
+ * byte[] name        UTF-8
+ * byte[] payload     length - HEADER_SIZE - nameLength
+ * </pre>
+ * Content holds name and payload back to back, so a decoded frame is a slice of the inbound buffer.
+ */
+public class Frame extends DefaultByteBufHolder {
+	public static final int LENGTH_FIELD_SIZE = 4;
+	/** opcode + requestId + nameLength */
+	public static final int HEADER_SIZE = 1 + 4 + 2;
+	public static final int MAX_NAME_LENGTH = 0xFFFF;
+	public static final int MAX_PAYLOAD_LENGTH = 1024 * 1024;
+	public static final int MAX_FRAME_LENGTH = LENGTH_FIELD_SIZE + HEADER_SIZE + MAX_NAME_LENGTH + MAX_PAYLOAD_LENGTH;
+
+	private final Opcode opcode;
+	private final int requestId;
+	private final int nameLength;
+
+	public Frame(Opcode opcode, int requestId, int nameLength, ByteBuf content) {
+		super(content);
+		this.opcode = opcode;
+		this.requestId = requestId;
+		this.nameLength = nameLength;
+	}
+
+	public static Frame of(Opcode opcode, int requestId) {
+		return new Frame(opcode, requestId, 0, Unpooled.EMPTY_BUFFER);
+	}
+
+	public static Frame of(Opcode opcode, int requestId, ByteBuf payload) {
+		return new Frame(opcode, requestId, 0, payload);
+	}
+
+	public static Frame of(ByteBufAllocator alloc, Opcode opcode, int requestId, CharSequence name, ByteBuf payload) {
+		ByteBuf nameBuf = alloc.buffer(ByteBufUtil.utf8MaxBytes(name));
+		ByteBufUtil.writeUtf8(nameBuf, name);
+		return new Frame(opcode, requestId, nameBuf.readableBytes(), Unpooled.wrappedBuffer(nameBuf, payload));
+	}
+
+	public static Frame error(ByteBufAllocator alloc, int requestId, CharSequence message) {
+		return of(Opcode.ERROR, requestId, ByteBufUtil.writeUtf8(alloc, message));
+	}
+
+	/**
+	 * Header for a frame whose payload is written separately (e.g. as a FileRegion).
+	 */
+	public static ByteBuf header(ByteBufAllocator alloc, Opcode opcode, int requestId, int payloadLength) {
+		ByteBuf buf = alloc.buffer(LENGTH_FIELD_SIZE + HEADER_SIZE);
+		return buf.writeInt(HEADER_SIZE + payloadLength)
+				.writeByte(opcode.code())
+				.writeInt(requestId)
+				.writeShort(0);
+	}
+
+	public Opcode opcode() {
+		return opcode;
+	}
+
+	public int requestId() {
+		return requestId;
+	}
+
+	public int nameLength() {
+		return nameLength;
+	}
+
+	public ByteBuf name() {
+		return content().slice(content().readerIndex(), nameLength);
+	}
+
+	public String nameString() {
+		return name().toString(StandardCharsets.UTF_8);
+	}
+
+	public ByteBuf payload() {
+		return content().slice(content().readerIndex() + nameLength, payloadLength());
+	}
+
+	public int payloadLength() {
+		return content().readableBytes() - nameLength;
+	}
+
+	@Override
+	public Frame replace(ByteBuf content) {
+		return new Frame(opcode, requestId, nameLength, content);
+	}
+
+	@Override
+	public Frame retain() {
+		super.retain();
+		return this;
+	}
+
+	@Override
+	public Frame retain(int increment) {
+		super.retain(increment);
+		return this;
+	}
+
+	@Override
+	public Frame touch() {
+		super.touch();
+		return this;
+	}
+
+	@Override
+	public Frame touch(Object hint) {
+		super.touch(hint);
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "Frame(" + opcode + ", id=" + requestId + ", name=" + nameLength + "B, payload=" + payloadLength() + "B)";
+	}
+}
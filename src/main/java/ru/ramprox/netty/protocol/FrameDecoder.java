@@ -0,0 +1,41 @@
+package ru.ramprox.netty.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+/**
+ * Splits the inbound stream into {@link Frame}s.
+ * Frames are retained slices of the cumulation buffer, nothing is copied or decoded into strings.
+ */
+public class FrameDecoder extends LengthFieldBasedFrameDecoder {
+	public FrameDecoder() {
+		this(Frame.MAX_FRAME_LENGTH);
+	}
+
+	public FrameDecoder(int maxFrameLength) {
+		super(maxFrameLength, 0, Frame.LENGTH_FIELD_SIZE, 0, Frame.LENGTH_FIELD_SIZE);
+	}
+
+	@Override
+	protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+		ByteBuf body = (ByteBuf) super.decode(ctx, in);
+		if (body == null) {
+			return null;
+		}
+		if (body.readableBytes() < Frame.HEADER_SIZE) {
+			body.release();
+			throw new CorruptedFrameException("frame too short: " + body.readableBytes());
+		}
+		byte code = body.readByte();
+		Opcode opcode = Opcode.of(code);
+		int requestId = body.readInt();
+		int nameLength = body.readUnsignedShort();
+		if (opcode == null || nameLength > body.readableBytes()) {
+			body.release();
+			throw new CorruptedFrameException("bad frame header: opcode " + code + ", name length " + nameLength);
+		}
+		return new Frame(opcode, requestId, nameLength, body);
+	}
+}
@@ -0,0 +1,25 @@
+package ru.ramprox.netty.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.util.List;
+
+/**
+ * Writes the frame header and passes the content on as is, without copying it.
+ */
+@ChannelHandler.Sharable
+public class FrameEncoder extends MessageToMessageEncoder<Frame> {
+	@Override
+	protected void encode(ChannelHandlerContext ctx, Frame frame, List<Object> out) throws Exception {
+		ByteBuf header = ctx.alloc().buffer(Frame.LENGTH_FIELD_SIZE + Frame.HEADER_SIZE);
+		header.writeInt(Frame.HEADER_SIZE + frame.content().readableBytes())
+				.writeByte(frame.opcode().code())
+				.writeInt(frame.requestId())
+				.writeShort(frame.nameLength());
+		out.add(header);
+		out.add(frame.content().retain());
+	}
+}
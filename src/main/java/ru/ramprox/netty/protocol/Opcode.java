@@ -0,0 +1,48 @@
+package ru.ramprox.netty.protocol;
+
+public enum Opcode {
+	UPLOAD(1),
+	DOWNLOAD(2),
+	DATA(3),
+	OK(4),
+	ERROR(5),
+	EXIT(6),
+	LIST(7),
+	STAT(8),
+	PREPARE(9),
+	COMMIT(10),
+	HAVE(11),
+	CHUNK(12),
+	MANIFEST(13),
+	SIGNATURE(14),
+	DELTA(15),
+	PATCH(16),
+	SUBSCRIBE(17),
+	CHANGES(18),
+	CHECKSUM(19);
+
+	private static final Opcode[] BY_CODE = new Opcode[256];
+
+	static {
+		for (Opcode opcode : values()) {
+			BY_CODE[opcode.code] = opcode;
+		}
+	}
+
+	private final byte code;
+
+	Opcode(int code) {
+		this.code = (byte) code;
+	}
+
+	public byte code() {
+		return code;
+	}
+
+	/**
+	 * @return opcode or null for unknown code
+	 */
+	public static Opcode of(byte code) {
+		return BY_CODE[code & 0xFF];
+	}
+}
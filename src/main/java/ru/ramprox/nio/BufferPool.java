@@ -0,0 +1,59 @@
+package ru.ramprox.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Direct buffers of one size, reused instead of allocated per connection or message.
+ * Each worker has its own pool, so it is not thread safe; only its counts may be read by other threads.
+ */
+class BufferPool {
+	private final int bufferSize;
+	private final int maxIdle;
+	private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<>();
+	private volatile int allocated;
+	private volatile int idleCount;
+
+	BufferPool(int bufferSize, int maxIdle) {
+		this.bufferSize = bufferSize;
+		this.maxIdle = maxIdle;
+	}
+
+	int bufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return a cleared buffer
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer buffer = idle.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+			allocated++;
+		}
+		idleCount = idle.size();
+		return buffer;
+	}
+
+	void release(ByteBuffer buffer) {
+		buffer.clear();
+		if (idle.size() < maxIdle) {
+			idle.push(buffer);
+		} else {
+			allocated--;
+		}
+		idleCount = idle.size();
+	}
+
+	/**
+	 * @return buffers held by connections
+	 */
+	int inUse() {
+		return allocated - idleCount;
+	}
+
+	int idle() {
+		return idleCount;
+	}
+}
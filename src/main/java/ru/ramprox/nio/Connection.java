@@ -0,0 +1,205 @@
+package ru.ramprox.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * State of one client of {@link NioTelnetServer}, attached to its selection key.
+ * Only the worker thread of the connection touches it.
+ * <p>
+ * Input is read into the read buffer of the worker and commands are handled right from there.
+ * Only an incomplete line is kept, in a pooled buffer, until the rest of it arrives.
+ * Output is collected in pooled buffers and written as far as the socket takes it, the rest waits for OP_WRITE;
+ * meanwhile further commands of the client wait. An idle connection holds no buffers at all.
+ */
+class Connection {
+	private static final byte[] LINE_TOO_LONG = "Line is too long\r\n".getBytes(StandardCharsets.UTF_8);
+	/** commands of a client wait while this much of its output is queued */
+	private static final int HIGH_WATER_MARK = 64 * 1024;
+
+	private final NioTelnetServer server;
+	private final SelectionKey key;
+	private final SocketChannel channel;
+	private final BufferPool pool;
+	private final Deque<ByteBuffer> output = new ArrayDeque<>();
+	/** start of a line that is not complete yet, null if there is none */
+	private ByteBuffer partial;
+	private int pending;
+	private boolean paused;
+	private boolean closing;
+
+	Connection(NioTelnetServer server, SelectionKey key, BufferPool pool) {
+		this.server = server;
+		this.key = key;
+		this.channel = (SocketChannel) key.channel();
+		this.pool = pool;
+	}
+
+	SocketChannel channel() {
+		return channel;
+	}
+
+	boolean isOpen() {
+		return key.isValid();
+	}
+
+	/**
+	 * @param shared read buffer of the worker, cleared when this returns
+	 */
+	void read(ByteBuffer shared) throws IOException {
+		ByteBuffer buffer = partial != null ? partial : shared;
+		try {
+			int read = channel.read(buffer);
+			if (read < 0) {
+				close();
+				return;
+			}
+			server.received(read);
+			buffer.flip();
+			process(buffer);
+		} finally {
+			shared.clear();
+		}
+		flush();
+	}
+
+	/**
+	 * Handles the complete lines of the buffer and keeps the rest. While too much output waits for the client,
+	 * the rest of the lines waits too and nothing more is read.
+	 */
+	private void process(ByteBuffer buffer) {
+		int start = 0;
+		for (int i = 0; i < buffer.limit() && isOpen() && !closing && pending < HIGH_WATER_MARK; i++) {
+			if (buffer.get(i) == '\n') {
+				int end = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+				server.command(this, buffer, start, end);
+				start = i + 1;
+			}
+		}
+		if (!isOpen() || closing) {
+			return;
+		}
+		if (pending >= HIGH_WATER_MARK && start < buffer.limit()) {
+			paused = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		buffer.position(start);
+		if (buffer == partial) {
+			buffer.compact();
+			if (buffer.position() == 0) {
+				pool.release(partial);
+				partial = null;
+			}
+		} else if (buffer.hasRemaining()) {
+			partial = pool.acquire().put(buffer);
+		}
+		if (!paused && partial != null && !partial.hasRemaining()) {
+			partial.clear();
+			send(LINE_TOO_LONG);
+		}
+	}
+
+	void send(String message) {
+		send(message.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Queues the bytes, they are written by {@link #flush()}.
+	 */
+	void send(byte[] message) {
+		if (!isOpen()) {
+			return;
+		}
+		int offset = 0;
+		while (offset < message.length) {
+			ByteBuffer tail = output.peekLast();
+			if (tail == null || !tail.hasRemaining()) {
+				tail = pool.acquire();
+				output.add(tail);
+			}
+			int length = Math.min(tail.remaining(), message.length - offset);
+			tail.put(message, offset, length);
+			offset += length;
+		}
+		pending += message.length;
+	}
+
+	/**
+	 * Closes the connection once its output is written.
+	 */
+	void closeAfterFlush() {
+		closing = true;
+	}
+
+	/**
+	 * Writes queued output until the socket buffer is full, then waits for OP_WRITE.
+	 * Once everything is written, reading goes on.
+	 */
+	void flush() throws IOException {
+		while (isOpen()) {
+			if (!write()) {
+				return;
+			}
+			if (closing) {
+				close();
+				return;
+			}
+			if (!paused) {
+				return;
+			}
+			paused = false;
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			if (partial != null) {
+				partial.flip();
+				process(partial);
+			}
+		}
+	}
+
+	/**
+	 * @return whether all output has been written
+	 */
+	private boolean write() throws IOException {
+		while (!output.isEmpty()) {
+			ByteBuffer head = output.peek();
+			head.flip();
+			int written = channel.write(head);
+			pending -= written;
+			server.sent(written);
+			boolean drained = !head.hasRemaining();
+			head.compact();
+			if (!drained) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return false;
+			}
+			pool.release(output.poll());
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		return true;
+	}
+
+	void close() {
+		if (!isOpen()) {
+			return;
+		}
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		server.disconnected(this);
+		if (partial != null) {
+			pool.release(partial);
+			partial = null;
+		}
+		while (!output.isEmpty()) {
+			pool.release(output.poll());
+		}
+	}
+}
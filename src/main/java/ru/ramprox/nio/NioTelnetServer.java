@@ -1,73 +1,129 @@
 package ru.ramprox.nio;
 
-import java.io.File;
+import ru.ramprox.metrics.Counter;
+import ru.ramprox.metrics.Gauge;
+import ru.ramprox.metrics.Histogram;
+import ru.ramprox.metrics.Metrics;
+import ru.ramprox.metrics.MetricsEndpoint;
+import ru.ramprox.storage.FileMetadata;
+import ru.ramprox.storage.Storage;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Iterator;
-import java.util.Set;
-
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Telnet-like file server. The main (boss) thread accepts connections and deals them out
+ * to worker {@link Reactor}s, one per core, each with its own selector.
+ * A connection stays on its worker, its {@link Connection} state is never shared.
+ * Metrics are served by {@link MetricsEndpoint}.
+ */
 public class NioTelnetServer {
-	public static final String LS_COMMAND = "\tls    view all files and directories\r\n";
+	private static final int LS_PAGE_SIZE = 1000;
+	private static final int WORKERS = Runtime.getRuntime().availableProcessors();
+	/** connections waiting to be accepted, the default of 50 drops bursts of clients */
+	private static final int BACKLOG = 1024;
+
+	public static final String LS_COMMAND = "\tls [prefix [after]]    view files and directories, " + LS_PAGE_SIZE + " at a time\r\n";
 	public static final String MKDIR_COMMAND = "\tmkdir    create directory\r\n";
 	public static final String CHANGE_NICKNAME = "\tnick    change nickname\r\n";
 
-	private final ByteBuffer buffer = ByteBuffer.allocate(512);
+	private static final byte[] GREETING = "Hello user!\r\nEnter --help for support info\r\n"
+			.getBytes(StandardCharsets.UTF_8);
+	private static final byte[] HELP = (LS_COMMAND + MKDIR_COMMAND + CHANGE_NICKNAME).getBytes(StandardCharsets.UTF_8);
+
+	private final Storage storage;
+	private final Reactor[] workers = new Reactor[WORKERS];
+	private final Metrics metrics = new Metrics();
+	private final Counter connections = metrics.counter(Metrics.CONNECTIONS);
+	private final Gauge active = metrics.gauge(Metrics.CONNECTIONS_ACTIVE);
+	private final Counter bytesIn = metrics.counter(Metrics.BYTES_IN);
+	private final Counter bytesOut = metrics.counter(Metrics.BYTES_OUT);
+	private final Map<TelnetCommand, Histogram> latency = new EnumMap<>(TelnetCommand.class);
+	private final Histogram unknownLatency = metrics.histogram(Metrics.COMMAND_LATENCY, "command", "unknown");
 
 	public NioTelnetServer() throws IOException {
+		storage = new Storage(Paths.get("server"));
+		for (TelnetCommand command : TelnetCommand.values()) {
+			latency.put(command, metrics.histogram(Metrics.COMMAND_LATENCY, "command", command.name().toLowerCase()));
+		}
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Reactor(this, i);
+			workers[i].start();
+		}
+		metrics.register(storage);
+		metrics.gauge(Metrics.QUEUE_DEPTH, () -> {
+			long waiting = 0;
+			for (Reactor worker : workers) {
+				waiting += worker.waiting();
+			}
+			return waiting;
+		});
+		metrics.gauge("buffer_pool_in_use", () -> {
+			long inUse = 0;
+			for (Reactor worker : workers) {
+				inUse += worker.pool().inUse();
+			}
+			return inUse;
+		});
+		metrics.gauge("buffer_pool_idle", () -> {
+			long idle = 0;
+			for (Reactor worker : workers) {
+				idle += worker.pool().idle();
+			}
+			return idle;
+		});
+		MetricsEndpoint.start(metrics);
 		ServerSocketChannel server = ServerSocketChannel.open();
-		server.bind(new InetSocketAddress(6789));
-		server.configureBlocking(false);
-		// OP_ACCEPT, OP_READ, OP_WRITE
-		Selector selector = Selector.open();
-
-		server.register(selector, SelectionKey.OP_ACCEPT);
+		server.bind(new InetSocketAddress(6789), BACKLOG);
 		System.out.println("Server started");
 
+		int next = 0;
 		while (server.isOpen()) {
-			selector.select();
-
-			Set<SelectionKey> selectionKeys = selector.selectedKeys();
-			Iterator<SelectionKey> iterator = selectionKeys.iterator();
-
-			while (iterator.hasNext()) {
-				SelectionKey key = iterator.next();
-				if (key.isAcceptable()) {
-					handleAccept(key, selector);
-				} else if (key.isReadable()) {
-					handleRead(key, selector);
-				}
-				iterator.remove();
-			}
+			SocketChannel channel = server.accept();
+			channel.configureBlocking(false);
+			System.out.println("Client accepted. IP: " + channel.getRemoteAddress());
+			workers[next].register(channel);
+			next = (next + 1) % workers.length;
 		}
 	}
 
-	private void handleRead(SelectionKey key, Selector selector) throws IOException {
-		SocketChannel channel = ((SocketChannel) key.channel());
-		SocketAddress client = channel.getRemoteAddress();
-		int readBytes = channel.read(buffer);
-		if (readBytes < 0) {
-			channel.close();
-			return;
-		} else if (readBytes == 0) {
-			return;
-		}
+	/**
+	 * Called on the worker thread of the connection.
+	 */
+	void connected(Connection connection) {
+		connections.increment();
+		active.increment();
+		connection.send(GREETING);
+	}
 
-		buffer.flip();
+	/**
+	 * Called once, when the connection is closed.
+	 */
+	void disconnected(Connection connection) {
+		active.decrement();
+	}
 
-		StringBuilder sb = new StringBuilder();
-		while (buffer.hasRemaining()) {
-			sb.append((char) buffer.get());
-		}
+	void received(int bytes) {
+		bytesIn.add(bytes);
+	}
 
-		buffer.clear();
+	void sent(int bytes) {
+		bytesOut.add(bytes);
+	}
 
+	/**
+	 * Called on the worker thread of the connection, with a line of input without its line break.
+	 * Nothing is allocated for a command unless its arguments are needed as text.
+	 */
+	void command(Connection connection, ByteBuffer line, int start, int end) {
 		// TODO
 		// touch [filename] - создание файла
 		// mkdir [dirname] - создание директории
@@ -80,49 +136,43 @@ public class NioTelnetServer {
 		// NIO
 		// NIO telnet server
 
-		if (key.isValid()) {
-			String command = sb
-					.toString()
-					.replace("\n", "")
-					.replace("\r", "");
-
-			if ("--help".equals(command)) {
-				sendMessage(LS_COMMAND, selector, client);
-				sendMessage(MKDIR_COMMAND, selector, client);
-				sendMessage(CHANGE_NICKNAME, selector, client);
-			} else if ("ls".equals(command)) {
-				sendMessage(getFileList().concat("\r\n"), selector, client);
-			} else if ("exit".equals(command)) {
-				System.out.println("Client logged out. IP: " + channel.getRemoteAddress());
-				channel.close();
-				return;
-			}
+		long started = System.nanoTime();
+		TelnetCommand command = TelnetCommand.match(line, start, end);
+		if (command == TelnetCommand.HELP) {
+			connection.send(HELP);
+		} else if (command == TelnetCommand.LS) {
+			String[] args = text(line, command.arguments(start, end), end).trim().split(" +");
+			String prefix = args[0].replace("\"", "");
+			connection.send(getFileList(prefix, args.length > 1 ? args[1] : null));
+		} else if (command == TelnetCommand.EXIT) {
+			System.out.println("Client logged out. IP: " + connection.channel().socket().getRemoteSocketAddress());
+			connection.closeAfterFlush();
 		}
+		(command != null ? latency.get(command) : unknownLatency).recordSince(started);
 	}
 
-	private String getFileList() {
-		return String.join(" ", new File("server").list());
-	}
-
-	private void sendMessage(String message, Selector selector, SocketAddress client) throws IOException {
-		for (SelectionKey key : selector.keys()) {
-			if (key.isValid() && key.channel() instanceof SocketChannel) {
-				if (((SocketChannel)key.channel()).getRemoteAddress().equals(client)) {
-					((SocketChannel)key.channel())
-							.write(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
-				}
-			}
+	private static String text(ByteBuffer line, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = line.get(start + i);
 		}
+		return new String(bytes, StandardCharsets.UTF_8);
 	}
 
-	private void handleAccept(SelectionKey key, Selector selector) throws IOException {
-		SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
-		channel.configureBlocking(false);
-		System.out.println("Client accepted. IP: " + channel.getRemoteAddress());
-
-		channel.register(selector, SelectionKey.OP_READ, "some attach");
-		channel.write(ByteBuffer.wrap("Hello user!\r\n".getBytes(StandardCharsets.UTF_8)));
-		channel.write(ByteBuffer.wrap("Enter --help for support info\r\n".getBytes(StandardCharsets.UTF_8)));
+	/**
+	 * One page of the listing from the storage index, the next one starts after its last name.
+	 */
+	private String getFileList(String prefix, String after) {
+		List<FileMetadata> page = storage.index().list(prefix, after, LS_PAGE_SIZE + 1);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < Math.min(page.size(), LS_PAGE_SIZE); i++) {
+			sb.append(i == 0 ? "" : " ").append(page.get(i).getName());
+		}
+		if (page.size() > LS_PAGE_SIZE) {
+			sb.append("\r\n... ls ").append(prefix.isEmpty() ? "\"\"" : prefix)
+					.append(' ').append(page.get(LS_PAGE_SIZE - 1).getName()).append(" for more");
+		}
+		return sb.append("\r\n").toString();
 	}
 
 	public static void main(String[] args) throws IOException {
@@ -0,0 +1,107 @@
+package ru.ramprox.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Worker of {@link NioTelnetServer}: one selector thread serving its share of the connections.
+ * Its connections share one read buffer and a pool of output buffers.
+ */
+class Reactor implements Runnable {
+	/** longest line of input, and the size of output buffers */
+	private static final int BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_IDLE_BUFFERS = 1024;
+
+	private final NioTelnetServer server;
+	private final Selector selector;
+	private final BufferPool pool = new BufferPool(BUFFER_SIZE, MAX_IDLE_BUFFERS);
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+	private final Thread thread;
+
+	Reactor(NioTelnetServer server, int index) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		this.thread = new Thread(this, "nio-worker-" + index);
+	}
+
+	BufferPool pool() {
+		return pool;
+	}
+
+	/**
+	 * @return accepted connections not registered yet
+	 */
+	int waiting() {
+		return accepted.size();
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Hands an accepted connection over, it is registered by the worker thread itself.
+	 */
+	void register(SocketChannel channel) {
+		accepted.add(channel);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (selector.isOpen()) {
+			try {
+				selector.select();
+				registerAccepted();
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					handle(key, (Connection) key.attachment());
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void registerAccepted() {
+		SocketChannel channel;
+		while ((channel = accepted.poll()) != null) {
+			Connection connection = null;
+			try {
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				connection = new Connection(server, key, pool);
+				key.attach(connection);
+				server.connected(connection);
+				connection.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+				if (connection != null) {
+					connection.close();
+				}
+			}
+		}
+	}
+
+	private void handle(SelectionKey key, Connection connection) {
+		try {
+			if (key.isReadable()) {
+				connection.read(readBuffer);
+			}
+			if (key.isValid() && key.isWritable()) {
+				connection.flush();
+			}
+		} catch (IOException e) {
+			System.out.println("Client disconnected: " + e.getMessage());
+			connection.close();
+		}
+	}
+}
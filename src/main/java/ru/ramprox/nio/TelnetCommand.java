@@ -0,0 +1,53 @@
+package ru.ramprox.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Commands of {@link NioTelnetServer}, matched straight from the input bytes.
+ */
+enum TelnetCommand {
+	HELP("--help"),
+	LS("ls"),
+	EXIT("exit");
+
+	private static final TelnetCommand[] VALUES = values();
+
+	private final byte[] name;
+
+	TelnetCommand(String name) {
+		this.name = name.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return index of the first argument of the command in the line, or its end
+	 */
+	int arguments(int start, int end) {
+		return Math.min(start + name.length + 1, end);
+	}
+
+	/**
+	 * @return command of the line from start to end (exclusive), null if there is none;
+	 * the command name is followed by the end of the line or a space
+	 */
+	static TelnetCommand match(ByteBuffer line, int start, int end) {
+		for (TelnetCommand command : VALUES) {
+			if (command.matches(line, start, end)) {
+				return command;
+			}
+		}
+		return null;
+	}
+
+	private boolean matches(ByteBuffer line, int start, int end) {
+		if (end - start < name.length || end - start > name.length && line.get(start + name.length) != ' ') {
+			return false;
+		}
+		for (int i = 0; i < name.length; i++) {
+			if (line.get(start + i) != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
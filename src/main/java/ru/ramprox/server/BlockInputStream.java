@@ -0,0 +1,74 @@
+package ru.ramprox.server;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+
+/**
+ * Reads a body written by {@link BlockOutputStream}, it ends at the end block.
+ * Closing skips the rest of the body and leaves the connection open.
+ */
+public class BlockInputStream extends FilterInputStream {
+	private final DataInputStream in;
+	/** bytes left in the current block, -1 after the end block */
+	private int remaining;
+
+	public BlockInputStream(DataInputStream in) {
+		super(in);
+		this.in = in;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		while (remaining == 0) {
+			remaining = in.readInt();
+			if (remaining < 0) {
+				throw new IOException("wrong block length " + remaining);
+			}
+			if (remaining == 0) {
+				remaining = -1;
+			}
+		}
+		if (remaining < 0) {
+			return -1;
+		}
+		int read = in.read(b, off, Math.min(len, remaining));
+		if (read < 0) {
+			throw new EOFException();
+		}
+		remaining -= read;
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] buffer = new byte[(int) Math.min(n, 8 * 1024)];
+		int read = read(buffer, 0, buffer.length);
+		return Math.max(read, 0);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return Math.min(Math.max(remaining, 0), in.available());
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		byte[] buffer = new byte[8 * 1024];
+		while (read(buffer, 0, buffer.length) >= 0) {
+			// the rest of the body is still in the stream
+		}
+	}
+}
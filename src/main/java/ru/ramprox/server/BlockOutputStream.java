@@ -0,0 +1,38 @@
+package ru.ramprox.server;
+
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+
+/**
+ * Compressed body of the blocking protocol: blocks of int length and bytes, ended by int 0.
+ * The reader can't tell the end of a deflate stream without reading past it, the end block marks it instead.
+ * Closing writes the end block and leaves the connection open.
+ */
+public class BlockOutputStream extends FilterOutputStream {
+	private final DataOutputStream out;
+
+	public BlockOutputStream(DataOutputStream out) {
+		super(out);
+		this.out = out;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[]{(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len > 0) {
+			out.writeInt(len);
+			out.write(b, off, len);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.writeInt(0);
+		out.flush();
+	}
+}
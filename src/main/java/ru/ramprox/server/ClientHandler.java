@@ -1,29 +1,103 @@
 package ru.ramprox.server;
 
+import io.netty.buffer.ByteBuf;
+import ru.ramprox.metrics.CountingInputStream;
+import ru.ramprox.metrics.CountingOutputStream;
+import ru.ramprox.metrics.Gauge;
+import ru.ramprox.metrics.Histogram;
+import ru.ramprox.metrics.Metrics;
+import ru.ramprox.shaping.Shaping;
+import ru.ramprox.shaping.TransferSlots;
+import ru.ramprox.storage.Compression;
+import ru.ramprox.storage.Compressor;
+import ru.ramprox.storage.Crc32c;
+import ru.ramprox.storage.FileMetadata;
+import ru.ramprox.storage.Segment;
+import ru.ramprox.storage.Storage;
+
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class ClientHandler implements Runnable {
+	private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+
 	private final Socket socket;
+	private final Storage storage;
+	private final Metrics metrics;
+	private final Shaping shaping;
+	private final Gauge active;
+	private final Histogram uploadLatency;
+	private final Histogram downloadLatency;
+	private final Histogram statLatency;
+	private final Histogram otherLatency;
 
-	public ClientHandler(Socket socket) {
+	public ClientHandler(Socket socket, Storage storage, Metrics metrics, Shaping shaping) {
 		this.socket = socket;
+		this.storage = storage;
+		this.metrics = metrics;
+		this.shaping = shaping;
+		this.active = metrics.gauge(Metrics.CONNECTIONS_ACTIVE);
+		this.uploadLatency = metrics.histogram(Metrics.COMMAND_LATENCY, "command", "upload");
+		this.downloadLatency = metrics.histogram(Metrics.COMMAND_LATENCY, "command", "download");
+		this.statLatency = metrics.histogram(Metrics.COMMAND_LATENCY, "command", "stat");
+		this.otherLatency = metrics.histogram(Metrics.COMMAND_LATENCY, "command", "other");
 	}
 
 	@Override
 	public void run() {
+		active.increment();
 		try (
-				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-				DataInputStream in = new DataInputStream(socket.getInputStream())
+				DataOutputStream out = new DataOutputStream(
+						new CountingOutputStream(shaping.output(socket.getOutputStream()), metrics.counter(Metrics.BYTES_OUT)));
+				DataInputStream in = new DataInputStream(
+						new CountingInputStream(shaping.input(socket.getInputStream()), metrics.counter(Metrics.BYTES_IN)))
 		) {
+			Object client = TransferSlots.client(socket.getRemoteSocketAddress());
 			while (true) {
 				String command = in.readUTF();
-				if ("upload".equals(command)) {
-					uploading(out, in);
+				long start = System.nanoTime();
+				// transfers wait for a slot of the client, stat doesn't
+				TransferSlots.Slot slot = isTransfer(command) ? shaping.slots().acquire(client) : null;
+				try {
+					if ("upload".equals(command)) {
+						uploading(out, in);
+					}
+					if ("download".equals(command)) {
+						downloading(out, in);
+					}
+					if ("uploads".equals(command)) {
+						uploadingBatch(out, in);
+					}
+					if ("downloads".equals(command)) {
+						downloadingBatch(out, in);
+					}
+				} finally {
+					if (slot != null) {
+						slot.release();
+					}
+				}
+				if ("stat".equals(command)) {
+					stat(out, in);
 				}
-				if ("download".equals(command)) {
-					downloading(out, in);
+				if ("resumable".equals(command)) {
+					resumable(out, in);
 				}
 				if ("exit".equals(command)) {
 					out.writeUTF("DONE");
@@ -33,34 +107,99 @@ public class ClientHandler implements Runnable {
 				}
 				System.out.println(command);
 				out.writeUTF(command);
+				latency(command).recordSince(start);
 			}
 		} catch (SocketException socketException) {
 			System.out.printf("Client %s disconnected\n", socket.getInetAddress());
 		}
 		catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			active.decrement();
 		}
 	}
 
+	private static boolean isTransfer(String command) {
+		return "upload".equals(command) || "download".equals(command)
+				|| "uploads".equals(command) || "downloads".equals(command);
+	}
+
+	private Histogram latency(String command) {
+		switch (command) {
+			case "upload":
+				return uploadLatency;
+			case "download":
+				return downloadLatency;
+			case "stat":
+				return statLatency;
+			default:
+				return otherLatency;
+		}
+	}
+
+	/**
+	 * download: filename, long offset, long length (-1 - up to the end), byte accepted encoding
+	 * reply: boolean exists, long file length, long count, byte encoding, count bytes, long checksum
+	 * A whole file worth compressing is sent as a deflate stream in blocks (see {@link BlockOutputStream})
+	 * to a client that accepts it. The checksum is the {@link Crc32c} of the count bytes, -1 if it is unknown:
+	 * the saved one of a whole file, otherwise computed while the bytes are sent.
+	 * client reply: OK | CORRUPTED
+	 */
 	private void downloading(DataOutputStream out, DataInputStream in) {
 		try {
 			String filename = in.readUTF();
-			File file = new File("server/" + filename);
-			if (!file.exists()) {
+			long offset = in.readLong();
+			long length = in.readLong();
+			byte accepted = in.readByte();
+			Path file = storage.resolve(filename);
+			FileMetadata metadata = file == null ? null : storage.index().get(file);
+			if (metadata == null || metadata.isDirectory() || offset < 0) {
 				out.writeBoolean(false);
 				return;
 			}
-			out.writeBoolean(true);
-			long fileLength = file.length();
-			out.writeLong(fileLength);
-			FileInputStream fis = new FileInputStream(file);
-			byte[] buffer = new byte[8 * 1024];
-			int read = 0;
-			while ((read = fis.read(buffer)) != -1) {
-				out.write(buffer, 0, read);
+			boolean whole = offset == 0 && (length < 0 || length >= metadata.getSize());
+			boolean compressed = accepted == Compression.DEFLATE && offset == 0 && length < 0
+					&& Compression.worth(filename, metadata.getSize());
+			Segment stored = compressed ? storage.compressed(file, metadata) : null;
+			long known = whole ? metadata.getChecksum() : -1;
+			// a stored compressed form is never inflated just to hash it
+			Checksum checksum = known == -1 && stored == null ? Crc32c.create() : null;
+			ByteBuf content = compressed ? null : storage.cache().get(file, metadata);
+			if (!compressed && content == null && storage.cache().admit(file, metadata)) {
+				content = storage.load(file, metadata);
 			}
-			fis.close();
+			if (compressed) {
+				if (!sendCompressed(out, filename, file, metadata, stored, checksum)) {
+					out.writeBoolean(false);
+					return;
+				}
+			} else if (content != null) {
+				try {
+					int start = (int) Math.min(offset, content.readableBytes());
+					int count = (int) (length < 0 ? content.readableBytes() - start
+							: Math.min(length, content.readableBytes() - start));
+					out.writeBoolean(true);
+					out.writeLong(content.readableBytes());
+					out.writeLong(count);
+					out.writeByte(Compression.NONE);
+					content.getBytes(content.readerIndex() + start,
+							checksum == null ? out : new CheckedOutputStream(out, checksum), count);
+				} finally {
+					content.release();
+				}
+			} else {
+				List<Segment> segments = storage.segments(file, offset, length);
+				if (segments == null) {
+					out.writeBoolean(false);
+					return;
+				}
+				sendSegments(out, filename, metadata.getSize(), segments, checksum);
+			}
+			out.writeLong(checksum != null ? checksum.getValue() : known);
 			out.flush();
+			if (whole && checksum != null) {
+				storage.saveChecksum(file, metadata, checksum.getValue());
+			}
 			String result = in.readUTF();
 			System.out.println("Uploading status file " + filename + " is " + result);
 		} catch (FileNotFoundException e) {
@@ -70,26 +209,360 @@ public class ClientHandler implements Runnable {
 		}
 	}
 
+	private void sendSegments(DataOutputStream out, String filename, long size, List<Segment> segments,
+			Checksum checksum) throws IOException {
+		long count = 0;
+		for (Segment segment : segments) {
+			count += segment.getLength();
+		}
+		out.writeBoolean(true);
+		out.writeLong(size);
+		out.writeLong(count);
+		out.writeByte(Compression.NONE);
+		read(filename, segments, (data, length) -> {
+			if (checksum != null) {
+				checksum.update(data, 0, length);
+			}
+			out.write(data, 0, length);
+		});
+	}
+
+	/**
+	 * Sends the stored compressed form of the file, or compresses it and stores the form for the next time.
+	 * @param checksum of the file as it is compressed, null - not needed
+	 * @return false if there is no such file
+	 */
+	private boolean sendCompressed(DataOutputStream out, String filename, Path file, FileMetadata metadata,
+			Segment stored, Checksum checksum) throws IOException {
+		List<Segment> segments = stored != null ? Collections.singletonList(stored) : storage.segments(file, 0, -1);
+		if (segments == null) {
+			return false;
+		}
+		out.writeBoolean(true);
+		out.writeLong(metadata.getSize());
+		out.writeLong(metadata.getSize());
+		out.writeByte(Compression.DEFLATE);
+		BlockOutputStream blocks = new BlockOutputStream(out);
+		if (stored != null) {
+			read(filename, segments, (data, length) -> blocks.write(data, 0, length));
+		} else {
+			try (Compressor compressor = new Compressor(storage, file, metadata)) {
+				read(filename, segments, (data, length) -> {
+					if (checksum != null) {
+						checksum.update(data, 0, length);
+					}
+					write(blocks, compressor.compress(data, 0, length));
+				});
+				write(blocks, compressor.finish());
+			}
+		}
+		blocks.close();
+		return true;
+	}
+
+	private static void write(OutputStream out, ByteBuffer data) throws IOException {
+		out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+	}
+
+	private interface Reader {
+		void read(byte[] data, int length) throws IOException;
+	}
+
+	private static void read(String filename, List<Segment> segments, Reader reader) throws IOException {
+		read(filename, segments, ByteBuffer.allocate(64 * 1024), reader);
+	}
+
+	private static void read(String filename, List<Segment> segments, ByteBuffer buffer, Reader reader)
+			throws IOException {
+		for (Segment segment : segments) {
+			try (FileChannel channel = FileChannel.open(segment.getPath(), StandardOpenOption.READ)) {
+				long position = segment.getPosition();
+				long end = position + segment.getLength();
+				while (position < end) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), end - position));
+					int read = channel.read(buffer, position);
+					if (read < 0) {
+						throw new EOFException("File " + filename + " was truncated");
+					}
+					reader.read(buffer.array(), read);
+					position += read;
+				}
+			}
+		}
+	}
+
+	/**
+	 * upload: filename, long offset, long length, byte encoding, length bytes
+	 * or their deflate stream in blocks (see {@link BlockOutputStream}), long checksum
+	 * Offset 0 replaces the file, a larger one continues an interrupted upload of it and must not exceed its size.
+	 * The checksum is the {@link Crc32c} of the length bytes, -1 - not checked. It is verified while the bytes
+	 * are written, and saved for the file after a whole upload.
+	 * The bytes go to a staging file, the file is replaced once they all came and match the checksum
+	 * (see {@link Storage#openUpload}); OK means the new version is durable.
+	 * reply: OK | WRONG
+	 */
 	private void uploading(DataOutputStream out, DataInputStream in) throws IOException {
+		String filename = in.readUTF();
+		long offset = in.readLong();
+		long length = in.readLong();
+		byte encoding = in.readByte();
+		long received = 0;
+		byte[] buffer = new byte[8 * 1024];
+		Path file = storage.resolve(filename);
+		Inflater inflater = encoding == Compression.DEFLATE ? new Inflater(true) : null;
+		InputStream body = inflater != null ? new InflaterInputStream(new BlockInputStream(in), inflater) : in;
+		Checksum checksum = Crc32c.create();
+		InputStream data = new CheckedInputStream(body, checksum);
+		boolean consumed = false;
+		Object writer = new Object();
 		try {
-			File file = new File("server/" + in.readUTF()); // read file name
-			if (!file.exists()) {
-				file.createNewFile();
+			long expected;
+			try (FileChannel channel = storage.openUpload(checkName(file, filename), offset, writer)) {
+				while (received < length) {
+					int read = data.read(buffer, 0, (int) Math.min(buffer.length, length - received));
+					if (read < 0) {
+						throw new EOFException();
+					}
+					long position = offset + received;
+					received += read;
+					ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+					while (chunk.hasRemaining()) {
+						channel.write(chunk, position + chunk.position());
+					}
+				}
+				if (inflater != null) {
+					if (body.read() >= 0) {
+						throw new IOException("Upload of " + filename + " exceeds declared size");
+					}
+					// skips the end block
+					body.close();
+				}
+				expected = in.readLong();
+				consumed = true;
 			}
-
-			FileOutputStream fos = new FileOutputStream(file);
-			long size = in.readLong();
-			byte[] buffer = new byte[8 * 1024];
-			for (int i = 0; i < (size + (8 * 1024 - 1)) / (8 * 1024); i++) {
-				int read = in.read(buffer);
-				fos.write(buffer, 0, read);
+			if (expected != -1 && expected != checksum.getValue()) {
+				throw new IOException("Checksum of " + filename + " is " + Long.toHexString(checksum.getValue())
+						+ ", expected " + Long.toHexString(expected));
+			}
+			storage.replace(storage.upload(file), file);
+			FileMetadata metadata = storage.index().get(file);
+			if (offset == 0 && metadata != null && metadata.getSize() == length) {
+				storage.saveChecksum(file, metadata, checksum.getValue());
 			}
-			fos.close();
 			out.writeUTF("OK");
+		} catch (EOFException e) {
+			throw e;
 		} catch (Exception e) {
 			e.printStackTrace();
+			// the rest of the file is still in the stream
+			if (!consumed) {
+				if (inflater != null) {
+					body.close();
+				}
+				while (inflater == null && received < length) {
+					int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - received));
+					if (read < 0) {
+						throw new EOFException();
+					}
+					received += read;
+				}
+				in.readLong();
+			}
 			out.writeUTF("WRONG");
+		} finally {
+			if (inflater != null) {
+				inflater.end();
+			}
+			if (file != null) {
+				storage.release(storage.upload(file), writer);
+			}
+		}
+	}
+
+	/**
+	 * uploads: per file boolean true, filename, long length, length bytes, long checksum (see upload); boolean false
+	 * The files are packed back to back in one stream and nothing is answered until the end,
+	 * so a batch of small files costs one round trip. Missing directories are created.
+	 * The files of a batch are committed together (see {@link ru.ramprox.storage.CommitJournal}),
+	 * the reply comes once they are durable.
+	 * reply: int count, per file filename and OK | WRONG
+	 */
+	private void uploadingBatch(DataOutputStream out, DataInputStream in) throws IOException {
+		// the client sends nothing after the batch until it gets the reply, so the buffer never takes more
+		DataInputStream batch = new DataInputStream(new BufferedInputStream(in, BATCH_BUFFER_SIZE));
+		byte[] buffer = new byte[BATCH_BUFFER_SIZE];
+		List<String> names = new ArrayList<>();
+		List<CompletableFuture<Void>> commits = new ArrayList<>();
+		while (batch.readBoolean()) {
+			String filename = batch.readUTF();
+			long length = batch.readLong();
+			names.add(filename);
+			commits.add(receive(batch, filename, length, buffer));
+		}
+		DataOutputStream reply = new DataOutputStream(new BufferedOutputStream(out, BATCH_BUFFER_SIZE));
+		reply.writeInt(names.size());
+		for (int i = 0; i < names.size(); i++) {
+			reply.writeUTF(names.get(i));
+			reply.writeUTF(isCommitted(names.get(i), commits.get(i)) ? "OK" : "WRONG");
+		}
+		reply.flush();
+	}
+
+	/**
+	 * Writes one file of a batch, its bytes are read even if it can't be written.
+	 * Its checksum is not saved: for small files a second file would double the file operations.
+	 * @return its commit, null if it was not written or the checksum doesn't match
+	 */
+	private CompletableFuture<Void> receive(DataInputStream in, String filename, long length, byte[] buffer)
+			throws IOException {
+		Path file = storage.resolve(filename);
+		Checksum checksum = Crc32c.create();
+		FileChannel channel = null;
+		Object writer = new Object();
+		try {
+			try {
+				channel = storage.openUpload(checkName(file, filename), 0, writer);
+			} catch (IOException e) {
+				System.out.println("Can't upload " + filename + ": " + e);
+			}
+			long received = 0;
+			try {
+				while (received < length) {
+					int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - received));
+					if (read < 0) {
+						throw new EOFException();
+					}
+					checksum.update(buffer, 0, read);
+					if (channel != null) {
+						try {
+							ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+							while (chunk.hasRemaining()) {
+								channel.write(chunk, received + chunk.position());
+							}
+						} catch (IOException e) {
+							System.out.println("Can't upload " + filename + ": " + e);
+							channel.close();
+							channel = null;
+						}
+					}
+					received += read;
+				}
+			} finally {
+				if (channel != null) {
+					channel.close();
+				}
+			}
+			long expected = in.readLong();
+			if (channel == null) {
+				return null;
+			}
+			if (expected != -1 && expected != checksum.getValue()) {
+				System.out.println("Checksum of " + filename + " is " + Long.toHexString(checksum.getValue())
+						+ ", expected " + Long.toHexString(expected));
+				return null;
+			}
+			return storage.journal().commit(storage.upload(file), file);
+		} finally {
+			if (file != null) {
+				// the commit, if any, has taken the staging file over
+				storage.release(storage.upload(file), writer);
+			}
+		}
+	}
+
+	private static boolean isCommitted(String filename, CompletableFuture<Void> commit) {
+		if (commit == null) {
+			return false;
+		}
+		try {
+			commit.join();
+			return true;
+		} catch (CompletionException e) {
+			System.out.println("Can't upload " + filename + ": " + e.getCause());
+			return false;
+		}
+	}
+
+	/**
+	 * downloads: int count, count glob patterns of names, e.g. *.txt or docs/** (a directory name alone
+	 * means the files under it)
+	 * reply: per matching file boolean true, filename, long length, length bytes, long checksum (see download);
+	 * boolean false
+	 */
+	private void downloadingBatch(DataOutputStream out, DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<PathMatcher> matchers = new ArrayList<>();
+		FileSystem fileSystem = storage.root().getFileSystem();
+		for (int i = 0; i < count; i++) {
+			String pattern = in.readUTF();
+			matchers.add(fileSystem.getPathMatcher("glob:" + pattern));
+			matchers.add(fileSystem.getPathMatcher("glob:" + pattern + "/**"));
+		}
+		DataOutputStream batch = new DataOutputStream(new BufferedOutputStream(out, BATCH_BUFFER_SIZE));
+		byte[] buffer = new byte[BATCH_BUFFER_SIZE];
+		for (Path file : storage.files()) {
+			Path relative = storage.root().relativize(file);
+			for (PathMatcher matcher : matchers) {
+				if (matcher.matches(relative)) {
+					send(batch, file, relative.toString().replace(File.separatorChar, '/'), buffer);
+					break;
+				}
+			}
+		}
+		batch.writeBoolean(false);
+		batch.flush();
+	}
+
+	private void send(DataOutputStream out, Path file, String filename, byte[] buffer) throws IOException {
+		FileMetadata metadata = storage.index().get(file);
+		List<Segment> segments = metadata == null ? null : storage.segments(file, 0, -1);
+		if (segments == null) {
+			// gone since the listing
+			return;
+		}
+		long length = 0;
+		for (Segment segment : segments) {
+			length += segment.getLength();
+		}
+		Checksum checksum = metadata.getSize() == length && metadata.getChecksum() != -1 ? null : Crc32c.create();
+		out.writeBoolean(true);
+		out.writeUTF(filename);
+		out.writeLong(length);
+		read(filename, segments, ByteBuffer.wrap(buffer), (data, count) -> {
+			if (checksum != null) {
+				checksum.update(data, 0, count);
+			}
+			out.write(data, 0, count);
+		});
+		out.writeLong(checksum != null ? checksum.getValue() : metadata.getChecksum());
+	}
+
+	/**
+	 * stat: filename
+	 * reply: long length, -1 if there is no such file
+	 */
+	private void stat(DataOutputStream out, DataInputStream in) throws IOException {
+		Path file = storage.resolve(in.readUTF());
+		FileMetadata metadata = file == null ? null : storage.index().get(file);
+		out.writeLong(metadata != null && !metadata.isDirectory() ? metadata.getSize() : -1);
+	}
+
+	/**
+	 * resumable: filename
+	 * reply: long length an upload of the file can be resumed from, that of an interrupted upload;
+	 * 0 if there is nothing to resume, -1 for a wrong name
+	 */
+	private void resumable(DataOutputStream out, DataInputStream in) throws IOException {
+		Path file = storage.resolve(in.readUTF());
+		out.writeLong(file == null ? -1 : storage.uploaded(file));
+	}
+
+	private static Path checkName(Path file, String filename) throws IOException {
+		if (file == null) {
+			throw new IOException("Wrong file name " + filename);
 		}
+		return file;
 	}
 
 	private void disconnected() {
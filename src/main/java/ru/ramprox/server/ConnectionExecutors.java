@@ -0,0 +1,49 @@
+package ru.ramprox.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors for client connections, each connection is one long task.
+ * <ul>
+ *     <li>{@link #VIRTUAL} - a virtual thread per connection (Java 21+), idle and slow clients cost
+ *     next to nothing; falls back to the elastic pool on older runtimes</li>
+ *     <li>{@link #ELASTIC} - an {@link ElasticExecutor} with server.maxThreads threads
+ *     and server.queueLimit waiting connections</li>
+ * </ul>
+ */
+public final class ConnectionExecutors {
+	public static final String VIRTUAL = "virtual";
+	public static final String ELASTIC = "elastic";
+
+	private static final int MAX_THREADS = Integer.getInteger("server.maxThreads", 256);
+	private static final int QUEUE_LIMIT = Integer.getInteger("server.queueLimit", 1024);
+
+	private ConnectionExecutors() {
+	}
+
+	public static ExecutorService create(String mode) {
+		if (VIRTUAL.equals(mode)) {
+			ExecutorService executor = virtualThreads();
+			if (executor != null) {
+				return executor;
+			}
+			System.out.println("Virtual threads are not available in Java " + System.getProperty("java.version")
+					+ ", using the elastic pool");
+		} else if (!ELASTIC.equals(mode)) {
+			throw new IllegalArgumentException("Unknown executor mode " + mode);
+		}
+		return new ElasticExecutor(MAX_THREADS, QUEUE_LIMIT);
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor() is looked up at runtime, so that the server still builds for Java 8.
+	 */
+	private static ExecutorService virtualThreads() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package ru.ramprox.server;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pool that starts a thread per task up to its limit and lets idle threads die,
+ * then queues tasks up to a limit and rejects the rest, counting them.
+ */
+public class ElasticExecutor extends ThreadPoolExecutor {
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	public ElasticExecutor(int maxThreads, int queueLimit) {
+		super(maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueLimit), new DefaultThreadFactory("client"));
+		allowCoreThreadTimeOut(true);
+		setRejectedExecutionHandler((task, executor) -> {
+			rejected.incrementAndGet();
+			throw new RejectedExecutionException("all " + maxThreads + " threads are busy and "
+					+ queueLimit + " tasks are waiting");
+		});
+	}
+
+	public long rejected() {
+		return rejected.get();
+	}
+
+	@Override
+	public String toString() {
+		return "threads " + getPoolSize() + ", active " + getActiveCount() + ", queued " + getQueue().size()
+				+ ", completed " + getCompletedTaskCount() + ", rejected " + rejected.get();
+	}
+}
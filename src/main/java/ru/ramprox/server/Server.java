@@ -1,25 +1,67 @@
 package ru.ramprox.server;
 
+import ru.ramprox.metrics.Counter;
+import ru.ramprox.metrics.Metrics;
+import ru.ramprox.metrics.MetricsEndpoint;
+import ru.ramprox.netty.Tls;
+import ru.ramprox.shaping.Shaping;
+import ru.ramprox.storage.Storage;
+
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
+/**
+ * Blocking server, a thread per client. The executor mode is chosen with -Dserver.executor=virtual|elastic,
+ * see {@link ConnectionExecutors}. Metrics are served by {@link MetricsEndpoint}, TLS is configured in {@link Tls},
+ * rate and transfer limits in {@link Shaping}.
+ */
 public class Server {
-	public Server() {
-		ExecutorService service = Executors.newFixedThreadPool(4);
-		try (ServerSocket server = new ServerSocket(6789)) {
+	public Server(String executorMode) {
+		ExecutorService service = ConnectionExecutors.create(executorMode);
+		Metrics metrics = new Metrics();
+		Counter connections = metrics.counter(Metrics.CONNECTIONS);
+		Counter rejected = metrics.counter("connections_rejected");
+		Shaping shaping = new Shaping(metrics);
+		if (service instanceof ElasticExecutor) {
+			ElasticExecutor pool = (ElasticExecutor) service;
+			metrics.gauge(Metrics.QUEUE_DEPTH, () -> pool.getQueue().size());
+			metrics.gauge("threads_active", pool::getActiveCount);
+		}
+		try (ServerSocket server = Tls.serverSocket(6789)) {
+			Storage storage = new Storage(Paths.get("server"));
+			metrics.register(storage);
+			MetricsEndpoint.start(metrics);
 			while (true) {
 				Socket socket = server.accept();
 				System.out.println("Client accepted - " + socket.getInetAddress());
-				service.execute(new ClientHandler(socket));
+				connections.increment();
+				try {
+					service.execute(new ClientHandler(socket, storage, metrics, shaping));
+				} catch (RejectedExecutionException e) {
+					rejected.increment();
+					System.out.println("Client rejected - " + socket.getInetAddress() + ": " + e.getMessage()
+							+ " (" + service + ")");
+					closeQuietly(socket);
+				}
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	public static void main(String[] args) {
-		new Server();
+		new Server(System.getProperty("server.executor", ConnectionExecutors.VIRTUAL));
 	}
 }
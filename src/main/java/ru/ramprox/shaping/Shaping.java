@@ -0,0 +1,93 @@
+package ru.ramprox.shaping;
+
+import io.netty.channel.Channel;
+import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
+import ru.ramprox.metrics.Metrics;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fair sharing of a server between its clients, one instance per server:
+ * <ul>
+ *     <li>bandwidth: -Dshaping.read and -Dshaping.write over all connections, -Dshaping.client.read and
+ *     -Dshaping.client.write per connection, bytes per second, 0 - no limit (the default)</li>
+ *     <li>-Dshaping.transfers concurrent uploads and downloads per client address, 0 - no limit (the default),
+ *     see {@link TransferSlots}. All connections of a host share them, hosts behind one NAT as well,
+ *     so set it above the streams of a {@link ru.ramprox.client.ParallelTransfer}</li>
+ *     <li>-Dshaping.connections open connections of the Netty server, 0 - no limit (the default); the blocking
+ *     server is bounded by its connection executor instead</li>
+ * </ul>
+ * Listings and stat take no transfer slot, and the disk runs them ahead of bulk reads and writes
+ * (see {@link ru.ramprox.storage.DiskExecutor}), so they stay quick while backups run.
+ */
+public class Shaping {
+	private static final long READ = Long.getLong("shaping.read", 0);
+	private static final long WRITE = Long.getLong("shaping.write", 0);
+	private static final long CLIENT_READ = Long.getLong("shaping.client.read", 0);
+	private static final long CLIENT_WRITE = Long.getLong("shaping.client.write", 0);
+	private static final int TRANSFERS = Integer.getInteger("shaping.transfers", 0);
+	private static final int CONNECTIONS = Integer.getInteger("shaping.connections", 0);
+
+	private final TransferSlots slots = new TransferSlots(TRANSFERS);
+	private final TokenBucket read = READ > 0 ? new TokenBucket(READ) : null;
+	private final TokenBucket write = WRITE > 0 ? new TokenBucket(WRITE) : null;
+	private final AtomicInteger connections = new AtomicInteger();
+
+	public Shaping(Metrics metrics) {
+		metrics.gauge("transfers_waiting", slots::waiting);
+	}
+
+	public TransferSlots slots() {
+		return slots;
+	}
+
+	/**
+	 * Counts the channel until it is closed.
+	 * @return false if the server already has as many connections as allowed, the channel is to be closed then
+	 */
+	public boolean admit(Channel channel) {
+		if (CONNECTIONS == 0) {
+			return true;
+		}
+		if (connections.incrementAndGet() > CONNECTIONS) {
+			connections.decrementAndGet();
+			return false;
+		}
+		channel.closeFuture().addListener(future -> connections.decrementAndGet());
+		return true;
+	}
+
+	/**
+	 * @return shared handler of all channels of the Netty server, null without rate limits;
+	 * {@link GlobalChannelTrafficShapingHandler#release()} it when the server stops
+	 */
+	public GlobalChannelTrafficShapingHandler handler(ScheduledExecutorService executor) {
+		if (READ == 0 && WRITE == 0 && CLIENT_READ == 0 && CLIENT_WRITE == 0) {
+			return null;
+		}
+		return new GlobalChannelTrafficShapingHandler(executor, WRITE, READ, CLIENT_WRITE, CLIENT_READ);
+	}
+
+	/**
+	 * @return the stream of a blocking connection, limited to the global and to its own rate
+	 */
+	public InputStream input(InputStream in) {
+		TokenBucket[] buckets = buckets(read, CLIENT_READ);
+		return buckets.length == 0 ? in : new ThrottledInputStream(in, buckets);
+	}
+
+	public OutputStream output(OutputStream out) {
+		TokenBucket[] buckets = buckets(write, CLIENT_WRITE);
+		return buckets.length == 0 ? out : new ThrottledOutputStream(out, buckets);
+	}
+
+	private static TokenBucket[] buckets(TokenBucket global, long clientRate) {
+		if (global == null) {
+			return clientRate > 0 ? new TokenBucket[]{new TokenBucket(clientRate)} : new TokenBucket[0];
+		}
+		return clientRate > 0 ? new TokenBucket[]{new TokenBucket(clientRate), global} : new TokenBucket[]{global};
+	}
+}
@@ -0,0 +1,51 @@
+package ru.ramprox.shaping;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Takes the bytes read from every bucket, a reader that is too fast sleeps after the read.
+ * While it sleeps the socket buffer fills up and TCP slows the sender down.
+ */
+public class ThrottledInputStream extends FilterInputStream {
+	private final TokenBucket[] buckets;
+
+	public ThrottledInputStream(InputStream in, TokenBucket... buckets) {
+		super(in);
+		this.buckets = buckets;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0) {
+			take(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = in.read(b, off, len);
+		if (read > 0) {
+			take(read);
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(n);
+		if (skipped > 0) {
+			take(skipped);
+		}
+		return skipped;
+	}
+
+	private void take(long bytes) throws IOException {
+		for (TokenBucket bucket : buckets) {
+			bucket.take(bytes);
+		}
+	}
+}
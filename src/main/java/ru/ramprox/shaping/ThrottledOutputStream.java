@@ -0,0 +1,42 @@
+package ru.ramprox.shaping;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Takes the bytes from every bucket before they are written. Large arrays are written in pieces,
+ * so the stream goes at an even pace instead of in bursts.
+ */
+public class ThrottledOutputStream extends FilterOutputStream {
+	private static final int PIECE_SIZE = 16 * 1024;
+
+	private final TokenBucket[] buckets;
+
+	public ThrottledOutputStream(OutputStream out, TokenBucket... buckets) {
+		super(out);
+		this.buckets = buckets;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		take(1);
+		out.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		for (int written = 0; written < len; ) {
+			int piece = Math.min(PIECE_SIZE, len - written);
+			take(piece);
+			out.write(b, off + written, piece);
+			written += piece;
+		}
+	}
+
+	private void take(int bytes) throws IOException {
+		for (TokenBucket bucket : buckets) {
+			bucket.take(bytes);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package ru.ramprox.shaping;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limit of blocking streams: tokens (bytes) accrue at the rate up to a burst of one second's worth.
+ * Taking more than there is leaves the bucket in debt and the taker sleeps until it is paid off, so concurrent
+ * takers of a shared bucket line up behind each other and together never exceed the rate.
+ * Thread safe, one bucket shared by all connections is a global limit.
+ */
+public class TokenBucket {
+	private final long rate;
+	private double tokens;
+	private long refilled = System.nanoTime();
+
+	/**
+	 * @param rate bytes per second
+	 */
+	public TokenBucket(long rate) {
+		this.rate = rate;
+		this.tokens = rate;
+	}
+
+	/**
+	 * Takes the bytes, sleeping as long as the bucket is in debt afterwards.
+	 */
+	public void take(long bytes) throws InterruptedIOException {
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			tokens = Math.min(rate, tokens + (now - refilled) * (double) rate / TimeUnit.SECONDS.toNanos(1));
+			refilled = now;
+			tokens -= bytes;
+			wait = tokens < 0 ? (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+		}
+		if (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while throttled");
+			}
+		}
+	}
+
+	public long rate() {
+		return rate;
+	}
+}
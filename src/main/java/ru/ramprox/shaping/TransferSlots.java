@@ -0,0 +1,142 @@
+package ru.ramprox.shaping;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Limits the transfers every client (remote address) runs at once. A transfer beyond the limit waits until one of
+ * the client's own transfers ends, so a client with a hundred downloads doesn't take the disk and the link away
+ * from the others; requests that are not transfers (listings, stat) never wait.
+ * Waiting transfers of a client start in the order they came. A client without transfers takes no memory.
+ */
+public class TransferSlots {
+	private final int limit;
+	// guarded by this
+	private final Map<Object, Client> clients = new HashMap<>();
+	private int waiting;
+
+	private static class Client {
+		int active;
+		final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+	}
+
+	/**
+	 * Transfer slot of a client, {@link #release()} it when the transfer ends, whichever way.
+	 */
+	public final class Slot {
+		private final Object client;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Slot(Object client) {
+			this.client = client;
+		}
+
+		/**
+		 * Starts the next waiting transfer of the client, if any. Releasing twice does nothing.
+		 */
+		public void release() {
+			if (released.compareAndSet(false, true)) {
+				TransferSlots.this.release(client);
+			}
+		}
+	}
+
+	/**
+	 * @param limit transfers per client, 0 - no limit
+	 */
+	public TransferSlots(int limit) {
+		this.limit = limit > 0 ? limit : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Starts the transfer on the executor once the client has a free slot, right away if it has one now.
+	 */
+	public void acquire(Object client, Executor executor, Consumer<Slot> start) {
+		Slot slot = new Slot(client);
+		synchronized (this) {
+			Client entry = clients.computeIfAbsent(client, c -> new Client());
+			if (entry.active >= limit) {
+				entry.waiting.add(() -> executor.execute(() -> start.accept(slot)));
+				waiting++;
+				return;
+			}
+			entry.active++;
+		}
+		start.accept(slot);
+	}
+
+	/**
+	 * Waits for a free slot of the client.
+	 */
+	public Slot acquire(Object client) throws InterruptedException {
+		CompletableFuture<Slot> granted = new CompletableFuture<>();
+		acquire(client, Runnable::run, granted::complete);
+		try {
+			return granted.get();
+		} catch (InterruptedException e) {
+			// the slot is released as soon as it is granted
+			granted.thenAccept(Slot::release);
+			throw e;
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * For transfers that can't wait, e.g. uploads whose data is on its way already.
+	 * @return slot of the client, null if it has no free one now
+	 */
+	public Slot tryAcquire(Object client) {
+		synchronized (this) {
+			Client entry = clients.computeIfAbsent(client, c -> new Client());
+			if (entry.active >= limit) {
+				if (entry.active == 0) {
+					clients.remove(client);
+				}
+				return null;
+			}
+			entry.active++;
+		}
+		return new Slot(client);
+	}
+
+	/**
+	 * @return key of the client at the address: its host, all connections of a client share its slots
+	 */
+	public static Object client(SocketAddress address) {
+		return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getAddress() : address;
+	}
+
+	/**
+	 * @return transfers waiting for a slot, of all clients
+	 */
+	public synchronized int waiting() {
+		return waiting;
+	}
+
+	private void release(Object client) {
+		Runnable next = null;
+		synchronized (this) {
+			Client entry = clients.get(client);
+			entry.active--;
+			if (entry.active < limit && !entry.waiting.isEmpty()) {
+				next = entry.waiting.poll();
+				waiting--;
+				entry.active++;
+			} else if (entry.active == 0) {
+				clients.remove(client);
+			}
+		}
+		if (next != null) {
+			next.run();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package ru.ramprox.storage;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Changes of the {@link MetadataIndex}, in the order they happened, for clients that would otherwise poll listings.
+ * <p>
+ * Every change gets the next sequence number. The last -Dstorage.feed.history changes are kept, so that
+ * a client that reconnects resumes after the last change it got. A client that was away longer, or whose
+ * position is from an earlier run of the server (another epoch), gets the whole listing again instead.
+ * Subscribers are called on the thread that changed the index, they must only queue the change.
+ */
+public class ChangeFeed {
+	/** the subscriber must drop what it has, the whole index follows */
+	public static final byte RESET = 0;
+	public static final byte CREATED = 1;
+	public static final byte MODIFIED = 2;
+	public static final byte DELETED = 3;
+	private static final int HISTORY = Integer.getInteger("storage.feed.history", 16 * 1024);
+
+	private final Storage storage;
+	/** tells positions of this run from those of an earlier one */
+	private final long epoch = System.currentTimeMillis();
+	private final List<Consumer<Change>> subscribers = new CopyOnWriteArrayList<>();
+	// guarded by this
+	private final ArrayDeque<Change> history = new ArrayDeque<>();
+	private long sequence;
+
+	public static class Change {
+		private final long sequence;
+		private final byte type;
+		private final FileMetadata metadata;
+
+		Change(long sequence, byte type, FileMetadata metadata) {
+			this.sequence = sequence;
+			this.type = type;
+			this.metadata = metadata;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return {@link #RESET}, {@link #CREATED}, {@link #MODIFIED} or {@link #DELETED}
+		 */
+		public byte getType() {
+			return type;
+		}
+
+		/**
+		 * @return new metadata of the entry, the last known one of a deleted entry; null for {@link #RESET}
+		 */
+		public FileMetadata getMetadata() {
+			return metadata;
+		}
+	}
+
+	ChangeFeed(Storage storage) {
+		this.storage = storage;
+	}
+
+	public long epoch() {
+		return epoch;
+	}
+
+	public synchronized long sequence() {
+		return sequence;
+	}
+
+	public int subscribers() {
+		return subscribers.size();
+	}
+
+	/**
+	 * Called by the index, in the order of its changes.
+	 */
+	synchronized void publish(byte type, FileMetadata metadata) {
+		Change change = new Change(++sequence, type, metadata);
+		history.add(change);
+		if (history.size() > HISTORY) {
+			history.poll();
+		}
+		for (Consumer<Change> subscriber : subscribers) {
+			subscriber.accept(change);
+		}
+	}
+
+	/**
+	 * Hands the subscriber the changes after the position, then every new one.
+	 * If they are not kept anymore, it gets {@link #RESET} and every entry of the index as {@link #CREATED} instead.
+	 * @param epoch epoch of the position, see {@link #epoch()}
+	 * @param after the last change the subscriber has
+	 */
+	public synchronized void subscribe(long epoch, long after, Consumer<Change> subscriber) {
+		long oldest = history.isEmpty() ? sequence + 1 : history.peek().getSequence();
+		boolean resumed = epoch == this.epoch && after >= oldest - 1 && after <= sequence;
+		if (resumed) {
+			for (Change change : history) {
+				if (change.getSequence() > after) {
+					subscriber.accept(change);
+				}
+			}
+		} else {
+			subscriber.accept(new Change(sequence, RESET, null));
+			// refreshes publish after changing the index, an entry that is in both comes twice
+			for (FileMetadata metadata : storage.index().list("", null, 0)) {
+				subscriber.accept(new Change(sequence, CREATED, metadata));
+			}
+		}
+		subscribers.add(subscriber);
+	}
+
+	public void unsubscribe(Consumer<Change> subscriber) {
+		subscribers.remove(subscriber);
+	}
+}
@@ -0,0 +1,91 @@
+package ru.ramprox.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content-addressed chunks: every chunk is a file named by the SHA-256 of its bytes,
+ * so equal chunks of any number of files are stored once.
+ */
+public class ChunkStore {
+	public static final int HASH_SIZE = 32;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Path dir;
+
+	public ChunkStore(Path dir) throws IOException {
+		this.dir = Files.createDirectories(dir);
+	}
+
+	public static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public Path path(byte[] hashes, int offset) {
+		char[] name = new char[HASH_SIZE * 2];
+		for (int i = 0; i < HASH_SIZE; i++) {
+			int b = hashes[offset + i] & 0xFF;
+			name[i * 2] = HEX[b >>> 4];
+			name[i * 2 + 1] = HEX[b & 0xF];
+		}
+		String hex = new String(name);
+		return dir.resolve(hex.substring(0, 2)).resolve(hex);
+	}
+
+	public boolean contains(byte[] hashes, int offset) {
+		return Files.isRegularFile(path(hashes, offset));
+	}
+
+	/**
+	 * @return size of the chunk, -1 if it is not stored
+	 */
+	public long size(byte[] hashes, int offset) throws IOException {
+		try {
+			return Files.size(path(hashes, offset));
+		} catch (NoSuchFileException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Stores the chunk unless it is already there. A stored chunk is durable, a manifest may name it right away.
+	 * @return hash of the chunk
+	 */
+	public byte[] put(ByteBuffer data) throws IOException {
+		MessageDigest digest = digest();
+		digest.update(data.duplicate());
+		byte[] hash = digest.digest();
+		Path path = path(hash, 0);
+		if (Files.exists(path)) {
+			return hash;
+		}
+		Files.createDirectories(path.getParent());
+		Path temp = Files.createTempFile(path.getParent(), null, ".tmp");
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+			while (data.hasRemaining()) {
+				out.write(data);
+			}
+			out.force(true);
+		}
+		try {
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+		} catch (FileAlreadyExistsException e) {
+			Files.delete(temp);
+		}
+		CommitJournal.syncDirectory(path.getParent());
+		return hash;
+	}
+}
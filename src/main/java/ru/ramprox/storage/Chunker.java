@@ -0,0 +1,108 @@
+package ru.ramprox.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Content-defined chunking with a gear rolling hash.
+ * A boundary depends only on the last 64 bytes, so an edit moves the boundaries next to it
+ * and leaves the rest of the chunks (and their hashes) as they were.
+ */
+public class Chunker {
+	public static final int MIN_SIZE = 64 * 1024;
+	public static final int MAX_SIZE = 1024 * 1024;
+	/** average chunk about MIN_SIZE + 2^18 */
+	private static final long MASK = -1L << (64 - 18);
+
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x5EED);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private long hash;
+	private int size;
+
+	/**
+	 * Feeds bytes of the current chunk.
+	 * @return number of bytes taken; less than length when the chunk ends inside, then the next call starts a new chunk
+	 */
+	public int next(ByteBuffer data, int offset, int length) {
+		for (int i = 0; i < length; i++) {
+			hash = (hash << 1) + GEAR[data.get(offset + i) & 0xFF];
+			size++;
+			if (size >= MAX_SIZE || size >= MIN_SIZE && (hash & MASK) == 0) {
+				hash = 0;
+				size = 0;
+				return i + 1;
+			}
+		}
+		return length;
+	}
+
+	public static class Chunk {
+		private final long offset;
+		private final int length;
+		private final byte[] hash;
+
+		public Chunk(long offset, int length, byte[] hash) {
+			this.offset = offset;
+			this.length = length;
+			this.hash = hash;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public byte[] getHash() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Splits the whole file in one pass, hashing every chunk on the way.
+	 */
+	public static List<Chunk> split(FileChannel file) throws IOException {
+		List<Chunk> chunks = new ArrayList<>();
+		Chunker chunker = new Chunker();
+		MessageDigest digest = ChunkStore.digest();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(4 * MAX_SIZE);
+		long position = 0;
+		long chunkStart = 0;
+		while (file.read(buffer, position) > 0) {
+			buffer.flip();
+			int offset = 0;
+			while (offset < buffer.limit()) {
+				int taken = chunker.next(buffer, offset, buffer.limit() - offset);
+				ByteBuffer part = buffer.duplicate();
+				part.limit(offset + taken).position(offset);
+				digest.update(part);
+				offset += taken;
+				if (chunker.size == 0) {
+					long end = position + offset;
+					chunks.add(new Chunk(chunkStart, (int) (end - chunkStart), digest.digest()));
+					chunkStart = end;
+				}
+			}
+			position += buffer.limit();
+			buffer.clear();
+		}
+		if (position > chunkStart) {
+			chunks.add(new Chunk(chunkStart, (int) (position - chunkStart), digest.digest()));
+		}
+		return chunks;
+	}
+}
@@ -0,0 +1,467 @@
+package ru.ramprox.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
+
+/**
+ * Puts new versions of files in place atomically and durably, so that a reader never sees half a file
+ * and a crash never leaves one.
+ * <p>
+ * A new version is written to a staging file. To commit it, the staging file is renamed to a unique name,
+ * a record of the commit is appended to the journal, and then the file is renamed into place.
+ * A file up to -Dstorage.journal.inline bytes is copied into its record. A larger file is synced on its own
+ * first, and its record only names it.
+ * <p>
+ * Group commit: one thread writes the records. Every record that comes in while the journal is being synced
+ * goes into the next batch, and the whole batch takes a single sync, after one sync of every directory whose
+ * large files it names, so that their unique names survive a crash. So a thousand concurrent small uploads
+ * cost a few syncs, not a thousand. A commit completes when its record is durable and the file is in place.
+ * <p>
+ * A checkpoint syncs the files and directories changed since the last one and empties the journal.
+ * It runs once the journal exceeds -Dstorage.journal.size bytes, or when no commit comes for
+ * -Dstorage.journal.interval seconds. After a crash, the last record of every file is redone
+ * when the storage opens, and the records are kept until the next checkpoint. A record cut short by the crash
+ * has a wrong checksum and ends the journal; its commit was never acknowledged.
+ * <p>
+ * A commit that fails never comes back after a crash: if its record is not written, its file is deleted,
+ * and if the file cannot be put in place, a DROP record cancels that commit. Unique names that no redone record
+ * uses, of superseded records or of commits the crash interrupted, are deleted when the storage opens.
+ */
+public class CommitJournal {
+	/** the record holds the data of the file */
+	static final byte DATA = 1;
+	/** the record names a synced file that replaces the file */
+	static final byte MOVE = 2;
+	/**
+	 * the file has changed outside the journal, earlier records of it must not be redone;
+	 * with a committing file - only the commit of that file must not
+	 */
+	static final byte DROP = 3;
+	private static final int INLINE_SIZE = Integer.getInteger("storage.journal.inline", 64 * 1024);
+	private static final long CHECKPOINT_SIZE = Long.getLong("storage.journal.size", 16 * 1024 * 1024);
+	private static final long CHECKPOINT_INTERVAL = TimeUnit.SECONDS.toMillis(Long.getLong("storage.journal.interval", 5));
+
+	private final Storage storage;
+	private final Path root;
+	private final FileChannel journal;
+	private final BlockingQueue<Commit> queue = new LinkedBlockingQueue<>();
+	/** files put in place since the last checkpoint, journal thread only */
+	private final Set<Path> dirty = new HashSet<>();
+	/** unique names of files being committed survive restarts */
+	private final String prefix = Long.toHexString(System.currentTimeMillis());
+	private final AtomicLong ids = new AtomicLong();
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong syncs = new AtomicLong();
+
+	private static class Commit {
+		final byte type;
+		final Path file;
+		/** the staging file under its unique name; for DROP the one of the cancelled commit, null - all of them */
+		final Path committing;
+		final byte[] data;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		Commit(byte type, Path file, Path committing, byte[] data) {
+			this.type = type;
+			this.file = file;
+			this.committing = committing;
+			this.data = data;
+		}
+	}
+
+	CommitJournal(Storage storage, Path root, Path dir) throws IOException {
+		this.storage = storage;
+		this.root = root;
+		Files.createDirectories(dir);
+		this.journal = FileChannel.open(dir.resolve("commits"),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		recover();
+		Thread thread = new Thread(this::run, "storage-journal");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Commits a completed staging file as the new version of the file. The staging file is taken over
+	 * right away, so its name can be used for the next version while this one is still being committed.
+	 * The small copy and the sync of a large file run on the calling thread, usually a disk thread.
+	 * @return completes once the new version is durable and in place
+	 */
+	public CompletableFuture<Void> commit(Path staged, Path file) {
+		try {
+			long size = Files.size(staged);
+			byte[] data = null;
+			if (size <= INLINE_SIZE) {
+				data = Files.readAllBytes(staged);
+			} else {
+				try (FileChannel channel = FileChannel.open(staged, StandardOpenOption.WRITE)) {
+					channel.force(true);
+				}
+			}
+			Path committing = file.resolveSibling("." + file.getFileName() + "." + prefix + "-"
+					+ ids.incrementAndGet() + ".commit");
+			Files.move(staged, committing, StandardCopyOption.ATOMIC_MOVE);
+			return enqueue(new Commit(data != null ? DATA : MOVE, file, committing, data));
+		} catch (IOException e) {
+			CompletableFuture<Void> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	/**
+	 * Records that the file is about to change outside the journal, e.g. it is replaced by a manifest.
+	 * Earlier commits of the file are not redone after a crash once this completes.
+	 */
+	public CompletableFuture<Void> forget(Path file) {
+		return enqueue(new Commit(DROP, file, null, null));
+	}
+
+	public long commits() {
+		return commits.get();
+	}
+
+	/**
+	 * @return syncs of the journal, each one made a batch of commits durable
+	 */
+	public long syncs() {
+		return syncs.get();
+	}
+
+	private CompletableFuture<Void> enqueue(Commit commit) {
+		queue.add(commit);
+		return commit.done;
+	}
+
+	private void run() {
+		List<Commit> batch = new ArrayList<>();
+		while (true) {
+			try {
+				Commit first = queue.poll(CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					if (!dirty.isEmpty()) {
+						checkpoint();
+					}
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch);
+				if (append(batch)) {
+					for (Commit commit : batch) {
+						apply(commit);
+					}
+					if (journal.size() >= CHECKPOINT_SIZE) {
+						checkpoint();
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+			} finally {
+				for (Commit commit : batch) {
+					// the thread goes on, a commit must never wait forever
+					commit.done.completeExceptionally(new IOException("commit journal failed"));
+				}
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Writes the records of the batch and syncs the journal once.
+	 * @return false if the batch failed, the journal is then as it was before
+	 */
+	private boolean append(List<Commit> batch) throws IOException {
+		long start = journal.size();
+		try {
+			ByteArrayOutputStream records = new ByteArrayOutputStream();
+			Set<Path> directories = new HashSet<>();
+			for (Commit commit : batch) {
+				writeRecord(records, commit);
+				if (commit.type == MOVE) {
+					directories.add(commit.committing.getParent());
+				}
+			}
+			// a MOVE record is redone only if its file is there
+			for (Path directory : directories) {
+				syncDirectory(directory);
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+			while (buffer.hasRemaining()) {
+				journal.write(buffer, start + buffer.position());
+			}
+			journal.force(false);
+			syncs.incrementAndGet();
+			commits.addAndGet(batch.size());
+			return true;
+		} catch (IOException e) {
+			for (Commit commit : batch) {
+				commit.done.completeExceptionally(e);
+			}
+			journal.truncate(start);
+			// no record names them now
+			for (Commit commit : batch) {
+				if (commit.type != DROP) {
+					deleteQuietly(commit.committing);
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Record: int length, length bytes: byte type, UTF file, [UTF committing file, [int size, size bytes]];
+	 * int checksum ({@link Crc32c}) of the length bytes. A DROP record names a committing file only if it cancels
+	 * a single commit.
+	 */
+	private void writeRecord(ByteArrayOutputStream records, Commit commit) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(commit.type);
+		record.writeUTF(root.relativize(commit.file).toString());
+		if (commit.committing != null) {
+			record.writeUTF(root.relativize(commit.committing).toString());
+		}
+		if (commit.type == DATA) {
+			record.writeInt(commit.data.length);
+			record.write(commit.data);
+		}
+		byte[] payload = bytes.toByteArray();
+		Checksum checksum = Crc32c.create();
+		checksum.update(payload, 0, payload.length);
+		DataOutputStream out = new DataOutputStream(records);
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.writeInt((int) checksum.getValue());
+	}
+
+	private void apply(Commit commit) {
+		try {
+			if (commit.type != DROP) {
+				try {
+					Files.move(commit.committing, commit.file,
+							StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (IOException e) {
+					// its record is durable, it must not be redone after a crash
+					deleteQuietly(commit.committing);
+					enqueue(new Commit(DROP, commit.file, commit.committing, null));
+					throw e;
+				}
+				dirty.add(commit.file);
+				storage.dropManifest(commit.file);
+				storage.cache().invalidate(commit.file);
+				storage.index().refresh(commit.file);
+			}
+			commit.done.complete(null);
+		} catch (IOException | RuntimeException e) {
+			commit.done.completeExceptionally(e);
+		}
+	}
+
+	private static void deleteQuietly(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Makes the files put in place durable on their own, the journal is not needed for them anymore.
+	 */
+	private void checkpoint() throws IOException {
+		Set<Path> directories = new HashSet<>();
+		for (Path file : dirty) {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				channel.force(true);
+			} catch (NoSuchFileException e) {
+				// replaced by a manifest meanwhile
+			}
+			directories.add(file.getParent());
+		}
+		for (Path directory : directories) {
+			syncDirectory(directory);
+		}
+		journal.truncate(0);
+		journal.force(false);
+		dirty.clear();
+	}
+
+	/**
+	 * Makes renames in the directory durable. Not every platform can open a directory, there it is left
+	 * to the file system.
+	 */
+	static void syncDirectory(Path directory) {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// e.g. Windows
+		}
+	}
+
+	/**
+	 * Redoes the last record of every file in the journal that is not cancelled, deletes the committing files
+	 * left over, then checkpoints.
+	 */
+	private void recover() throws IOException {
+		// records of every file, the last one is redone
+		Map<String, List<byte[]>> records = new LinkedHashMap<>();
+		ByteBuffer contents = ByteBuffer.allocate((int) journal.size());
+		while (contents.hasRemaining() && journal.read(contents, contents.position()) >= 0) {
+			// a read may return part of it
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents.array()));
+		// of the valid records
+		long end = 0;
+		try {
+			while (true) {
+				int length = in.readInt();
+				if (length <= 0 || length > in.available()) {
+					break;
+				}
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				Checksum checksum = Crc32c.create();
+				checksum.update(payload, 0, payload.length);
+				if ((int) checksum.getValue() != in.readInt()) {
+					break;
+				}
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+				byte type = record.readByte();
+				String name = record.readUTF();
+				List<byte[]> history = records.computeIfAbsent(name, key -> new ArrayList<>());
+				if (type == DROP && record.available() > 0) {
+					// an earlier record of this file could still be redone
+					String cancelled = record.readUTF();
+					history.removeIf(earlier -> cancelled.equals(committing(earlier)));
+				} else {
+					if (type == DROP) {
+						history.clear();
+					}
+					history.add(payload);
+				}
+				end += 4 + length + 4;
+			}
+		} catch (EOFException e) {
+			// cut short by the crash
+		}
+		int redone = 0;
+		for (List<byte[]> history : records.values()) {
+			if (history.isEmpty()) {
+				continue;
+			}
+			byte[] payload = history.get(history.size() - 1);
+			DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+			byte type = record.readByte();
+			Path file = root.resolve(record.readUTF());
+			if (type == DROP) {
+				continue;
+			}
+			Path committing = root.resolve(record.readUTF());
+			if (type == DATA) {
+				byte[] data = new byte[record.readInt()];
+				record.readFully(data);
+				Path recovered = storage.staging(file, "recover");
+				Files.createDirectories(file.getParent());
+				try (FileChannel channel = FileChannel.open(recovered, StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					ByteBuffer buffer = ByteBuffer.wrap(data);
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+				}
+				Files.move(recovered, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				Files.deleteIfExists(committing);
+				redone++;
+			} else if (Files.exists(committing)) {
+				Files.move(committing, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				redone++;
+			}
+			storage.dropManifest(file);
+			dirty.add(file);
+		}
+		if (redone > 0) {
+			System.out.println("Storage journal: " + redone + " commits redone");
+		}
+		deleteLeftovers();
+		// the records stay until the first checkpoint has synced the files
+		journal.truncate(end);
+		journal.force(false);
+	}
+
+	/**
+	 * @return committing file named by the record, null if there is none
+	 */
+	private static String committing(byte[] payload) {
+		try {
+			DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+			record.readByte();
+			record.readUTF();
+			return record.available() > 0 ? record.readUTF() : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Deletes committing files: once the records are redone, none of them is needed.
+	 * Names starting with a dot are internal, see {@link Storage#resolve}, so only the journal makes these.
+	 */
+	private void deleteLeftovers() throws IOException {
+		List<Path> leftovers = new ArrayList<>();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+				return dir.equals(root) || !dir.getFileName().toString().startsWith(".")
+						? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				String name = file.getFileName().toString();
+				if (name.startsWith(".") && name.endsWith(".commit")) {
+					leftovers.add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		for (Path leftover : leftovers) {
+			Files.deleteIfExists(leftover);
+		}
+		if (!leftovers.isEmpty()) {
+			System.out.println("Storage journal: " + leftovers.size() + " unfinished commits deleted");
+		}
+	}
+}
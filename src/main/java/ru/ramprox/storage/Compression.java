@@ -0,0 +1,45 @@
+package ru.ramprox.storage;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Encodings of transfer bodies, negotiated per transfer in the command header.
+ * <p>
+ * A client says which encoding it accepts or uses, the server compresses only files that are worth it:
+ * large enough and not compressed already by their format.
+ */
+public final class Compression {
+	public static final byte NONE = 0;
+	/** raw deflate stream of {@link java.util.zip.Deflater} */
+	public static final byte DEFLATE = 1;
+
+	/** smaller files don't pay for the deflate header and the extra round of buffering */
+	public static final long MIN_SIZE = 1024;
+
+	private static final Set<String> COMPRESSED = new HashSet<>(Arrays.asList(
+			"zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4", "jar", "apk",
+			"docx", "xlsx", "pptx", "odt", "epub",
+			"png", "jpg", "jpeg", "gif", "webp", "heic",
+			"mp3", "aac", "ogg", "flac", "mp4", "mkv", "avi", "mov", "webm", "woff2"));
+
+	private Compression() {
+	}
+
+	/**
+	 * @return whether the file is not compressed by its format, judging by the extension of its name
+	 */
+	public static boolean isCompressible(String name) {
+		int dot = name.lastIndexOf('.');
+		return dot < 0 || !COMPRESSED.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * @return whether a transfer of the file of the size should be compressed
+	 */
+	public static boolean worth(String name, long size) {
+		return size >= MIN_SIZE && isCompressible(name);
+	}
+}
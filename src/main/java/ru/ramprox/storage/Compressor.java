@@ -0,0 +1,96 @@
+package ru.ramprox.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates a whole file while it is sent and keeps the result as its stored compressed form,
+ * see {@link Storage#compressed(Path, FileMetadata)}, so the next download doesn't compress it again.
+ * <p>
+ * The form is written to a staging file and only put in place by {@link #finish()};
+ * closing an unfinished compressor drops it. Not thread safe, a download uses it from one disk task at a time.
+ */
+public class Compressor implements Closeable {
+	private final Storage storage;
+	private final Path file;
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final Path staging;
+	private final FileChannel channel;
+	private byte[] output = new byte[64 * 1024];
+	private boolean finished;
+
+	public Compressor(Storage storage, Path file, FileMetadata metadata) throws IOException {
+		this.storage = storage;
+		this.file = file;
+		Path form = storage.compressedForm(file);
+		Files.createDirectories(form.getParent());
+		// concurrent first downloads of a file each stage their own copy, the last one wins
+		this.staging = Files.createTempFile(form.getParent(), "." + form.getFileName(), ".staging");
+		this.channel = FileChannel.open(staging, StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(Storage.COMPRESSED_HEADER_SIZE);
+		header.putLong(metadata.getSize()).putLong(metadata.getModified()).flip();
+		write(header);
+	}
+
+	/**
+	 * @return compressed bytes of the input so far, possibly none; valid until the next call
+	 */
+	public ByteBuffer compress(byte[] input, int offset, int length) throws IOException {
+		deflater.setInput(input, offset, length);
+		return drain(false);
+	}
+
+	/**
+	 * Puts the stored form in place.
+	 * @return the rest of the compressed bytes; valid until the next call
+	 */
+	public ByteBuffer finish() throws IOException {
+		deflater.finish();
+		ByteBuffer rest = drain(true);
+		channel.close();
+		deflater.end();
+		storage.storeCompressed(staging, file);
+		finished = true;
+		return rest;
+	}
+
+	private ByteBuffer drain(boolean last) throws IOException {
+		int length = 0;
+		while (last ? !deflater.finished() : !deflater.needsInput()) {
+			if (length == output.length) {
+				output = Arrays.copyOf(output, output.length * 2);
+			}
+			length += deflater.deflate(output, length, output.length - length);
+		}
+		ByteBuffer compressed = ByteBuffer.wrap(output, 0, length);
+		write(compressed.duplicate());
+		return compressed;
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Drops the staging file of an unfinished form.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		deflater.end();
+		channel.close();
+		Files.deleteIfExists(staging);
+	}
+}
@@ -0,0 +1,90 @@
+package ru.ramprox.storage;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) of data as it streams through, the checksum of files and transfers.
+ * It is java.util.zip.CRC32C where the runtime has it (Java 9+, computed with CPU instructions),
+ * a table lookup per byte otherwise. The value is the unsigned 32 bits, so -1 never is one.
+ */
+public final class Crc32c implements Checksum {
+	private static final int POLYNOMIAL = 0x82F63B78;
+	private static final int COPY_SIZE = 8 * 1024;
+	private static final int[] TABLE = new int[256];
+	private static final Class<?> JDK_CRC32C;
+
+	static {
+		for (int i = 0; i < TABLE.length; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 1) != 0 ? crc >>> 1 ^ POLYNOMIAL : crc >>> 1;
+			}
+			TABLE[i] = crc;
+		}
+		Class<?> jdk;
+		try {
+			jdk = Class.forName("java.util.zip.CRC32C");
+		} catch (ClassNotFoundException e) {
+			jdk = null;
+		}
+		JDK_CRC32C = jdk;
+	}
+
+	private int crc = 0xFFFFFFFF;
+
+	private Crc32c() {
+	}
+
+	public static Checksum create() {
+		if (JDK_CRC32C != null) {
+			try {
+				return (Checksum) JDK_CRC32C.getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException e) {
+				// not accessible after all, the table is just slower
+			}
+		}
+		return new Crc32c();
+	}
+
+	/**
+	 * Adds the remaining bytes of the buffer, direct ones included; its position stays where it is.
+	 */
+	public static void update(Checksum checksum, ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			return;
+		}
+		ByteBuffer source = buffer.duplicate();
+		byte[] bytes = new byte[Math.min(COPY_SIZE, source.remaining())];
+		while (source.hasRemaining()) {
+			int count = Math.min(bytes.length, source.remaining());
+			source.get(bytes, 0, count);
+			checksum.update(bytes, 0, count);
+		}
+	}
+
+	@Override
+	public void update(int b) {
+		crc = crc >>> 8 ^ TABLE[(crc ^ b) & 0xFF];
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		int value = crc;
+		for (int i = off; i < off + len; i++) {
+			value = value >>> 8 ^ TABLE[(value ^ b[i]) & 0xFF];
+		}
+		crc = value;
+	}
+
+	@Override
+	public long getValue() {
+		return ~crc & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public void reset() {
+		crc = 0xFFFFFFFF;
+	}
+}
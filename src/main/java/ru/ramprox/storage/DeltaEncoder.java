@@ -0,0 +1,184 @@
+package ru.ramprox.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Client side of the delta transfer: finds blocks of the old version (known by its {@link Signature})
+ * in the new file and describes the new file as copies of those blocks and literal bytes.
+ * <p>
+ * Instructions, as read by {@link DeltaWriter}:
+ * <pre>
+ * byte 0, long old offset, int length  copy from the old version
+ * byte 1, int length, bytes            literal
+ * </pre>
+ */
+public class DeltaEncoder {
+	public static final byte COPY = 0;
+	public static final byte LITERAL = 1;
+	public static final int MAX_LITERAL = 256 * 1024;
+	private static final int MAX_COPY = 1024 * 1024 * 1024;
+
+	public interface Sink {
+		void copy(long offset, int length) throws IOException;
+
+		void literal(ByteBuffer data) throws IOException;
+	}
+
+	private final Signature signature;
+	/** open addressing weak checksum -> first block, blocks with equal checksums are chained in next */
+	private final int[] keys;
+	private final int[] heads;
+	private final int[] next;
+	private final int mask;
+
+	public DeltaEncoder(Signature signature) {
+		this.signature = signature;
+		int capacity = Integer.highestOneBit(Math.max(2, signature.count()) * 2 - 1) * 2;
+		keys = new int[capacity];
+		heads = new int[capacity];
+		Arrays.fill(heads, -1);
+		next = new int[signature.count()];
+		mask = capacity - 1;
+		for (int block = signature.count() - 1; block >= 0; block--) {
+			int slot = slot(signature.weak(block));
+			next[block] = heads[slot];
+			keys[slot] = signature.weak(block);
+			heads[slot] = block;
+		}
+	}
+
+	private int slot(int weak) {
+		int slot = (weak * 0x9E3779B9) & mask;
+		while (heads[slot] >= 0 && keys[slot] != weak) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	public void encode(FileChannel file, Sink sink) throws IOException {
+		int blockSize = signature.blockSize();
+		long size = file.size();
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_LITERAL + 4 * blockSize);
+		long bufferStart = 0;
+		long literalStart = 0;
+		long position = 0;
+		long copyOffset = -1;
+		long copyLength = 0;
+		RollingChecksum checksum = new RollingChecksum(blockSize);
+		boolean rolling = false;
+		MessageDigest digest = Signature.strongDigest();
+		buffer.limit(0);
+
+		while (position + blockSize <= size) {
+			// keep [literalStart, position + blockSize] in the buffer
+			if (position + blockSize >= bufferStart + buffer.limit()) {
+				int keep = (int) (literalStart - bufferStart);
+				buffer.position(keep);
+				buffer.compact();
+				bufferStart += keep;
+				while (buffer.hasRemaining() && file.read(buffer, bufferStart + buffer.position()) > 0) {
+				}
+				buffer.flip();
+			}
+			int index = (int) (position - bufferStart);
+			if (!rolling) {
+				checksum.reset();
+				for (int i = 0; i < blockSize; i++) {
+					checksum.update(buffer.get(index + i));
+				}
+				rolling = true;
+			}
+			int block = find(checksum.value(), buffer, index, digest);
+			if (block >= 0) {
+				if (position > literalStart) {
+					flushCopy(sink, copyOffset, copyLength);
+					copyLength = 0;
+					sink.literal(slice(buffer, (int) (literalStart - bufferStart), (int) (position - literalStart)));
+				}
+				long offset = (long) block * blockSize;
+				if (copyLength > 0 && copyOffset + copyLength == offset && copyLength < MAX_COPY) {
+					copyLength += blockSize;
+				} else {
+					flushCopy(sink, copyOffset, copyLength);
+					copyOffset = offset;
+					copyLength = blockSize;
+				}
+				position += blockSize;
+				literalStart = position;
+				rolling = false;
+				continue;
+			}
+			if (position + blockSize < size) {
+				if (position + blockSize >= bufferStart + buffer.limit()) {
+					// next byte is not read yet, fill the buffer first
+					rolling = false;
+				} else {
+					checksum.roll(buffer.get(index), buffer.get(index + blockSize));
+				}
+			}
+			position++;
+			if (position - literalStart >= MAX_LITERAL) {
+				flushCopy(sink, copyOffset, copyLength);
+				copyLength = 0;
+				sink.literal(slice(buffer, (int) (literalStart - bufferStart), (int) (position - literalStart)));
+				literalStart = position;
+			}
+		}
+		flushCopy(sink, copyOffset, copyLength);
+		// tail shorter than a block
+		ByteBuffer tail = ByteBuffer.allocate(MAX_LITERAL);
+		while (literalStart < size) {
+			tail.clear();
+			tail.limit((int) Math.min(tail.capacity(), size - literalStart));
+			int read = file.read(tail, literalStart);
+			if (read < 0) {
+				throw new IOException("file has changed");
+			}
+			tail.flip();
+			sink.literal(tail);
+			literalStart += read;
+		}
+	}
+
+	private static void flushCopy(Sink sink, long offset, long length) throws IOException {
+		if (length > 0) {
+			sink.copy(offset, (int) length);
+		}
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int from, int length) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(from + length).position(from);
+		return slice;
+	}
+
+	private int find(int weak, ByteBuffer buffer, int index, MessageDigest digest) {
+		int block = heads[slot(weak)];
+		if (block < 0) {
+			return -1;
+		}
+		digest.update(slice(buffer, index, signature.blockSize()));
+		byte[] strong = digest.digest();
+		for (; block >= 0; block = next[block]) {
+			if (matches(strong, block)) {
+				return block;
+			}
+		}
+		return -1;
+	}
+
+	private boolean matches(byte[] strong, int block) {
+		byte[] all = signature.strong();
+		int offset = block * Signature.STRONG_SIZE;
+		for (int i = 0; i < Signature.STRONG_SIZE; i++) {
+			if (all[offset + i] != strong[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
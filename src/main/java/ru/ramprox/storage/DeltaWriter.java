@@ -0,0 +1,164 @@
+package ru.ramprox.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Checksum;
+
+/**
+ * Server side of the delta transfer: rebuilds the new version in a staging file
+ * from the instructions of {@link DeltaEncoder}, copying blocks of the old version.
+ * All files of the old version are opened up front, so it is the version the writer was made for
+ * even if the file is replaced meanwhile. The {@link Crc32c} of the new version is computed as it is written.
+ */
+public class DeltaWriter implements Closeable {
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private final List<Segment> source;
+	private final long[] starts;
+	private final long sourceSize;
+	private final FileChannel out;
+	private final Map<Path, FileChannel> open = new HashMap<>();
+	private final Checksum checksum = Crc32c.create();
+	private final ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+	private long position;
+
+	/**
+	 * @param source old version, read only
+	 */
+	public DeltaWriter(List<Segment> source, Path target) throws IOException {
+		this.source = source;
+		this.starts = new long[source.size()];
+		long size = 0;
+		for (int i = 0; i < source.size(); i++) {
+			starts[i] = size;
+			size += source.get(i).getLength();
+		}
+		this.sourceSize = size;
+		try {
+			for (Segment segment : source) {
+				if (!open.containsKey(segment.getPath())) {
+					open.put(segment.getPath(), FileChannel.open(segment.getPath(), StandardOpenOption.READ));
+				}
+			}
+			this.out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		} catch (IOException e) {
+			closeSource();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return bytes of the new version written so far
+	 */
+	public long position() {
+		return position;
+	}
+
+	/**
+	 * @return {@link Crc32c} of the new version written so far
+	 */
+	public long checksum() {
+		return checksum.getValue();
+	}
+
+	/**
+	 * Applies complete instructions.
+	 *
+	 * @throws IOException also for a truncated or malformed instruction
+	 */
+	public void apply(ByteBuffer instructions) throws IOException {
+		while (instructions.hasRemaining()) {
+			byte type = instructions.get();
+			if (type == DeltaEncoder.COPY) {
+				require(instructions, 12, type);
+				copy(instructions.getLong(), instructions.getInt());
+			} else if (type == DeltaEncoder.LITERAL) {
+				require(instructions, 4, type);
+				int length = instructions.getInt();
+				if (length < 0 || length > instructions.remaining()) {
+					throw new IOException("literal of " + length + " bytes, " + instructions.remaining() + " left");
+				}
+				ByteBuffer literal = instructions.duplicate();
+				literal.limit(literal.position() + length);
+				instructions.position(instructions.position() + length);
+				Crc32c.update(checksum, literal);
+				while (literal.hasRemaining()) {
+					position += out.write(literal, position);
+				}
+			} else {
+				throw new IOException("unknown delta instruction " + type);
+			}
+		}
+	}
+
+	private static void require(ByteBuffer instructions, int length, byte type) throws IOException {
+		if (instructions.remaining() < length) {
+			throw new IOException("truncated delta instruction " + type);
+		}
+	}
+
+	private void copy(long offset, int length) throws IOException {
+		if (offset < 0 || length < 0 || offset > sourceSize - length) {
+			throw new IOException("copy beyond the old version: " + offset + "+" + length);
+		}
+		long end = offset + length;
+		int index = segmentOf(offset);
+		while (offset < end) {
+			Segment segment = source.get(index);
+			long from = segment.getPosition() + offset - starts[index];
+			long count = Math.min(end, starts[index] + segment.getLength()) - offset;
+			FileChannel in = open.get(segment.getPath());
+			long copied = 0;
+			while (copied < count) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), count - copied));
+				if (in.read(buffer, from + copied) <= 0) {
+					throw new IOException(segment.getPath() + " is shorter than expected");
+				}
+				buffer.flip();
+				checksum.update(buffer.array(), 0, buffer.limit());
+				copied += buffer.limit();
+				while (buffer.hasRemaining()) {
+					position += out.write(buffer, position);
+				}
+			}
+			offset += count;
+			index++;
+		}
+	}
+
+	private int segmentOf(long offset) {
+		int low = 0;
+		int high = starts.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (starts[mid] <= offset) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private void closeSource() throws IOException {
+		for (FileChannel channel : open.values()) {
+			channel.close();
+		}
+		open.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closeSource();
+		out.close();
+	}
+}
@@ -0,0 +1,229 @@
+package ru.ramprox.storage;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Threads for blocking file operations, so that a slow disk never stalls network threads.
+ * <p>
+ * Tasks with the same key, usually the file they work on, run one after another in the order they were submitted;
+ * tasks with different keys run in parallel. A task without a key is not ordered at all.
+ * The result of a task completes a promise of the given event executor, so its listeners run
+ * on the event loop of the channel that asked for it.
+ * <p>
+ * Bulk tasks, reads and writes of transfers, wait in a queue of their own: while both queues have tasks,
+ * {@value #INTERACTIVE_WEIGHT} interactive tasks (lookups, opening files) run for every bulk one,
+ * so a stat doesn't wait behind the megabytes of a backup.
+ * <p>
+ * The queue is bounded: beyond {@link #limit()} waiting tasks new ones fail with {@link RejectedExecutionException}.
+ * Long before that, {@link #isOverloaded()} tells network code to stop reading until the disk catches up.
+ */
+public class DiskExecutor implements Executor {
+	private static final int INTERACTIVE_WEIGHT = 4;
+
+	private final ExecutorService threads;
+	private final int limit;
+	private final int highWaterMark;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+	private final Map<Object, Lane> lanes = new ConcurrentHashMap<>();
+	private final Queue<Runnable> interactive = new ConcurrentLinkedQueue<>();
+	private final Queue<Runnable> bulk = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger turn = new AtomicInteger();
+	/** runs one queued task, the pool gets one of these for every task */
+	private final Runnable next = this::runNext;
+
+	public interface Task<T> {
+		T run() throws Exception;
+	}
+
+	/**
+	 * Tasks of one key, the first of them is running or scheduled.
+	 */
+	private class Lane implements Runnable {
+		final Object key;
+		final ArrayDeque<Job> tasks = new ArrayDeque<>();
+
+		Lane(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			try {
+				head().run();
+			} finally {
+				Job[] next = new Job[1];
+				lanes.computeIfPresent(key, (k, lane) -> {
+					lane.tasks.poll();
+					next[0] = lane.tasks.peek();
+					return next[0] != null ? lane : null;
+				});
+				if (next[0] != null) {
+					schedule(this, next[0].bulk);
+				}
+			}
+		}
+
+		private Job head() {
+			// read under the lock of the map entry, the deque is not thread safe
+			Job[] head = new Job[1];
+			lanes.computeIfPresent(key, (k, lane) -> {
+				head[0] = lane.tasks.peek();
+				return lane;
+			});
+			return head[0];
+		}
+	}
+
+	private static class Job implements Runnable {
+		final Runnable task;
+		final boolean bulk;
+
+		Job(Runnable task, boolean bulk) {
+			this.task = task;
+			this.bulk = bulk;
+		}
+
+		@Override
+		public void run() {
+			task.run();
+		}
+	}
+
+	/**
+	 * @param threads number of disk threads
+	 * @param limit most tasks waiting or running at once
+	 */
+	public DiskExecutor(int threads, int limit) {
+		this.threads = Executors.newFixedThreadPool(threads, new DefaultThreadFactory("disk-io", true));
+		this.limit = limit;
+		this.highWaterMark = limit / 4;
+	}
+
+	/**
+	 * Runs the interactive task after the previous ones with the same key.
+	 * @param key tasks with equal keys are ordered, null - no ordering
+	 * @param executor executor of the promise, the event loop of the channel
+	 * @return the result of the task, failed with its exception or with {@link RejectedExecutionException}
+	 * when too many tasks wait
+	 */
+	public <T> Future<T> submit(Object key, EventExecutor executor, Task<T> task) {
+		return submit(key, executor, false, task);
+	}
+
+	/**
+	 * Runs a bulk task, a read or write of a transfer, see {@link #submit(Object, EventExecutor, Task)}.
+	 */
+	public <T> Future<T> submitBulk(Object key, EventExecutor executor, Task<T> task) {
+		return submit(key, executor, true, task);
+	}
+
+	private <T> Future<T> submit(Object key, EventExecutor executor, boolean isBulk, Task<T> task) {
+		Promise<T> promise = executor.newPromise();
+		if (queued.incrementAndGet() > limit) {
+			queued.decrementAndGet();
+			rejected.incrementAndGet();
+			return promise.setFailure(new RejectedExecutionException("disk queue is full, " + limit + " tasks wait"));
+		}
+		Runnable run = () -> {
+			try {
+				promise.trySuccess(task.run());
+			} catch (Throwable e) {
+				promise.tryFailure(e);
+			} finally {
+				queued.decrementAndGet();
+			}
+		};
+		if (key == null) {
+			schedule(run, isBulk);
+			return promise;
+		}
+		Lane[] started = new Lane[1];
+		lanes.compute(key, (k, lane) -> {
+			if (lane == null) {
+				lane = new Lane(k);
+				started[0] = lane;
+			}
+			lane.tasks.add(new Job(run, isBulk));
+			return lane;
+		});
+		if (started[0] != null) {
+			schedule(started[0], isBulk);
+		}
+		return promise;
+	}
+
+	private void schedule(Runnable task, boolean isBulk) {
+		(isBulk ? bulk : interactive).add(task);
+		threads.execute(next);
+	}
+
+	/**
+	 * There are at least as many queued tasks as these runs waiting in the pool.
+	 */
+	private void runNext() {
+		Queue<Runnable> first = turn.getAndIncrement() % (INTERACTIVE_WEIGHT + 1) == INTERACTIVE_WEIGHT ? bulk : interactive;
+		Runnable task = first.poll();
+		if (task == null) {
+			task = (first == bulk ? interactive : bulk).poll();
+		}
+		task.run();
+	}
+
+	/**
+	 * Runs the bulk task without ordering and without a result, e.g. to fill a cache.
+	 * It is dropped if too many tasks wait.
+	 */
+	@Override
+	public void execute(Runnable task) {
+		if (queued.incrementAndGet() > limit) {
+			queued.decrementAndGet();
+			rejected.incrementAndGet();
+			return;
+		}
+		schedule(() -> {
+			try {
+				task.run();
+			} finally {
+				queued.decrementAndGet();
+			}
+		}, true);
+	}
+
+	/**
+	 * @return tasks waiting or running
+	 */
+	public int queued() {
+		return queued.get();
+	}
+
+	public int limit() {
+		return limit;
+	}
+
+	public long rejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return whether so many tasks wait that no more work should be accepted from the network
+	 */
+	public boolean isOverloaded() {
+		return queued.get() >= highWaterMark;
+	}
+}
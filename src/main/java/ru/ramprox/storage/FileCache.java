@@ -0,0 +1,124 @@
+package ru.ramprox.storage;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Contents of small, often downloaded files in off-heap buffers, within a budget of bytes.
+ * <p>
+ * Least recently used files are evicted first. A file is admitted on its second request,
+ * so files downloaded once don't push out the popular ones. An entry is valid for the size and
+ * modification time it was loaded with; uploads invalidate it explicitly as well.
+ * <p>
+ * Buffers are reference counted: a reader gets its own reference, so eviction never frees
+ * content that is still being sent.
+ */
+public class FileCache {
+	/** how many names of requested but not cached files are remembered for admission */
+	private static final int SEEN_CAPACITY = 16 * 1024;
+
+	private final long budget;
+	private final int maxFileSize;
+	private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<Path, Boolean> seen = new LinkedHashMap<Path, Boolean>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, Boolean> eldest) {
+			return size() > SEEN_CAPACITY;
+		}
+	};
+	private long used;
+	private long hits;
+	private long misses;
+
+	private static class Entry {
+		final ByteBuf content;
+		final long size;
+		final long modified;
+
+		Entry(ByteBuf content, long size, long modified) {
+			this.content = content;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+
+	public FileCache(long budget, int maxFileSize) {
+		this.budget = budget;
+		this.maxFileSize = maxFileSize;
+	}
+
+	/**
+	 * @return contents of the file, to be released by the caller; null if it isn't cached
+	 */
+	public synchronized ByteBuf get(Path file, FileMetadata metadata) {
+		Entry entry = entries.get(file);
+		if (entry != null && entry.size == metadata.getSize() && entry.modified == metadata.getModified()) {
+			hits++;
+			return entry.content.retainedDuplicate();
+		}
+		if (entry != null) {
+			remove(file);
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Called after a miss.
+	 * @return whether the file should be loaded: it fits and has been requested before
+	 */
+	public synchronized boolean admit(Path file, FileMetadata metadata) {
+		if (metadata.isDirectory() || metadata.getSize() > maxFileSize || metadata.getSize() > budget) {
+			return false;
+		}
+		return seen.put(file, Boolean.TRUE) != null;
+	}
+
+	/**
+	 * Takes over the reference to the content, evicting other files if the budget is exceeded.
+	 */
+	public synchronized void put(Path file, FileMetadata metadata, ByteBuf content) {
+		remove(file);
+		seen.remove(file);
+		entries.put(file, new Entry(content, metadata.getSize(), metadata.getModified()));
+		used += content.capacity();
+		Iterator<Entry> eldest = entries.values().iterator();
+		while (used > budget && eldest.hasNext()) {
+			Entry entry = eldest.next();
+			eldest.remove();
+			used -= entry.content.capacity();
+			entry.content.release();
+		}
+	}
+
+	public synchronized void invalidate(Path file) {
+		remove(file);
+	}
+
+	private void remove(Path file) {
+		Entry entry = entries.remove(file);
+		if (entry != null) {
+			used -= entry.content.capacity();
+			entry.content.release();
+		}
+	}
+
+	/**
+	 * @return bytes held
+	 */
+	public synchronized long used() {
+		return used;
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+}
@@ -0,0 +1,42 @@
+package ru.ramprox.storage;
+
+/**
+ * What the {@link MetadataIndex} knows about a file: size is -1 for directories,
+ * checksum is -1 while it is unknown.
+ */
+public class FileMetadata {
+	private final String name;
+	private final long size;
+	private final long modified;
+	private final long checksum;
+
+	public FileMetadata(String name, long size, long modified, long checksum) {
+		this.name = name;
+		this.size = size;
+		this.modified = modified;
+		this.checksum = checksum;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return last modification time, milliseconds since the epoch
+	 */
+	public long getModified() {
+		return modified;
+	}
+
+	public long getChecksum() {
+		return checksum;
+	}
+
+	public boolean isDirectory() {
+		return size < 0;
+	}
+}
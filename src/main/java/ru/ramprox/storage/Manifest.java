@@ -0,0 +1,110 @@
+package ru.ramprox.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Chunk list of a deduplicated file: entries of hash and int length, in file order.
+ */
+public class Manifest {
+	public static final int ENTRY_SIZE = ChunkStore.HASH_SIZE + 4;
+
+	private final byte[] hashes;
+	private final int[] lengths;
+	private final long[] offsets;
+	private final long size;
+
+	/**
+	 * @param entries ENTRY_SIZE records
+	 */
+	public Manifest(ByteBuffer entries) throws IOException {
+		if (entries.remaining() % ENTRY_SIZE != 0) {
+			throw new IOException("broken manifest");
+		}
+		int count = entries.remaining() / ENTRY_SIZE;
+		hashes = new byte[count * ChunkStore.HASH_SIZE];
+		lengths = new int[count];
+		offsets = new long[count];
+		long size = 0;
+		for (int i = 0; i < count; i++) {
+			entries.get(hashes, i * ChunkStore.HASH_SIZE, ChunkStore.HASH_SIZE);
+			lengths[i] = entries.getInt();
+			if (lengths[i] <= 0 || lengths[i] > Chunker.MAX_SIZE) {
+				throw new IOException("broken manifest: chunk " + i + " of " + lengths[i] + " bytes");
+			}
+			offsets[i] = size;
+			size += lengths[i];
+		}
+		this.size = size;
+	}
+
+	public static Manifest read(Path path) throws IOException {
+		return new Manifest(ByteBuffer.wrap(Files.readAllBytes(path)));
+	}
+
+	/**
+	 * Writes the manifest durably, it replaces an older one atomically.
+	 */
+	public void write(Path path) throws IOException {
+		Files.createDirectories(path.getParent());
+		Path temp = Files.createTempFile(path.getParent(), null, ".tmp");
+		ByteBuffer entries = ByteBuffer.allocate(count() * ENTRY_SIZE);
+		for (int i = 0; i < count(); i++) {
+			entries.put(hashes, i * ChunkStore.HASH_SIZE, ChunkStore.HASH_SIZE).putInt(lengths[i]);
+		}
+		entries.flip();
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+			while (entries.hasRemaining()) {
+				out.write(entries);
+			}
+			out.force(true);
+		}
+		Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		CommitJournal.syncDirectory(path.getParent());
+	}
+
+	public int count() {
+		return lengths.length;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return hashes array, the hash of chunk i starts at i * HASH_SIZE
+	 */
+	public byte[] hashes() {
+		return hashes;
+	}
+
+	public int length(int i) {
+		return lengths[i];
+	}
+
+	public long offset(int i) {
+		return offsets[i];
+	}
+
+	/**
+	 * @return index of the chunk holding the byte at position
+	 */
+	public int indexOf(long position) {
+		int low = 0;
+		int high = count() - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (offsets[mid] <= position) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,257 @@
+package ru.ramprox.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Metadata of the files and directories in the storage root, sorted by name,
+ * so that listings and lookups don't touch the disk.
+ * <p>
+ * It is loaded once and then kept current by a {@link WatchService} on the root and the manifests directory.
+ * Events that pile up while the watcher is busy are coalesced, a burst of writes to one file costs one refresh.
+ * The storage also refreshes a file right after changing it, so a client sees its own upload
+ * without waiting for the watcher. A changed file is dropped from the {@link FileCache}.
+ * Checksums are kept with the metadata and saved by the storage, so a file is never hashed twice.
+ * Files in subdirectories are not indexed.
+ * Every change of an entry is published to the {@link ChangeFeed}, after the entry has changed.
+ */
+public class MetadataIndex implements Closeable {
+	private final Storage storage;
+	private final Path root;
+	private final Path manifests;
+	private final ConcurrentSkipListMap<String, FileMetadata> entries = new ConcurrentSkipListMap<>();
+	private final WatchService watcher;
+
+	MetadataIndex(Storage storage, Path root, Path manifests) throws IOException {
+		this.storage = storage;
+		this.root = root;
+		this.manifests = manifests;
+		this.watcher = root.getFileSystem().newWatchService();
+		// registered before the scan, so that nothing changed during it is missed
+		register(root);
+		register(manifests);
+		reload();
+		Thread thread = new Thread(this::watch, "metadata-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void register(Path dir) throws IOException {
+		dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+
+	/**
+	 * @return metadata of the entry of the root, null if there is no such entry
+	 */
+	public FileMetadata get(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * @return whether the file would be in the index, so that looking it up doesn't touch the disk
+	 */
+	public boolean covers(Path file) {
+		return root.equals(file.getParent());
+	}
+
+	/**
+	 * @return metadata of the file, null if there is no such file; only files not {@link #covers covered}
+	 * are read from disk
+	 */
+	public FileMetadata get(Path file) throws IOException {
+		if (covers(file)) {
+			return entries.get(file.getFileName().toString());
+		}
+		return read(file, root.relativize(file).toString(), null);
+	}
+
+	/**
+	 * One page of a listing.
+	 * @param prefix only names starting with it
+	 * @param after only names after it, null - from the first one; the last name of the previous page
+	 * @param limit page size, 0 - no limit
+	 */
+	public List<FileMetadata> list(String prefix, String after, int limit) {
+		NavigableMap<String, FileMetadata> from = after != null && after.compareTo(prefix) >= 0
+				? entries.tailMap(after, false)
+				: entries.tailMap(prefix, true);
+		List<FileMetadata> page = new ArrayList<>();
+		for (FileMetadata metadata : from.values()) {
+			if (!metadata.getName().startsWith(prefix) || page.size() == limit && limit > 0) {
+				break;
+			}
+			page.add(metadata);
+		}
+		return page;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Re-reads the file from disk.
+	 */
+	public void refresh(Path file) throws IOException {
+		if (root.equals(file.getParent())) {
+			refresh(file.getFileName().toString());
+		}
+	}
+
+	/**
+	 * Synchronized, so that a slower refresh never puts back what a newer one has replaced.
+	 */
+	private synchronized void refresh(String name) throws IOException {
+		if (name.startsWith(".")) {
+			return;
+		}
+		Path file = root.resolve(name);
+		FileMetadata previous = entries.get(name);
+		FileMetadata metadata = read(file, name, previous);
+		if (previous != null && (metadata == null || metadata.getSize() != previous.getSize()
+				|| metadata.getModified() != previous.getModified())) {
+			storage.cache().invalidate(file);
+			storage.dropCompressed(file);
+			storage.dropChecksum(file);
+		}
+		if (metadata == null) {
+			if (entries.remove(name) != null) {
+				storage.feed().publish(ChangeFeed.DELETED, previous);
+			}
+		} else {
+			entries.put(name, metadata);
+			if (previous == null) {
+				storage.feed().publish(ChangeFeed.CREATED, metadata);
+			} else if (metadata.getSize() != previous.getSize() || metadata.getModified() != previous.getModified()) {
+				storage.feed().publish(ChangeFeed.MODIFIED, metadata);
+			}
+		}
+	}
+
+	private FileMetadata read(Path file, String name, FileMetadata previous) throws IOException {
+		BasicFileAttributes attributes;
+		long size;
+		try {
+			attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			size = attributes.isDirectory() ? -1 : attributes.size();
+		} catch (NoSuchFileException e) {
+			Path manifest = storage.manifest(file);
+			try {
+				attributes = Files.readAttributes(manifest, BasicFileAttributes.class);
+				size = attributes.isDirectory() ? -1 : Manifest.read(manifest).size();
+			} catch (NoSuchFileException gone) {
+				return null;
+			}
+		}
+		long modified = attributes.lastModifiedTime().toMillis();
+		long checksum = previous != null && previous.getSize() == size && previous.getModified() == modified
+				? previous.getChecksum() : -1;
+		if (checksum == -1 && size >= 0) {
+			checksum = storage.checksum(file, size, modified);
+		}
+		return new FileMetadata(name, size, modified, checksum);
+	}
+
+	/**
+	 * Sets the checksum of the file, unless it has changed since it was hashed.
+	 */
+	synchronized void checksum(Path file, FileMetadata metadata, long checksum) {
+		if (root.equals(file.getParent())) {
+			entries.computeIfPresent(file.getFileName().toString(), (name, current) ->
+					current.getSize() == metadata.getSize() && current.getModified() == metadata.getModified()
+							? new FileMetadata(name, current.getSize(), current.getModified(), checksum) : current);
+		}
+	}
+
+	/**
+	 * Scans both directories again, when the watcher has lost events.
+	 */
+	private synchronized void reload() throws IOException {
+		Set<String> names = new HashSet<>();
+		collect(root, names);
+		collect(manifests, names);
+		for (FileMetadata metadata : entries.values()) {
+			if (!names.contains(metadata.getName()) && entries.remove(metadata.getName()) != null) {
+				storage.feed().publish(ChangeFeed.DELETED, metadata);
+			}
+		}
+		for (String name : names) {
+			refresh(name);
+		}
+	}
+
+	private void reloadQuietly() {
+		try {
+			reload();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void collect(Path dir, Set<String> names) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				if (!name.startsWith(".")) {
+					names.add(name);
+				}
+			}
+		}
+	}
+
+	private void watch() {
+		Set<String> changed = new HashSet<>();
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				boolean overflow = false;
+				do {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							overflow = true;
+						} else {
+							changed.add(event.context().toString());
+						}
+					}
+					key.reset();
+				} while ((key = watcher.poll()) != null);
+				if (overflow) {
+					reloadQuietly();
+				} else {
+					for (String name : changed) {
+						try {
+							refresh(name);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+				changed.clear();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+	}
+}
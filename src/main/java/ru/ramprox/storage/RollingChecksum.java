@@ -0,0 +1,39 @@
+package ru.ramprox.storage;
+
+/**
+ * rsync weak checksum of a fixed size window, which can be moved one byte in O(1).
+ */
+public class RollingChecksum {
+	private final int window;
+	private int a;
+	private int b;
+
+	public RollingChecksum(int window) {
+		this.window = window;
+	}
+
+	public void reset() {
+		a = 0;
+		b = 0;
+	}
+
+	/**
+	 * Adds a byte while the window is filled for the first time.
+	 */
+	public void update(byte in) {
+		a += in & 0xFF;
+		b += a;
+	}
+
+	/**
+	 * Moves the full window one byte forward.
+	 */
+	public void roll(byte out, byte in) {
+		a += (in & 0xFF) - (out & 0xFF);
+		b += a - window * (out & 0xFF);
+	}
+
+	public int value() {
+		return (b << 16) | (a & 0xFFFF);
+	}
+}
@@ -0,0 +1,30 @@
+package ru.ramprox.storage;
+
+import java.nio.file.Path;
+
+/**
+ * Byte range of a file on disk.
+ */
+public class Segment {
+	private final Path path;
+	private final long position;
+	private final long length;
+
+	public Segment(Path path, long position, long length) {
+		this.path = path;
+		this.position = position;
+		this.length = length;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	public long getLength() {
+		return length;
+	}
+}
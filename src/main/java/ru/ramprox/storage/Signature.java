@@ -0,0 +1,126 @@
+package ru.ramprox.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Block signatures of a file for delta transfer: weak rolling checksum and MD5 of every full block.
+ * The last, shorter block has no signature, it is always sent as a literal.
+ */
+public class Signature {
+	public static final int STRONG_SIZE = 16;
+	public static final int ENTRY_SIZE = 4 + STRONG_SIZE;
+	private static final int MIN_BLOCK_SIZE = 2 * 1024;
+	private static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+	private final long size;
+	private final int blockSize;
+	private final int[] weak;
+	private final byte[] strong;
+
+	public Signature(long size, int blockSize, int[] weak, byte[] strong) {
+		this.size = size;
+		this.blockSize = blockSize;
+		this.weak = weak;
+		this.strong = strong;
+	}
+
+	/**
+	 * About square root of the size, like rsync: fewer blocks for large files, finer matching for small ones.
+	 */
+	public static int blockSize(long size) {
+		long root = (long) Math.sqrt((double) size) & ~1023L;
+		return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, root));
+	}
+
+	public static int blockCount(long size, int blockSize) {
+		return (int) (size / blockSize);
+	}
+
+	public static MessageDigest strongDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Reads the file (as segments, so deduplicated files work too) once.
+	 */
+	public static Signature compute(List<Segment> segments) throws IOException {
+		long size = 0;
+		for (Segment segment : segments) {
+			size += segment.getLength();
+		}
+		int blockSize = blockSize(size);
+		int count = blockCount(size, blockSize);
+		int[] weak = new int[count];
+		byte[] strong = new byte[count * STRONG_SIZE];
+		RollingChecksum checksum = new RollingChecksum(blockSize);
+		MessageDigest digest = strongDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		int block = 0;
+		int filled = 0;
+		for (Segment segment : segments) {
+			try (FileChannel channel = FileChannel.open(segment.getPath(), StandardOpenOption.READ)) {
+				long position = segment.getPosition();
+				long end = position + segment.getLength();
+				while (position < end && block < count) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), Math.min(end - position, blockSize - filled)));
+					int read = channel.read(buffer, position);
+					if (read < 0) {
+						throw new IOException(segment.getPath() + " is shorter than expected");
+					}
+					position += read;
+					for (int i = 0; i < read; i++) {
+						checksum.update(buffer.get(i));
+					}
+					digest.update(buffer.array(), 0, read);
+					filled += read;
+					if (filled == blockSize) {
+						weak[block] = checksum.value();
+						System.arraycopy(digest.digest(), 0, strong, block * STRONG_SIZE, STRONG_SIZE);
+						checksum.reset();
+						filled = 0;
+						block++;
+					}
+				}
+			}
+		}
+		return new Signature(size, blockSize, weak, strong);
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public int blockSize() {
+		return blockSize;
+	}
+
+	public int count() {
+		return weak.length;
+	}
+
+	public int weak(int block) {
+		return weak[block];
+	}
+
+	public int[] weak() {
+		return weak;
+	}
+
+	/**
+	 * @return MD5 of all blocks, block i starts at i * STRONG_SIZE
+	 */
+	public byte[] strong() {
+		return strong;
+	}
+}
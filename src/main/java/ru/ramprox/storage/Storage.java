@@ -0,0 +1,464 @@
+package ru.ramprox.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Server files under one root directory.
+ * <p>
+ * A file is either stored as is or, when it was uploaded deduplicated, as a {@link Manifest}
+ * of chunks in the {@link ChunkStore}. Internal data lives in dot directories of the root,
+ * which clients can't address.
+ * <p>
+ * A file that was downloaded compressed also has a stored compressed form, a header with the size and
+ * modification time of the file it was made of and the deflate stream. A form of an older version is never used.
+ * Checksums ({@link Crc32c}) of files are saved the same way, once a transfer has computed one.
+ * <p>
+ * New versions of files are written to hidden staging files and put in place by the {@link CommitJournal},
+ * so readers only ever see whole files.
+ */
+public class Storage {
+	/** bytes of hot files kept in memory, see {@link FileCache} */
+	private static final long CACHE_SIZE = Long.getLong("storage.cache.size", 64 * 1024 * 1024);
+	/** larger files are never cached */
+	private static final int CACHE_MAX_FILE_SIZE = Integer.getInteger("storage.cache.maxFileSize", 1024 * 1024);
+	private static final int DISK_THREADS = Integer.getInteger("storage.disk.threads",
+			Runtime.getRuntime().availableProcessors());
+	/** file operations waiting at once, see {@link DiskExecutor} */
+	private static final int DISK_QUEUE_LIMIT = Integer.getInteger("storage.disk.queueLimit", 16 * 1024);
+	/** long size, long modified of the file a compressed form is made of */
+	static final int COMPRESSED_HEADER_SIZE = 16;
+	/** long size, long modified, long checksum */
+	private static final int CHECKSUM_FILE_SIZE = 24;
+
+	private final Path root;
+	private final Path manifests;
+	private final Path compressed;
+	private final Path checksums;
+	private final ChunkStore chunks;
+	private final CommitJournal journal;
+	private final DiskExecutor disk;
+	private final FileCache cache;
+	private final ChangeFeed feed;
+	private final MetadataIndex index;
+	/** staging files being written, and their writers */
+	private final ConcurrentMap<Path, Object> writers = new ConcurrentHashMap<>();
+
+	public Storage(Path root) throws IOException {
+		this.root = Files.createDirectories(root).toAbsolutePath().normalize();
+		this.manifests = Files.createDirectories(this.root.resolve(".manifests"));
+		this.compressed = Files.createDirectories(this.root.resolve(".compressed"));
+		this.checksums = Files.createDirectories(this.root.resolve(".checksums"));
+		this.chunks = new ChunkStore(this.root.resolve(".chunks"));
+		this.journal = new CommitJournal(this, this.root, this.root.resolve(".journal"));
+		this.disk = new DiskExecutor(DISK_THREADS, DISK_QUEUE_LIMIT);
+		this.cache = new FileCache(CACHE_SIZE, CACHE_MAX_FILE_SIZE);
+		this.feed = new ChangeFeed(this);
+		this.index = new MetadataIndex(this, this.root, manifests);
+	}
+
+	public Path root() {
+		return root;
+	}
+
+	public ChunkStore chunks() {
+		return chunks;
+	}
+
+	/**
+	 * Metadata of the files in the root, for listings and lookups without touching the disk.
+	 */
+	public MetadataIndex index() {
+		return index;
+	}
+
+	/**
+	 * Changes of the index, for clients that watch the listing.
+	 */
+	public ChangeFeed feed() {
+		return feed;
+	}
+
+	public CommitJournal journal() {
+		return journal;
+	}
+
+	public FileCache cache() {
+		return cache;
+	}
+
+	/**
+	 * Threads for blocking file operations, so they don't stall network threads.
+	 */
+	public DiskExecutor disk() {
+		return disk;
+	}
+
+	/**
+	 * @return path of the file inside the root, null if the name points outside of it or to internal data
+	 */
+	public Path resolve(String name) {
+		Path file = root.resolve(name).normalize();
+		if (!file.startsWith(root) || file.equals(root)) {
+			return null;
+		}
+		for (Path element : root.relativize(file)) {
+			if (element.toString().startsWith(".")) {
+				return null;
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * @return files of the root and of its subdirectories, deduplicated ones included, without internal data
+	 */
+	public List<Path> files() throws IOException {
+		List<Path> files = new ArrayList<>();
+		for (FileMetadata metadata : index.list("", null, 0)) {
+			if (!metadata.isDirectory()) {
+				files.add(root.resolve(metadata.getName()));
+			}
+		}
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+				return dir.equals(root) || !dir.getFileName().toString().startsWith(".")
+						? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				// the index has those of the root
+				if (!file.getParent().equals(root) && attributes.isRegularFile()
+						&& !file.getFileName().toString().startsWith(".")) {
+					files.add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return files;
+	}
+
+	public Path manifest(Path file) {
+		return manifests.resolve(root.relativize(file));
+	}
+
+	/**
+	 * @return whether the metadata still describes the file, or its manifest, on disk
+	 */
+	public boolean current(Path file, FileMetadata metadata) throws IOException {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			return attributes.size() == metadata.getSize()
+					&& attributes.lastModifiedTime().toMillis() == metadata.getModified();
+		} catch (NoSuchFileException e) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(manifest(file), BasicFileAttributes.class);
+				return attributes.lastModifiedTime().toMillis() == metadata.getModified();
+			} catch (NoSuchFileException gone) {
+				return false;
+			}
+		}
+	}
+
+	public Path compressedForm(Path file) {
+		return compressed.resolve(root.relativize(file) + ".deflate");
+	}
+
+	/**
+	 * @return the deflate stream of the stored compressed form of this version of the file,
+	 * null if there is none yet
+	 */
+	public Segment compressed(Path file, FileMetadata metadata) throws IOException {
+		Path form = compressedForm(file);
+		try (FileChannel channel = FileChannel.open(form, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(COMPRESSED_HEADER_SIZE);
+			while (header.hasRemaining() && channel.read(header) >= 0) {
+				// a read may return part of the header
+			}
+			header.flip();
+			if (header.remaining() < COMPRESSED_HEADER_SIZE
+					|| header.getLong() != metadata.getSize() || header.getLong() != metadata.getModified()) {
+				return null;
+			}
+			return new Segment(form, COMPRESSED_HEADER_SIZE, channel.size() - COMPRESSED_HEADER_SIZE);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Puts a completed compressed form written by a {@link Compressor} in place.
+	 */
+	void storeCompressed(Path staged, Path file) throws IOException {
+		Files.move(staged, compressedForm(file), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Drops the compressed form of an older version of the file.
+	 */
+	public void dropCompressed(Path file) throws IOException {
+		Files.deleteIfExists(compressedForm(file));
+	}
+
+	/**
+	 * @return saved checksum of this version of the file, -1 if it is unknown
+	 */
+	long checksum(Path file, long size, long modified) throws IOException {
+		ByteBuffer saved = ByteBuffer.allocate(CHECKSUM_FILE_SIZE);
+		try (FileChannel channel = FileChannel.open(checksums.resolve(root.relativize(file)), StandardOpenOption.READ)) {
+			while (saved.hasRemaining() && channel.read(saved) >= 0) {
+				// a read may return part of it
+			}
+		} catch (NoSuchFileException e) {
+			return -1;
+		}
+		saved.flip();
+		if (saved.remaining() < CHECKSUM_FILE_SIZE || saved.getLong() != size || saved.getLong() != modified) {
+			return -1;
+		}
+		return saved.getLong();
+	}
+
+	/**
+	 * Saves the checksum of the whole file, computed while it was transferred.
+	 * @param metadata version of the file that was hashed, it is never used for another one
+	 */
+	public void saveChecksum(Path file, FileMetadata metadata, long checksum) throws IOException {
+		if (metadata.getChecksum() == checksum) {
+			return;
+		}
+		Path target = checksums.resolve(root.relativize(file));
+		Files.createDirectories(target.getParent());
+		Path staged = Files.createTempFile(checksums, "." + target.getFileName(), ".staging");
+		try (FileChannel channel = FileChannel.open(staged, StandardOpenOption.WRITE)) {
+			ByteBuffer saved = ByteBuffer.allocate(CHECKSUM_FILE_SIZE);
+			saved.putLong(metadata.getSize()).putLong(metadata.getModified()).putLong(checksum).flip();
+			while (saved.hasRemaining()) {
+				channel.write(saved);
+			}
+		}
+		Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		index.checksum(file, metadata, checksum);
+	}
+
+	public void dropChecksum(Path file) throws IOException {
+		Files.deleteIfExists(checksums.resolve(root.relativize(file)));
+	}
+
+	/**
+	 * @return size of the file, -1 if there is no such file
+	 */
+	public long size(Path file) throws IOException {
+		if (Files.isRegularFile(file)) {
+			return Files.size(file);
+		}
+		Path manifest = manifest(file);
+		return Files.isRegularFile(manifest) ? Manifest.read(manifest).size() : -1;
+	}
+
+	/**
+	 * @return where length bytes (-1 - up to the end) from offset of the file are on disk,
+	 * null if there is no such file
+	 */
+	public List<Segment> segments(Path file, long offset, long length) throws IOException {
+		if (Files.isRegularFile(file)) {
+			long size = Files.size(file);
+			long start = Math.min(offset, size);
+			long count = length < 0 ? size - start : Math.min(length, size - start);
+			return Collections.singletonList(new Segment(file, start, count));
+		}
+		Path manifestPath = manifest(file);
+		if (!Files.isRegularFile(manifestPath)) {
+			return null;
+		}
+		Manifest manifest = Manifest.read(manifestPath);
+		long start = Math.min(offset, manifest.size());
+		long end = length < 0 ? manifest.size() : Math.min(manifest.size(), start + length);
+		List<Segment> segments = new ArrayList<>();
+		for (int i = manifest.indexOf(start); i < manifest.count() && manifest.offset(i) < end; i++) {
+			long from = Math.max(start, manifest.offset(i));
+			long to = Math.min(end, manifest.offset(i) + manifest.length(i));
+			Path chunk = chunks.path(manifest.hashes(), i * ChunkStore.HASH_SIZE);
+			segments.add(new Segment(chunk, from - manifest.offset(i), to - from));
+		}
+		return segments;
+	}
+
+	/**
+	 * Reads the whole file into the cache.
+	 * @return its contents, to be released by the caller; null if the file has changed meanwhile
+	 */
+	public ByteBuf load(Path file, FileMetadata metadata) throws IOException {
+		List<Segment> segments = segments(file, 0, -1);
+		if (segments == null) {
+			return null;
+		}
+		ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer((int) metadata.getSize());
+		try {
+			for (Segment segment : segments) {
+				try (FileChannel channel = FileChannel.open(segment.getPath(), StandardOpenOption.READ)) {
+					long position = segment.getPosition();
+					long end = position + segment.getLength();
+					while (position < end) {
+						int read = content.writeBytes(channel, position, (int) (end - position));
+						if (read < 0) {
+							throw new EOFException("file " + file + " was truncated");
+						}
+						position += read;
+					}
+				}
+			}
+			FileMetadata current = index.get(file);
+			if (current == null || current.getSize() != content.readableBytes()
+					|| current.getSize() != metadata.getSize() || current.getModified() != metadata.getModified()) {
+				content.release();
+				return null;
+			}
+			cache.put(file, metadata, content.retain());
+			return content;
+		} catch (IOException | RuntimeException e) {
+			content.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Replaces the file with a deduplicated one. All chunks of the manifest must be stored already,
+	 * with the lengths the manifest gives them.
+	 */
+	public void commitManifest(Path file, Manifest manifest) throws IOException {
+		for (int i = 0; i < manifest.count(); i++) {
+			long size = chunks.size(manifest.hashes(), i * ChunkStore.HASH_SIZE);
+			if (size < 0) {
+				throw new IOException("chunk " + i + " is missing");
+			}
+			if (manifest.length(i) != size) {
+				throw new IOException("chunk " + i + " has " + size + " bytes, not " + manifest.length(i));
+			}
+		}
+		manifest.write(manifest(file));
+		await(journal.forget(file));
+		Files.deleteIfExists(file);
+		cache.invalidate(file);
+		index.refresh(file);
+	}
+
+	/**
+	 * @return hidden file next to the file, for data that is not ready yet
+	 */
+	public Path staging(Path file, String kind) {
+		return file.resolveSibling("." + file.getFileName() + "." + kind);
+	}
+
+	/**
+	 * @return hidden file an upload of the file is written to; an interrupted upload stays there to be resumed
+	 */
+	public Path upload(Path file) {
+		return staging(file, "upload");
+	}
+
+	/**
+	 * Claims the staging file for one writer, so that two uploads of a file never write into the same staging file.
+	 * The writer {@link #release}s it once the staging file is committed or the upload is given up.
+	 * @throws IOException if another writer has it
+	 */
+	public void claim(Path staged, Object writer) throws IOException {
+		Object holder = writers.putIfAbsent(staged, writer);
+		if (holder != null && holder != writer) {
+			throw new IOException("another upload of the file is in progress");
+		}
+	}
+
+	/**
+	 * Gives up the claim of the writer, does nothing if it doesn't hold one.
+	 */
+	public void release(Path staged, Object writer) {
+		writers.remove(staged, writer);
+	}
+
+	/**
+	 * Claims (see {@link #claim}) and opens the staging file of an upload of the file. Offset 0 starts it anew,
+	 * a larger one continues an interrupted upload that has got that far. The file itself is never copied:
+	 * a committed upload leaves nothing to continue.
+	 */
+	public FileChannel openUpload(Path file, long offset, Object writer) throws IOException {
+		if (offset < 0) {
+			throw new IOException("wrong offset " + offset);
+		}
+		Path staged = upload(file);
+		claim(staged, writer);
+		try {
+			Files.createDirectories(staged.getParent());
+			if (offset > 0 && (!Files.isRegularFile(staged) || Files.size(staged) < offset)) {
+				throw new IOException("offset " + offset + " is beyond the end of the interrupted upload");
+			}
+			FileChannel channel = FileChannel.open(staged, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			channel.truncate(offset);
+			return channel;
+		} catch (IOException | RuntimeException e) {
+			release(staged, writer);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return size an upload of the file can be resumed from: of its interrupted upload, 0 if there is none
+	 */
+	public long uploaded(Path file) throws IOException {
+		Path staged = upload(file);
+		return Files.isRegularFile(staged) ? Files.size(staged) : 0;
+	}
+
+	/**
+	 * Atomically and durably puts a completed staging file in place of the file, see {@link CommitJournal}.
+	 */
+	public void replace(Path staged, Path file) throws IOException {
+		await(journal.commit(staged, file));
+	}
+
+	private static void await(CompletableFuture<Void> commit) throws IOException {
+		try {
+			commit.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while committing");
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Drops the deduplicated version of the file, called when it is stored as is.
+	 */
+	public void dropManifest(Path file) throws IOException {
+		Files.deleteIfExists(manifest(file));
+	}
+}
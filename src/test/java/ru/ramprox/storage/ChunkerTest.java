@@ -0,0 +1,96 @@
+package ru.ramprox.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Chunk boundaries depend on the content only, so an edit changes the chunks around it and no others.
+ */
+public class ChunkerTest {
+	private static final int SIZE = 16 * 1024 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Random random = new Random(1);
+
+	@Test
+	public void chunksCoverFileWithinSizeLimits() throws IOException {
+		byte[] data = bytes(SIZE);
+		List<Chunker.Chunk> chunks = split(data);
+		long offset = 0;
+		for (int i = 0; i < chunks.size(); i++) {
+			Chunker.Chunk chunk = chunks.get(i);
+			assertEquals(offset, chunk.getOffset());
+			assertTrue(chunk.getLength() <= Chunker.MAX_SIZE);
+			if (i < chunks.size() - 1) {
+				assertTrue(chunk.getLength() >= Chunker.MIN_SIZE);
+			}
+			offset += chunk.getLength();
+		}
+		assertEquals(data.length, offset);
+	}
+
+	@Test
+	public void insertionChangesOnlyNearbyChunks() throws IOException {
+		byte[] data = bytes(SIZE);
+		int at = SIZE / 2;
+		ByteArrayOutputStream edited = new ByteArrayOutputStream();
+		edited.write(data, 0, at);
+		edited.write(bytes(100), 0, 100);
+		edited.write(data, at, data.length - at);
+		List<Chunker.Chunk> before = split(data);
+		List<Chunker.Chunk> after = split(edited.toByteArray());
+
+		int unchanged = 0;
+		while (before.get(unchanged).getOffset() + before.get(unchanged).getLength() <= at) {
+			assertArrayEquals(before.get(unchanged).getHash(), after.get(unchanged).getHash());
+			unchanged++;
+		}
+		assertTrue(unchanged > 0);
+
+		Set<String> hashes = new HashSet<>();
+		for (Chunker.Chunk chunk : before) {
+			hashes.add(Arrays.toString(chunk.getHash()));
+		}
+		int changed = 0;
+		for (Chunker.Chunk chunk : after) {
+			if (!hashes.contains(Arrays.toString(chunk.getHash()))) {
+				changed++;
+			}
+		}
+		// the chunk with the insertion, and the next one if its boundary moved
+		assertTrue("changed chunks: " + changed, changed >= 1 && changed <= 2);
+	}
+
+	private List<Chunker.Chunk> split(byte[] data) throws IOException {
+		Path file = folder.newFile().toPath();
+		Files.write(file, data);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return Chunker.split(channel);
+		}
+	}
+
+	private byte[] bytes(int size) {
+		byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+}
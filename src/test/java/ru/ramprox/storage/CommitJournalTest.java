@@ -0,0 +1,183 @@
+package ru.ramprox.storage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Checksum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Crash recovery: the journal is written as a crash would leave it, then the storage is opened on it.
+ */
+public class CommitJournalTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path root;
+	private Path file;
+	private Path committing;
+	private final ByteArrayOutputStream journal = new ByteArrayOutputStream();
+
+	@Before
+	public void prepare() throws IOException {
+		root = folder.getRoot().toPath().toAbsolutePath().normalize();
+		file = root.resolve("a.txt");
+		committing = root.resolve(".a.txt.1-1.commit");
+		write(file, "old");
+	}
+
+	@Test
+	public void movesCommittingFileIntoPlace() throws IOException {
+		write(committing, "new");
+		record(CommitJournal.MOVE, file, committing, null);
+		open();
+		assertEquals("new", read(file));
+		assertFalse(Files.exists(committing));
+	}
+
+	@Test
+	public void keepsFileWhenMoveWasAlreadyDone() throws IOException {
+		write(file, "new");
+		record(CommitJournal.MOVE, file, committing, null);
+		open();
+		assertEquals("new", read(file));
+	}
+
+	@Test
+	public void rewritesDataAndRemovesCommittingFile() throws IOException {
+		write(committing, "new");
+		record(CommitJournal.DATA, file, committing, "new");
+		open();
+		assertEquals("new", read(file));
+		assertFalse(Files.exists(committing));
+	}
+
+	@Test
+	public void rewritesDataWithoutCommittingFile() throws IOException {
+		record(CommitJournal.DATA, file, committing, "new");
+		open();
+		assertEquals("new", read(file));
+	}
+
+	@Test
+	public void redoesOnlyLastRecordOfFile() throws IOException {
+		record(CommitJournal.DATA, file, root.resolve(".a.txt.1-1.commit"), "first");
+		record(CommitJournal.DATA, file, root.resolve(".a.txt.1-2.commit"), "second");
+		open();
+		assertEquals("second", read(file));
+	}
+
+	@Test
+	public void skipsFileDroppedAfterItsCommit() throws IOException {
+		write(committing, "new");
+		record(CommitJournal.MOVE, file, committing, null);
+		record(CommitJournal.DROP, file, null, null);
+		open();
+		assertEquals("old", read(file));
+	}
+
+	@Test
+	public void redoesEarlierRecordWhenLastIsCancelled() throws IOException {
+		Path failed = root.resolve(".a.txt.1-2.commit");
+		record(CommitJournal.DATA, file, committing, "first");
+		record(CommitJournal.DATA, file, failed, "second");
+		record(CommitJournal.DROP, file, failed, null);
+		open();
+		assertEquals("first", read(file));
+	}
+
+	@Test
+	public void deletesCommittingFileOfSupersededRecord() throws IOException {
+		Path next = root.resolve(".a.txt.1-2.commit");
+		write(committing, "first");
+		write(next, "second");
+		record(CommitJournal.MOVE, file, committing, null);
+		record(CommitJournal.MOVE, file, next, null);
+		open();
+		assertEquals("second", read(file));
+		assertFalse(Files.exists(committing));
+		assertFalse(Files.exists(next));
+	}
+
+	@Test
+	public void deletesCommittingFileWithoutRecord() throws IOException {
+		Files.createDirectories(root.resolve("dir"));
+		Path unrecorded = root.resolve("dir").resolve(".b.txt.1-3.commit");
+		write(unrecorded, "new");
+		open();
+		assertFalse(Files.exists(unrecorded));
+		assertFalse(Files.exists(root.resolve("dir").resolve("b.txt")));
+	}
+
+	@Test
+	public void ignoresRecordCutShort() throws IOException {
+		record(CommitJournal.DATA, file, committing, "new");
+		byte[] torn = journal.toByteArray();
+		journal.reset();
+		journal.write(torn, 0, torn.length - 1);
+		open();
+		assertEquals("old", read(file));
+	}
+
+	@Test
+	public void committedFileSurvivesReopening() throws Exception {
+		Storage storage = new Storage(root);
+		Path staged = storage.upload(file);
+		write(staged, "new");
+		storage.journal().commit(staged, file).get(10, TimeUnit.SECONDS);
+		storage.index().close();
+		new Storage(root).index().close();
+		assertEquals("new", read(file));
+		assertFalse(Files.exists(staged));
+	}
+
+	private void open() throws IOException {
+		Files.createDirectories(root.resolve(".journal"));
+		Files.write(root.resolve(".journal").resolve("commits"), journal.toByteArray());
+		new Storage(root).index().close();
+	}
+
+	/**
+	 * Same layout as the journal writes, see CommitJournal#writeRecord.
+	 */
+	private void record(byte type, Path file, Path committing, String data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(type);
+		record.writeUTF(root.relativize(file).toString());
+		if (committing != null) {
+			record.writeUTF(root.relativize(committing).toString());
+		}
+		if (data != null) {
+			byte[] content = data.getBytes(StandardCharsets.UTF_8);
+			record.writeInt(content.length);
+			record.write(content);
+		}
+		byte[] payload = bytes.toByteArray();
+		Checksum checksum = Crc32c.create();
+		checksum.update(payload, 0, payload.length);
+		DataOutputStream out = new DataOutputStream(journal);
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.writeInt((int) checksum.getValue());
+	}
+
+	private static void write(Path path, String content) throws IOException {
+		Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String read(Path path) throws IOException {
+		return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,164 @@
+package ru.ramprox.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The new version is rebuilt from the old one and the instructions of {@link DeltaEncoder}.
+ */
+public class DeltaWriterTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Random random = new Random(1);
+
+	@Test
+	public void rebuildsChangedFile() throws IOException {
+		byte[] old = bytes(500_000);
+		byte[] changed = old.clone();
+		changed[1000] ^= 1;
+		changed[300_000] ^= 1;
+		roundTrip(old, changed);
+	}
+
+	@Test
+	public void rebuildsFileWithInsertionAndDeletion() throws IOException {
+		byte[] old = bytes(500_000);
+		ByteArrayOutputStream changed = new ByteArrayOutputStream();
+		changed.write(old, 0, 100_000);
+		changed.write(bytes(777), 0, 777);
+		changed.write(old, 100_000, 200_000);
+		changed.write(old, 350_000, old.length - 350_000);
+		roundTrip(old, changed.toByteArray());
+	}
+
+	@Test
+	public void rebuildsFromEmptyOldVersion() throws IOException {
+		roundTrip(new byte[0], bytes(300_000));
+	}
+
+	@Test
+	public void sendsUnchangedFileAsCopies() throws IOException {
+		// but for the tail shorter than a block
+		byte[] old = bytes(500_000);
+		ByteBuffer instructions = encode(old, old);
+		int literals = 0;
+		while (instructions.hasRemaining()) {
+			if (instructions.get() == DeltaEncoder.COPY) {
+				instructions.position(instructions.position() + 12);
+			} else {
+				int length = instructions.getInt();
+				literals += length;
+				instructions.position(instructions.position() + length);
+			}
+		}
+		assertEquals(old.length % Signature.blockSize(old.length), literals);
+	}
+
+	@Test
+	public void rejectsTruncatedInstruction() throws IOException {
+		ByteBuffer copy = ByteBuffer.allocate(5).put(DeltaEncoder.COPY).putInt(0);
+		copy.flip();
+		assertRejected(bytes(1000), copy);
+	}
+
+	@Test
+	public void rejectsLiteralLongerThanFrame() throws IOException {
+		ByteBuffer literal = ByteBuffer.allocate(7).put(DeltaEncoder.LITERAL).putInt(10).put((byte) 1).put((byte) 2);
+		literal.flip();
+		assertRejected(bytes(1000), literal);
+	}
+
+	@Test
+	public void rejectsCopyBeyondOldVersion() throws IOException {
+		ByteBuffer copy = ByteBuffer.allocate(13).put(DeltaEncoder.COPY).putLong(900).putInt(200);
+		copy.flip();
+		assertRejected(bytes(1000), copy);
+	}
+
+	private void roundTrip(byte[] old, byte[] changed) throws IOException {
+		Path source = folder.newFile().toPath();
+		Files.write(source, old);
+		Path target = folder.newFile().toPath();
+		try (DeltaWriter writer = new DeltaWriter(segments(source, old.length), target)) {
+			writer.apply(encode(old, changed));
+			assertEquals(changed.length, writer.position());
+			Checksum checksum = Crc32c.create();
+			checksum.update(changed, 0, changed.length);
+			assertEquals(checksum.getValue(), writer.checksum());
+		}
+		assertArrayEquals(changed, Files.readAllBytes(target));
+	}
+
+	private void assertRejected(byte[] old, ByteBuffer instructions) throws IOException {
+		Path source = folder.newFile().toPath();
+		Files.write(source, old);
+		try (DeltaWriter writer = new DeltaWriter(segments(source, old.length), folder.newFile().toPath())) {
+			writer.apply(instructions);
+		} catch (IOException e) {
+			return;
+		}
+		fail("malformed instructions were applied");
+	}
+
+	/**
+	 * @return instructions in the layout the client sends them
+	 */
+	private ByteBuffer encode(byte[] old, byte[] changed) throws IOException {
+		Path source = folder.newFile().toPath();
+		Files.write(source, old);
+		Path file = folder.newFile().toPath();
+		Files.write(file, changed);
+		Signature signature = Signature.compute(segments(source, old.length));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			new DeltaEncoder(signature).encode(channel, new DeltaEncoder.Sink() {
+				@Override
+				public void copy(long offset, int length) throws IOException {
+					out.writeByte(DeltaEncoder.COPY);
+					out.writeLong(offset);
+					out.writeInt(length);
+				}
+
+				@Override
+				public void literal(ByteBuffer data) throws IOException {
+					out.writeByte(DeltaEncoder.LITERAL);
+					out.writeInt(data.remaining());
+					byte[] literal = new byte[data.remaining()];
+					data.get(literal);
+					out.write(literal);
+				}
+			});
+		}
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	private static List<Segment> segments(Path path, long size) {
+		return size == 0 ? Collections.emptyList() : Collections.singletonList(new Segment(path, 0, size));
+	}
+
+	private byte[] bytes(int size) {
+		byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+}